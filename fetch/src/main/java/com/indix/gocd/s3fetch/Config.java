@@ -16,6 +16,8 @@ public class Config {
     private final String sourcePrefix;
     private final String destination;
     private final String jobName;
+    private final String concurrency;
+    private final String sync;
 
     public String getMaterialType() {
       return materialType;
@@ -55,6 +57,10 @@ public class Config {
 
     public String getJobName() { return jobName; }
 
+    public String getConcurrency() { return concurrency; }
+
+    public String getSync() { return sync; }
+
     public Config(Map config) {
         materialType = getValue(config, MATERIAL_TYPE);
         repo = getValue(config, REPO);
@@ -66,6 +72,8 @@ public class Config {
         sourcePrefix = getValue(config, SOURCE_PREFIX);
         destination = getValue(config, DESTINATION);
         jobName = getValue(config, JOB_NAME);
+        concurrency = getValue(config, FETCH_CONCURRENCY);
+        sync = getValue(config, FETCH_SYNC);
     }
 
     private String escapeEnvironmentVariable(String value) {
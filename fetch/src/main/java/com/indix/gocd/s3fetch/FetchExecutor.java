@@ -1,9 +1,15 @@
 package com.indix.gocd.s3fetch;
 
+import com.indix.gocd.models.Manifest;
 import com.indix.gocd.utils.Context;
 import com.indix.gocd.utils.GoEnvironment;
 import com.indix.gocd.utils.TaskExecutionResult;
+import com.indix.gocd.utils.store.AdaptiveConcurrency;
+import com.indix.gocd.utils.store.AgentLimits;
+import com.indix.gocd.utils.store.ArtifactCache;
 import com.indix.gocd.utils.store.S3ArtifactStore;
+import com.indix.gocd.utils.store.TransferFailedException;
+import com.indix.gocd.utils.store.TransferPlan;
 import com.thoughtworks.go.plugin.api.logging.Logger;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -13,9 +19,11 @@ import java.io.IOException;
 import java.util.Map;
 
 import static com.indix.gocd.utils.Constants.*;
+import static com.indix.gocd.utils.GoEnvironment.toNumber;
 
 public abstract class FetchExecutor {
     private static Logger logger = Logger.getLoggerFor(FetchExecutor.class);
+    private static final long DEFAULT_CACHE_SIZE = 10 * 1024;
 
     public TaskExecutionResult execute(Config config, final Context context) {
 
@@ -24,14 +32,53 @@ public abstract class FetchExecutor {
             String artifactPathOnS3 = getArtifactsLocationTemplate(config, env);
             final String bucket = getBucket(config, env);
             final S3ArtifactStore store = getS3ArtifactStore(env, bucket);
+            setupConcurrency(config, store);
+            setupRangedGets(env, store);
+            AgentLimits.apply(env);
+            ArtifactCache cache = setupCache(env, store);
+            setupSync(config, store);
 
             String destination = String.format("%s/%s", context.getWorkingDir(), config.getDestination());
             context.printMessage(String.format("Getting artifacts from %s to %s", store.pathString(artifactPathOnS3), destination));
             if(StringUtils.isNotBlank(config.getDestination())) {
                 setupDestinationDirectory(destination);
             }
-            store.getPrefix(artifactPathOnS3, destination);
+            String revisionPrefix = getRevisionPrefix(artifactPathOnS3, config);
+            Manifest manifest = store.getManifest(revisionPrefix);
+            if (env.isDryRun()) {
+                TransferPlan plan = manifest != null
+                        ? store.planPrefix(artifactPathOnS3, destination, revisionPrefix, manifest)
+                        : store.planPrefix(artifactPathOnS3, destination, revisionPrefix);
+                plan.print(context);
+                return new TaskExecutionResult(true, "Dry run, nothing was fetched");
+            }
+            if (manifest != null) {
+                context.printMessage(String.format("Using manifest of %s with %d artifacts", store.pathString(revisionPrefix), manifest.getEntries().size()));
+                store.getPrefix(artifactPathOnS3, destination, revisionPrefix, manifest);
+            } else {
+                store.getPrefix(artifactPathOnS3, destination, revisionPrefix);
+            }
+            AdaptiveConcurrency adaptive = store.getAdaptiveConcurrency();
+            if (adaptive != null) {
+                context.printMessage(String.format("Adaptive concurrency settled at %d parallel downloads, peaked at %d, %d downloads throttled", adaptive.getLimit(), adaptive.getPeakLimit(), adaptive.getThrottledCount()));
+            }
+            if (store.getExtractedCount() > 0) {
+                context.printMessage(String.format("Extracted %d archives", store.getExtractedCount()));
+            }
+            if (cache != null) {
+                context.printMessage(String.format("Artifact cache: %d hits, %d misses", cache.getHits(), cache.getMisses()));
+            }
+            if (StringUtils.isNotBlank(config.getSync())) {
+                context.printMessage(String.format("Sync: %d files unchanged, %d files removed", store.getUnchangedCount(), store.getPrunedCount()));
+            }
             return new TaskExecutionResult(true, "Fetched all artifacts");
+        } catch (TransferFailedException e) {
+            for (Map.Entry<String, Exception> failure : e.getFailures().entrySet()) {
+                context.printMessage(String.format("Failed to fetch %s - %s", failure.getKey(), failure.getValue().getMessage()));
+            }
+            String message = String.format("Failure while downloading artifacts - %s", e.getMessage());
+            logger.error(message, e);
+            return new TaskExecutionResult(false, message, e);
         } catch (Exception e) {
             String message = String.format("Failure while downloading artifacts - %s", e.getMessage());
             logger.error(message, e);
@@ -43,6 +90,48 @@ public abstract class FetchExecutor {
         return new S3ArtifactStore(env, bucket);
     }
 
+    private void setupConcurrency(Config config, S3ArtifactStore store) {
+        String concurrency = config.getConcurrency();
+        if (CONCURRENCY_AUTO.equalsIgnoreCase(StringUtils.trim(concurrency))) {
+            store.setAdaptiveConcurrency(new AdaptiveConcurrency());
+        } else {
+            store.setConcurrency(StringUtils.isBlank(concurrency) ? 1 : toNumber(concurrency, "Concurrency"));
+        }
+    }
+
+    private void setupRangedGets(GoEnvironment env, S3ArtifactStore store) {
+        if (env.has(AWS_RANGED_GET_THRESHOLD)) {
+            store.setRangedGetThreshold(toNumber(env.get(AWS_RANGED_GET_THRESHOLD), AWS_RANGED_GET_THRESHOLD) * S3ArtifactStore.MEGABYTE);
+        }
+        if (env.has(AWS_RANGED_GET_SIZE)) {
+            store.setRangedGetSize(toNumber(env.get(AWS_RANGED_GET_SIZE), AWS_RANGED_GET_SIZE) * S3ArtifactStore.MEGABYTE);
+        }
+        if (env.has(AWS_RANGED_GET_CONCURRENCY)) {
+            store.setRangedGetConcurrency(toNumber(env.get(AWS_RANGED_GET_CONCURRENCY), AWS_RANGED_GET_CONCURRENCY));
+        }
+    }
+
+    private void setupSync(Config config, S3ArtifactStore store) {
+        String sync = config.getSync();
+        if (StringUtils.isBlank(sync)) {
+            return;
+        }
+        if (!SYNC_MODE_SYNC.equals(sync) && !SYNC_MODE_PRUNE.equals(sync)) {
+            throw new IllegalArgumentException(String.format("Sync should be either %s or %s, was %s", SYNC_MODE_SYNC, SYNC_MODE_PRUNE, sync));
+        }
+        store.setSync(true, SYNC_MODE_PRUNE.equals(sync));
+    }
+
+    private ArtifactCache setupCache(GoEnvironment env, S3ArtifactStore store) {
+        if (env.isAbsent(GO_ARTIFACTS_S3_CACHE_DIR)) {
+            return null;
+        }
+        long sizeInMegabytes = env.has(GO_ARTIFACTS_S3_CACHE_SIZE) ? toNumber(env.get(GO_ARTIFACTS_S3_CACHE_SIZE), GO_ARTIFACTS_S3_CACHE_SIZE) : DEFAULT_CACHE_SIZE;
+        ArtifactCache cache = new ArtifactCache(new File(env.get(GO_ARTIFACTS_S3_CACHE_DIR)), sizeInMegabytes * S3ArtifactStore.MEGABYTE);
+        store.setCache(cache);
+        return cache;
+    }
+
     private void setupDestinationDirectory(String destination) {
         File destinationDirectory = new File(destination);
         try {
@@ -62,6 +151,13 @@ public abstract class FetchExecutor {
         return env.get(GO_ARTIFACTS_S3_BUCKET);
     }
 
+    /**
+     * @return the prefix the artifacts were published under, where their manifest is looked up
+     */
+    protected String getRevisionPrefix(String artifactsLocation, Config config) {
+        return artifactsLocation;
+    }
+
     protected abstract String getArtifactsLocationTemplate(Config config, GoEnvironment env);
 
     public abstract Map<String,String> validate(Config config);
@@ -150,6 +150,16 @@ public class FetchTask implements GoPlugin {
         jobName.put("required", false);
         config.put(Constants.JOB_NAME, jobName);
 
+        HashMap concurrency = new HashMap();
+        concurrency.put("default-value", "1");
+        concurrency.put("required", false);
+        config.put(Constants.FETCH_CONCURRENCY, concurrency);
+
+        HashMap sync = new HashMap();
+        sync.put("default-value", "");
+        sync.put("required", false);
+        config.put(Constants.FETCH_SYNC, sync);
+
         return createResponse(DefaultGoPluginApiResponse.SUCCESS_RESPONSE_CODE, config);
     }
 
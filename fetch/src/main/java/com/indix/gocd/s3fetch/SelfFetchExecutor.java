@@ -40,6 +40,11 @@ public class SelfFetchExecutor extends FetchExecutor {
         return prefix + "/" + source;
     }
 
+    @Override
+    protected String getRevisionPrefix(String artifactsLocation, Config config) {
+        return StringUtils.removeEnd(artifactsLocation, "/" + config.getSource());
+    }
+
     @Override
     public Map<String, String> validate(Config config) {
         Map<String, String> errors = new HashMap<>();
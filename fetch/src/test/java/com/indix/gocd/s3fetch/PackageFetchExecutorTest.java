@@ -93,7 +93,7 @@ public class PackageFetchExecutorTest {
 
         assertTrue(result.isSuccessful());
         assertThat(result.message(), is("Fetched all artifacts"));
-        verify(mockStore, times(1)).getPrefix("TestPublish/defaultStage/defaultJob/20.1", "here/artifacts");
+        verify(mockStore, times(1)).getPrefix("TestPublish/defaultStage/defaultJob/20.1", "here/artifacts", "TestPublish/defaultStage/defaultJob/20.1");
 
     }
 
@@ -110,7 +110,7 @@ public class PackageFetchExecutorTest {
 
         assertTrue(result.isSuccessful());
         assertThat(result.message(), is("Fetched all artifacts"));
-        verify(mockStore, times(1)).getPrefix("TestPublish/defaultStage/defaultJob/20.1", "here/artifacts");
+        verify(mockStore, times(1)).getPrefix("TestPublish/defaultStage/defaultJob/20.1", "here/artifacts", "TestPublish/defaultStage/defaultJob/20.1");
 
     }
 
@@ -135,7 +135,7 @@ public class PackageFetchExecutorTest {
 
         assertTrue(result.isSuccessful());
         assertThat(result.message(), is("Fetched all artifacts"));
-        verify(store, times(1)).getPrefix("TestPublish/defaultStage/defaultJob/20.1", "here/artifacts");
+        verify(store, times(1)).getPrefix("TestPublish/defaultStage/defaultJob/20.1", "here/artifacts", "TestPublish/defaultStage/defaultJob/20.1");
     }
 
     @Test
@@ -159,7 +159,7 @@ public class PackageFetchExecutorTest {
 
         assertTrue(result.isSuccessful());
         assertThat(result.message(), is("Fetched all artifacts"));
-        verify(store, times(1)).getPrefix("TestPublish/defaultStage/defaultJob/20.1", "here/artifacts");
+        verify(store, times(1)).getPrefix("TestPublish/defaultStage/defaultJob/20.1", "here/artifacts", "TestPublish/defaultStage/defaultJob/20.1");
     }
 
     @Test
@@ -183,7 +183,7 @@ public class PackageFetchExecutorTest {
 
         assertTrue(result.isSuccessful());
         assertThat(result.message(), is("Fetched all artifacts"));
-        verify(store, times(1)).getPrefix("TestPublish/defaultStage/defaultJob/20.1", "here/artifacts");
+        verify(store, times(1)).getPrefix("TestPublish/defaultStage/defaultJob/20.1", "here/artifacts", "TestPublish/defaultStage/defaultJob/20.1");
     }
 
     private Context mockContext(final Map<String, String> environmentMap) {
@@ -92,7 +92,7 @@ public class PipelineFetchExecutorTest {
 
         assertTrue(result.isSuccessful());
         assertThat(result.message(), is("Fetched all artifacts"));
-        verify(mockStore, times(1)).getPrefix("pipeline/stage/job/1.1", "here/artifacts");
+        verify(mockStore, times(1)).getPrefix("pipeline/stage/job/1.1", "here/artifacts", "pipeline/stage/job/1.1");
     }
 
     @Test
@@ -112,7 +112,7 @@ public class PipelineFetchExecutorTest {
 
         assertTrue(result.isSuccessful());
         assertThat(result.message(), is("Fetched all artifacts"));
-        verify(store, times(1)).getPrefix("pipeline/stage/job/1.1", "here/artifacts");
+        verify(store, times(1)).getPrefix("pipeline/stage/job/1.1", "here/artifacts", "pipeline/stage/job/1.1");
     }
 
     @Test
@@ -132,7 +132,7 @@ public class PipelineFetchExecutorTest {
 
         assertTrue(result.isSuccessful());
         assertThat(result.message(), is("Fetched all artifacts"));
-        verify(store, times(1)).getPrefix("pipeline/stage/job/1.1", "here/artifacts");
+        verify(store, times(1)).getPrefix("pipeline/stage/job/1.1", "here/artifacts", "pipeline/stage/job/1.1");
     }
 
     @Test
@@ -152,7 +152,7 @@ public class PipelineFetchExecutorTest {
 
         assertTrue(result.isSuccessful());
         assertThat(result.message(), is("Fetched all artifacts"));
-        verify(store, times(1)).getPrefix("pipeline/stage/job/1.1", "here/artifacts");
+        verify(store, times(1)).getPrefix("pipeline/stage/job/1.1", "here/artifacts", "pipeline/stage/job/1.1");
     }
 
     private Context mockContext(final Map<String, String> environmentMap) {
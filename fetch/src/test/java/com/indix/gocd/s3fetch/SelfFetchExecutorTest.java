@@ -1,5 +1,7 @@
 package com.indix.gocd.s3fetch;
 
+import com.indix.gocd.models.Manifest;
+import com.indix.gocd.models.ManifestEntry;
 import com.indix.gocd.utils.Constants;
 import com.indix.gocd.utils.Context;
 import com.indix.gocd.utils.TaskExecutionResult;
@@ -69,7 +71,35 @@ public class SelfFetchExecutorTest {
 
         assertTrue(result.isSuccessful());
         assertThat(result.message(), is("Fetched all artifacts"));
-        verify(store).getPrefix("sourcePrefix/source", "here/artifacts");
+        verify(store).getPrefix("sourcePrefix/source", "here/artifacts", "sourcePrefix");
+    }
+
+    @Test
+    public void shouldSyncAndPruneWhenConfigured() {
+        Map<String, String> mockVariables = mockEnvironmentVariables.build();
+        config = new Config(Maps.builder()
+                .with(Constants.SOURCE_PREFIX, Maps.builder().with("value", "sourcePrefix").build())
+                .with(Constants.SOURCE, Maps.builder().with("value", "source").build())
+                .with(Constants.DESTINATION, Maps.builder().with("value", "artifacts").build())
+                .with(Constants.FETCH_SYNC, Maps.builder().with("value", SYNC_MODE_PRUNE).build())
+                .build());
+        TaskExecutionResult result = fetchExecutor.execute(config, mockContext(mockVariables));
+
+        assertTrue(result.isSuccessful());
+        verify(store).setSync(true, true);
+    }
+
+    @Test
+    public void shouldFetchUsingManifestOfTheRevisionWhenPublished() {
+        Map<String, String> mockVariables = mockEnvironmentVariables.build();
+        Manifest manifest = new Manifest().add(new ManifestEntry("source/a.jar", 10, "etag"));
+        doReturn("sourcePrefix").when(store).getLatestPrefix(PIPELINE, STAGE, JOB, PIPELINE_COUNTER);
+        doReturn(manifest).when(store).getManifest("sourcePrefix");
+        TaskExecutionResult result = fetchExecutor.execute(config, mockContext(mockVariables) );
+
+        assertTrue(result.isSuccessful());
+        verify(store).getPrefix("sourcePrefix/source", "here/artifacts", "sourcePrefix", manifest);
+        verify(store, never()).getPrefix("sourcePrefix/source", "here/artifacts", "sourcePrefix");
     }
 
     @Test
@@ -84,7 +114,7 @@ public class SelfFetchExecutorTest {
 
         assertTrue(result.isSuccessful());
         assertThat(result.message(), is("Fetched all artifacts"));
-        verify(store).getPrefix("sourcePrefix/source", "here/artifacts");
+        verify(store).getPrefix("sourcePrefix/source", "here/artifacts", "sourcePrefix");
     }
 
     private Context mockContext(final Map<String, String> environmentMap) {
@@ -0,0 +1,73 @@
+package com.indix.gocd.s3publish;
+
+import com.indix.gocd.models.Manifest;
+import com.indix.gocd.utils.store.BundleUpload;
+import com.indix.gocd.utils.store.S3ArtifactStore;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Packs the small files of a publish into bundles, starting a new bundle whenever the
+ * current one grows past {@link #MAX_BUNDLE_SIZE}. Every bundled file gets a manifest
+ * entry pointing into its bundle, which is what fetches use to find it.
+ */
+class Bundles {
+    static final long MAX_BUNDLE_SIZE = 64 * S3ArtifactStore.MEGABYTE;
+
+    private final S3ArtifactStore store;
+    private final String revisionPrefix;
+    private final long threshold;
+    private final Manifest manifest;
+    private BundleUpload current;
+    private int bundleCount;
+    private int fileCount;
+
+    Bundles(S3ArtifactStore store, String revisionPrefix, long threshold, Manifest manifest) {
+        this.store = store;
+        this.revisionPrefix = revisionPrefix;
+        this.threshold = threshold;
+        this.manifest = manifest;
+    }
+
+    boolean accepts(File file) {
+        return file.length() < threshold;
+    }
+
+    void add(File file, String path) throws IOException {
+        if (current == null) {
+            current = store.putBundle(revisionPrefix);
+            bundleCount++;
+        }
+        manifest.add(current.add(file, path));
+        fileCount++;
+        if (current.getSize() >= MAX_BUNDLE_SIZE) {
+            finish();
+        }
+    }
+
+    /**
+     * Completes the upload of the bundle still being written
+     */
+    void finish() throws IOException {
+        if (current != null) {
+            manifest.add(current.close());
+            current = null;
+        }
+    }
+
+    void abort() {
+        if (current != null) {
+            current.abort();
+            current = null;
+        }
+    }
+
+    int getBundleCount() {
+        return bundleCount;
+    }
+
+    int getFileCount() {
+        return fileCount;
+    }
+}
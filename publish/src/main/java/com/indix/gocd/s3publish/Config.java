@@ -9,20 +9,63 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
-import static com.indix.gocd.utils.Constants.ARTIFACTS_BUCKET;
-import static com.indix.gocd.utils.Constants.DESTINATION_PREFIX;
-import static com.indix.gocd.utils.Constants.SOURCEDESTINATIONS;
+import static com.indix.gocd.utils.Constants.*;
 
 public class Config {
 
     public String sourceDestinationsJson;
     public String destinationPrefix;
     public String artifactsBucket;
+    public String concurrency;
+    public String multipartPartSize;
+    public String multipartConcurrency;
+    public String delta;
+    public String excludes;
+    public String archive;
+    public String compress;
+    public String bundleThreshold;
+    public String chunked;
 
     public Config(Map config) {
         sourceDestinationsJson  = getValue(config, SOURCEDESTINATIONS);
         destinationPrefix  = getValue(config, DESTINATION_PREFIX);
         artifactsBucket  = getValue(config, ARTIFACTS_BUCKET);
+        concurrency  = getValue(config, PUBLISH_CONCURRENCY);
+        multipartPartSize  = getValue(config, MULTIPART_PART_SIZE);
+        multipartConcurrency  = getValue(config, MULTIPART_CONCURRENCY);
+        delta  = getValue(config, PUBLISH_DELTA);
+        excludes  = getValue(config, PUBLISH_EXCLUDES);
+        archive  = getValue(config, PUBLISH_ARCHIVE);
+        compress  = getValue(config, PUBLISH_COMPRESS);
+        bundleThreshold  = getValue(config, PUBLISH_BUNDLE_THRESHOLD);
+        chunked  = getValue(config, PUBLISH_CHUNKED);
+    }
+
+    public boolean isDelta() {
+        return "true".equals(delta);
+    }
+
+    public boolean isCompress() {
+        return "true".equals(compress);
+    }
+
+    public boolean isChunked() {
+        return "true".equals(chunked);
+    }
+
+    /**
+     * @return the exclude patterns, given one per line or separated by commas
+     */
+    public List<String> excludePatterns() {
+        List<String> patterns = new ArrayList<>();
+        if (excludes != null) {
+            for (String pattern : excludes.split("[,\\n]")) {
+                if (!pattern.trim().isEmpty()) {
+                    patterns.add(pattern.trim());
+                }
+            }
+        }
+        return patterns;
     }
 
     public List<SourceDestination> sourceDestinations() throws JsonSyntaxException {
@@ -31,6 +74,10 @@ public class Config {
     }
 
     private String getValue(Map config, String property) {
-        return (String) ((Map) config.get(property)).get("value");
+        Map propertyMap = ((Map) config.get(property));
+        if (propertyMap != null) {
+            return (String) propertyMap.get("value");
+        }
+        return null;
     }
 }
@@ -4,33 +4,48 @@ import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.google.gson.JsonSyntaxException;
+import com.indix.gocd.models.Artifact;
+import com.indix.gocd.models.Manifest;
+import com.indix.gocd.models.ManifestEntry;
+import com.indix.gocd.models.RevisionStatus;
 import com.indix.gocd.utils.Context;
 import com.indix.gocd.utils.GoEnvironment;
 import com.indix.gocd.utils.TaskExecutionResult;
+import com.indix.gocd.utils.store.AdaptiveConcurrency;
+import com.indix.gocd.utils.store.AgentLimits;
+import com.indix.gocd.utils.store.ArchiveUpload;
+import com.indix.gocd.utils.store.Compression;
+import com.indix.gocd.utils.store.ETags;
+import com.indix.gocd.utils.store.PublishJournal;
 import com.indix.gocd.utils.store.S3ArtifactStore;
-import com.indix.gocd.utils.utils.Function;
-import com.indix.gocd.utils.utils.Lists;
-import com.indix.gocd.utils.utils.Tuple2;
+import com.indix.gocd.utils.store.TransferExecutor;
+import com.indix.gocd.utils.store.TransferFailedException;
+import com.indix.gocd.utils.store.TransferPlan;
 import com.thoughtworks.go.plugin.api.logging.Logger;
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.tools.ant.DirectoryScanner;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.indix.gocd.utils.Constants.*;
-import static com.indix.gocd.utils.utils.Functions.VoidFunction;
-import static com.indix.gocd.utils.utils.Lists.flatMap;
-import static com.indix.gocd.utils.utils.Lists.foreach;
+import static com.indix.gocd.utils.GoEnvironment.toNumber;
 
 
 public class PublishExecutor {
+    // Uploads are scheduled this many files at a time while the sources are walked
+    static final int SCHEDULING_WINDOW = 1000;
+
     private Logger logger = Logger.getLoggerFor(PublishTask.class);
 
     public TaskExecutionResult execute(Config config, final Context context) {
+        PublishJournal journal = null;
         try {
             final GoEnvironment env = new GoEnvironment(context.getEnvironmentVariables());
             if (env.isAbsent(GO_SERVER_DASHBOARD_URL)) return envNotFound(GO_SERVER_DASHBOARD_URL);
@@ -40,36 +55,149 @@ public class PublishExecutor {
 
             final S3ArtifactStore store = getS3ArtifactStore(env, bucket);
             store.setStorageClass(env.getOrElse(AWS_STORAGE_CLASS, STORAGE_CLASS_STANDARD));
+            setupMultipart(config, env, store);
+            AgentLimits.apply(env);
 
             final String destinationPrefix = getDestinationPrefix(config, env);
 
             List<SourceDestination> sourceDestinations = config.sourceDestinations();
-            for(SourceDestination input : sourceDestinations) {
-                String[] files = parseSourcePath(input.source, context.getWorkingDir());
-                if (files.length == 0) {
-                    return new TaskExecutionResult(false, String.format("Source %s didn't yield any files to upload", input.source));
+            final Manifest manifest = hasConfigDestinationPrefix(config) ? null : new Manifest();
+            final PreviousRevision previous = config.isDelta() && manifest != null ? getPreviousRevision(context, env, store, destinationPrefix) : null;
+            final String archiveMode = getArchiveMode(config);
+            final boolean compress = config.isCompress();
+            final boolean chunked = isChunked(context, config, manifest);
+            final Bundles bundles = getBundles(context, config, store, destinationPrefix, manifest);
+            final boolean dryRun = env.isDryRun();
+            if (!dryRun) {
+                journal = openJournal(context, store, destinationPrefix);
+            }
+            final PublishJournal resumable = journal;
+            final AdaptiveConcurrency adaptive = isAdaptiveConcurrency(config) ? new AdaptiveConcurrency() : null;
+            final TransferExecutor transfers = adaptive != null ? new TransferExecutor(adaptive) : new TransferExecutor(getConcurrency(config));
+            final TransferPlan[] plan = {new TransferPlan()};
+            final List<SourceDestination> inputs = sourceDestinations;
+            final ArchiveUpload[] archives = new ArchiveUpload[inputs.size()];
+            final long[] streamed = new long[2];
+            boolean archived = false;
+            try {
+                int[] matches = walkSources(context.getWorkingDir(), inputs, excludePatterns(config), new SourceWalker.Listener() {
+                    @Override
+                    public void matched(int source, File file, String destinationPath) {
+                        boolean streamedWhileWalking = archiveMode != null || (bundles != null && bundles.accepts(file));
+                        if (streamedWhileWalking && dryRun) {
+                            streamed[0]++;
+                            streamed[1] += file.length();
+                        } else if (archiveMode != null) {
+                            addToArchive(destinationPrefix, store, archives, source, inputs.get(source), archiveMode, file, destinationPath);
+                        } else if (bundles != null && bundles.accepts(file)) {
+                            addToBundle(bundles, destinationKey(destinationPrefix, inputs.get(source).destination, destinationPath), destinationPrefix, file);
+                        } else {
+                            pushToS3(context, destinationPrefix, store, plan[0], manifest, previous, resumable, compress, chunked, file, inputs.get(source).destination, destinationPath);
+                            if (!dryRun && plan[0].size() == SCHEDULING_WINDOW) {
+                                // Uploads start while the rest of the sources are walked, longest first within the window
+                                plan[0].submitTo(transfers);
+                                plan[0] = new TransferPlan();
+                            }
+                        }
+                    }
+                });
+                for (int source = 0; source < matches.length; source++) {
+                    if (matches[source] == 0) {
+                        return new TaskExecutionResult(false, String.format("Source %s didn't yield any files to upload", inputs.get(source).source));
+                    }
+                }
+                if (dryRun) {
+                    plan[0].print(context);
+                    if (streamed[0] > 0) {
+                        context.printMessage(String.format("%d files of %d bytes would be streamed into archives or bundles", streamed[0], streamed[1]));
+                    }
+                    archived = true;
+                    return new TaskExecutionResult(true, "Dry run, nothing was published");
+                }
+                plan[0].submitTo(transfers);
+                transfers.awaitCompletion();
+                finishArchives(context, destinationPrefix, store, archives, manifest);
+                if (bundles != null) {
+                    bundles.finish();
+                    context.printMessage(String.format("Bundled %d small files into %d bundles", bundles.getFileCount(), bundles.getBundleCount()));
                 }
-                for (String includedFile : files) {
-                    File localFileToUpload = new File(String.format("%s/%s", context.getWorkingDir(), includedFile));
-                    pushToS3(context, destinationPrefix, store, localFileToUpload, input.destination);
+                archived = true;
+            } finally {
+                transfers.shutdown();
+                if (!archived) {
+                    abortArchives(archives);
+                    if (bundles != null) {
+                        bundles.abort();
+                    }
                 }
             }
+            if (journal != null && journal.getSkippedCount() > 0) {
+                context.printMessage(String.format("Skipped %d unchanged files an earlier run already pushed", journal.getSkippedCount()));
+            }
+            if (previous != null) {
+                context.printMessage(String.format("Copied %d unchanged files from %s", previous.getCopied(), store.pathString(previous.prefix)));
+            }
+            if (adaptive != null) {
+                context.printMessage(String.format("Adaptive concurrency settled at %d parallel uploads, peaked at %d, %d uploads throttled", adaptive.getLimit(), adaptive.getPeakLimit(), adaptive.getThrottledCount()));
+            }
+            if (chunked) {
+                context.printMessage(String.format("Uploaded %d bytes of new chunks, %d bytes of chunks were already in the bucket", store.getChunkUploadedBytes(), store.getChunkReusedBytes()));
+            }
 
             if(!hasConfigDestinationPrefix(config)) {
+                putManifest(context, destinationPrefix, store, manifest);
                 setMetadata(env, bucket, destinationPrefix, store);
             }
+            if (journal != null) {
+                journal.abandonUnfinishedUploads();
+                store.abortAbandonedUploads();
+                journal.delete();
+            }
 
             return new TaskExecutionResult(true, "Published all artifacts to S3 successfully");
         } catch (JsonSyntaxException e) {
             String message = "Failed while parsing configuration";
             logger.error(message);
             return new TaskExecutionResult(false, message, e);
+        } catch (TransferFailedException e) {
+            for (Map.Entry<String, Exception> failure : e.getFailures().entrySet()) {
+                context.printMessage(String.format("Failed to push %s - %s", failure.getKey(), failure.getValue().getMessage()));
+            }
+            logger.error(e.getMessage(), e);
+            return new TaskExecutionResult(false, e.getMessage(), e);
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             return new TaskExecutionResult(false, e.getMessage());
+        } finally {
+            if (journal != null) {
+                journal.close();
+            }
         }
     }
 
+    /**
+     * Picks up the journal an earlier run of this revision left behind, the task may be
+     * rerun for the same stage counter after the agent died or the task timed out
+     */
+    private PublishJournal openJournal(Context context, S3ArtifactStore store, String destinationPrefix) {
+        PublishJournal journal = PublishJournal.open(new File(context.getWorkingDir()), destinationPrefix);
+        if (journal.getUnfinishedUploadCount() > 0) {
+            context.printMessage(String.format("Resuming %d multipart uploads an earlier run left unfinished", journal.getUnfinishedUploadCount()));
+        }
+        store.setJournal(journal);
+        int aborted = store.abortAbandonedUploads();
+        if (aborted > 0) {
+            context.printMessage(String.format("Aborted %d multipart uploads a run of another revision left unfinished", aborted));
+        }
+        return journal;
+    }
+
+    private List<String> excludePatterns(Config config) {
+        List<String> excludes = new ArrayList<>(config.excludePatterns());
+        excludes.add(PublishJournal.FILE_NAME);
+        return excludes;
+    }
+
     private String getBucket(GoEnvironment env, Config config) {
         if(StringUtils.isNotBlank(config.artifactsBucket)) {
             return config.artifactsBucket;
@@ -79,40 +207,276 @@ public class PublishExecutor {
         return null;
     }
 
+    private boolean isAdaptiveConcurrency(Config config) {
+        return CONCURRENCY_AUTO.equalsIgnoreCase(StringUtils.trim(config.concurrency));
+    }
+
+    private int getConcurrency(Config config) {
+        if (StringUtils.isBlank(config.concurrency)) {
+            return 1;
+        }
+        return toNumber(config.concurrency, "Concurrency");
+    }
+
+    private void setupMultipart(Config config, GoEnvironment env, S3ArtifactStore store) {
+        if (env.has(AWS_MULTIPART_THRESHOLD)) {
+            store.setMultipartThreshold(toNumber(env.get(AWS_MULTIPART_THRESHOLD), AWS_MULTIPART_THRESHOLD) * S3ArtifactStore.MEGABYTE);
+        }
+
+        String partSize = StringUtils.isNotBlank(config.multipartPartSize) ? config.multipartPartSize : env.get(AWS_MULTIPART_PART_SIZE);
+        if (StringUtils.isNotBlank(partSize)) {
+            store.setMultipartPartSize(toNumber(partSize, "Multipart part size") * S3ArtifactStore.MEGABYTE);
+        }
+
+        String partConcurrency = StringUtils.isNotBlank(config.multipartConcurrency) ? config.multipartConcurrency : env.get(AWS_MULTIPART_CONCURRENCY);
+        if (StringUtils.isNotBlank(partConcurrency)) {
+            store.setMultipartConcurrency(toNumber(partConcurrency, "Multipart concurrency"));
+        }
+    }
+
     protected S3ArtifactStore getS3ArtifactStore(GoEnvironment env, String bucket) {
         return new S3ArtifactStore(env, bucket);
     }
 
-    protected String[] parseSourcePath(String source, String workingDir) {
-        DirectoryScanner directoryScanner = new DirectoryScanner();
-        directoryScanner.setBasedir(workingDir);
-        directoryScanner.setIncludes(new String[]{source});
-        directoryScanner.scan();
-        return ArrayUtils.addAll(directoryScanner.getIncludedFiles(), directoryScanner.getIncludedDirectories());
+    /**
+     * Walks the working directory once, handing every file matching any of the sources over
+     * to the listener as it is found
+     *
+     * @return the number of files and directories matching each of the sources
+     */
+    protected int[] walkSources(String workingDir, List<SourceDestination> sourceDestinations, List<String> excludes, SourceWalker.Listener listener) throws IOException {
+        List<String> sources = new ArrayList<>();
+        for (SourceDestination sourceDestination : sourceDestinations) {
+            sources.add(sourceDestination.source);
+        }
+        return new SourceWalker(workingDir, sources, excludes).walk(listener);
     }
 
     protected boolean fileExists(File localFileToUpload) {
         return localFileToUpload.exists();
     }
 
-    private void pushToS3(final Context context, final String destinationPrefix, final S3ArtifactStore store, File localFileToUpload, String destination) {
+    private String destinationKey(String destinationPrefix, String destination, String destinationPath) {
         String templateSoFar = ensureKeySegmentValid(destinationPrefix);
         if(!StringUtils.isBlank(destination)) {
             templateSoFar += destination;
         }
-        List<FilePathToTemplate> filesToUpload = generateFilesToUpload(templateSoFar, localFileToUpload);
-        foreach(filesToUpload, new VoidFunction<FilePathToTemplate>() {
+        return ensureKeySegmentValid(templateSoFar) + destinationPath;
+    }
+
+    private void pushToS3(final Context context, final String destinationPrefix, final S3ArtifactStore store, final TransferPlan plan, final Manifest manifest, final PreviousRevision previous, final PublishJournal journal, final boolean compress, final boolean chunked, final File localFileToUpload, String destination, String destinationPath) {
+        final String revisionPrefix = ensureKeySegmentValid(destinationPrefix);
+        final String localFile = localFileToUpload.getAbsolutePath();
+        final String destinationOnS3 = destinationKey(destinationPrefix, destination, destinationPath);
+        store.planUpload(plan, localFile, localFileToUpload.length(), chunked, new Runnable() {
             @Override
-            public void execute(FilePathToTemplate filePathToTemplate) {
-                String localFile = filePathToTemplate._1();
-                String destinationOnS3 = filePathToTemplate._2();
-                context.printMessage(String.format("Pushing %s to %s", localFile, store.pathString(destinationOnS3)));
-                store.put(localFile, destinationOnS3);
-                context.printMessage(String.format("Pushed %s to %s", localFile, store.pathString(destinationOnS3)));
+            public void run() {
+                String path = StringUtils.removeStart(destinationOnS3, revisionPrefix);
+                ManifestEntry entry = journal != null ? journal.skipIfCompleted(destinationOnS3, localFileToUpload) : null;
+                if (entry != null) {
+                    context.printMessage(String.format("Skipping %s, an earlier run pushed it to %s", localFile, store.pathString(destinationOnS3)));
+                } else {
+                    entry = previous != null ? copyIfUnchanged(context, store, previous, localFile, path, destinationOnS3) : null;
+                    if (entry == null) {
+                        context.printMessage(String.format("Pushing %s to %s", localFile, store.pathString(destinationOnS3)));
+                        entry = push(store, compress, chunked, localFile, destinationOnS3, path);
+                        context.printMessage(String.format("Pushed %s to %s", localFile, store.pathString(destinationOnS3)));
+                    }
+                    if (journal != null) {
+                        journal.completed(destinationOnS3, localFileToUpload, entry);
+                    }
+                }
+                if (manifest != null) {
+                    manifest.add(entry);
+                }
             }
         });
     }
 
+    private ManifestEntry push(S3ArtifactStore store, boolean compress, boolean chunked, String localFile, String destinationOnS3, String path) {
+        File file = new File(localFile);
+        if (chunked && file.length() >= S3ArtifactStore.MIN_CHUNKED_SIZE) {
+            try {
+                return store.putChunked(localFile, path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(String.format("Failed to chunk %s - %s", localFile, e.getMessage()), e);
+            }
+        }
+        try {
+            if (compress && Compression.isCompressible(file)) {
+                return store.putCompressed(localFile, destinationOnS3, path);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(String.format("Failed to compress %s - %s", localFile, e.getMessage()), e);
+        }
+        return new ManifestEntry(path, file.length(), store.put(localFile, destinationOnS3));
+    }
+
+    /**
+     * @return whether large files are stored in the chunk store, which is only possible with a manifest
+     */
+    private boolean isChunked(Context context, Config config, Manifest manifest) {
+        if (!config.isChunked()) {
+            return false;
+        }
+        if (manifest == null) {
+            // Chunked files can only be put back together through the manifest
+            context.printMessage("Not chunking large files, which needs the default destination prefix");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return what packs the small files into bundles, or null when every file is uploaded as an object of its own
+     */
+    private Bundles getBundles(Context context, Config config, S3ArtifactStore store, String destinationPrefix, Manifest manifest) {
+        if (StringUtils.isBlank(config.bundleThreshold)) {
+            return null;
+        }
+        long threshold = toNumber(config.bundleThreshold, "Bundle threshold") * 1024L;
+        if (manifest == null) {
+            // Bundled files can only be found through the manifest
+            context.printMessage("Not bundling small files, which needs the default destination prefix");
+            return null;
+        }
+        return new Bundles(store, destinationPrefix, threshold, manifest);
+    }
+
+    private void addToBundle(Bundles bundles, String destinationOnS3, String destinationPrefix, File file) {
+        try {
+            bundles.add(file, StringUtils.removeStart(destinationOnS3, ensureKeySegmentValid(destinationPrefix)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(String.format("Failed to bundle %s - %s", file, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * @return the archive mode to publish with, or null when files are uploaded one by one
+     */
+    private String getArchiveMode(Config config) {
+        if (StringUtils.isBlank(config.archive)) {
+            return null;
+        }
+        if (!ARCHIVE_MODE_TAR.equals(config.archive) && !ARCHIVE_MODE_TAR_GZ.equals(config.archive)) {
+            throw new IllegalArgumentException(String.format("Archive should be either %s or %s, was %s", ARCHIVE_MODE_TAR, ARCHIVE_MODE_TAR_GZ, config.archive));
+        }
+        return config.archive;
+    }
+
+    /**
+     * Streams the file into the archive of its source, which is started on its first file
+     */
+    private void addToArchive(String destinationPrefix, S3ArtifactStore store, ArchiveUpload[] archives, int source, SourceDestination input, String archiveMode, File file, String destinationPath) {
+        try {
+            if (archives[source] == null) {
+                boolean gzip = ARCHIVE_MODE_TAR_GZ.equals(archiveMode);
+                archives[source] = store.putArchive(destinationKey(destinationPrefix, input.destination, ArchiveUpload.fileName(input.source, gzip)), gzip);
+            }
+            archives[source].add(file, destinationPath);
+        } catch (IOException e) {
+            throw new UncheckedIOException(String.format("Failed to archive %s - %s", file, e.getMessage()), e);
+        }
+    }
+
+    private void finishArchives(Context context, String destinationPrefix, S3ArtifactStore store, ArchiveUpload[] archives, Manifest manifest) throws IOException {
+        for (ArchiveUpload archive : archives) {
+            if (archive == null) {
+                continue;
+            }
+            archive.close();
+            context.printMessage(String.format("Pushed archive of %d files to %s", archive.getFileCount(), store.pathString(archive.getKey())));
+            if (manifest != null) {
+                manifest.add(new ManifestEntry(StringUtils.removeStart(archive.getKey(), ensureKeySegmentValid(destinationPrefix)), archive.getSize(), archive.getETag()));
+            }
+        }
+    }
+
+    private void abortArchives(ArchiveUpload[] archives) {
+        for (ArchiveUpload archive : archives) {
+            if (archive != null) {
+                archive.abort();
+            }
+        }
+    }
+
+    /**
+     * @return the manifest of the latest completed revision of this job, or null when there is none to copy from
+     */
+    private PreviousRevision getPreviousRevision(Context context, GoEnvironment env, S3ArtifactStore store, String destinationPrefix) {
+        Artifact artifact = new Artifact(env.get("GO_PIPELINE_NAME"), env.get("GO_STAGE_NAME"), env.get("GO_JOB_NAME"));
+        String prefix;
+        try {
+            RevisionStatus latest = store.getLatest(artifact);
+            if (latest == null) {
+                return null;
+            }
+            prefix = StringUtils.removeEnd(artifact.withRevision(latest.revision).prefixWithRevision(), "/");
+        } catch (AmazonS3Exception e) {
+            // Also what S3 reports when nothing has been completed yet, as the completion marker is missing
+            context.printMessage(String.format("Could not find a previous revision to copy unchanged files from, uploading all files - %s", e.getMessage()));
+            return null;
+        }
+        if (prefix.equals(destinationPrefix)) {
+            return null;
+        }
+
+        Manifest manifest = store.getManifest(prefix);
+        if (manifest == null) {
+            context.printMessage(String.format("%s has no manifest to compare with, uploading all files", store.pathString(prefix)));
+            return null;
+        }
+        return new PreviousRevision(prefix, manifest);
+    }
+
+    /**
+     * Copies the object of the previous revision when the local file has the same content
+     *
+     * @return the manifest entry of the copy, or null when the file has to be uploaded
+     */
+    private ManifestEntry copyIfUnchanged(Context context, S3ArtifactStore store, PreviousRevision previous, String localFile, String path, String destinationOnS3) {
+        ManifestEntry entry = previous.entries.get(path);
+        File file = new File(localFile);
+        if (entry == null || entry.getBundle() != null || entry.getSize() != file.length() || entry.getSize() > S3ArtifactStore.MAX_COPY_SIZE) {
+            return null;
+        }
+        try {
+            // The ETag of a compressed object is that of the compressed content
+            boolean unchanged = entry.getEncoding() != null || entry.getChunks() != null
+                    ? entry.getMd5() != null && entry.getMd5().equalsIgnoreCase(ETags.md5(file))
+                    : store.hasContent(file, entry.getEtag());
+            if (!unchanged) {
+                return null;
+            }
+        } catch (IOException e) {
+            logger.warn(String.format("Could not compare %s with %s, uploading it - %s", localFile, store.pathString(previous.prefix + "/" + path), e.getMessage()));
+            return null;
+        }
+
+        if (entry.getChunks() != null) {
+            // The chunks are shared by every revision, there is nothing to copy
+            previous.copied.incrementAndGet();
+            context.printMessage(String.format("Reused the chunks of unchanged %s from %s", localFile, store.pathString(previous.prefix)));
+            return entry;
+        }
+
+        String from = previous.prefix + "/" + path;
+        String eTag = store.copy(from, destinationOnS3);
+        previous.copied.incrementAndGet();
+        context.printMessage(String.format("Copied unchanged %s from %s to %s", localFile, store.pathString(from), store.pathString(destinationOnS3)));
+        return new ManifestEntry(path, entry.getSize(), eTag != null ? eTag : entry.getEtag(), entry.getEncoding(), entry.getMd5());
+    }
+
+    private void putManifest(Context context, String destinationPrefix, S3ArtifactStore store, Manifest manifest) {
+        // Jobs can publish to the same revision more than once, keep what earlier runs uploaded
+        Manifest existing = store.getManifest(destinationPrefix);
+        if (existing != null) {
+            manifest = existing.merge(manifest);
+        }
+        store.putManifest(destinationPrefix, manifest);
+        context.printMessage(String.format("Pushed manifest of %d artifacts to %s", manifest.getEntries().size(), store.pathString(Manifest.key(destinationPrefix))));
+    }
+
     private ObjectMetadata metadata(GoEnvironment env) {
         String tracebackUrl = env.traceBackUrl();
         String user = env.triggeredUser();
@@ -124,21 +488,6 @@ public class PublishExecutor {
         return objectMetadata;
     }
 
-    private List<FilePathToTemplate> generateFilesToUpload(final String templateSoFar, final File fileToUpload) {
-        final String templateWithFolder = ensureKeySegmentValid(templateSoFar) + fileToUpload.getName(); // ensure it ends with a slash and add filename
-
-        if (fileToUpload.isDirectory()) {
-            return flatMap(fileToUpload.listFiles(), new Function<File, List<FilePathToTemplate>>() {
-                @Override
-                public List<FilePathToTemplate> apply(File file) {
-                    return generateFilesToUpload(templateWithFolder, file);
-                }
-            });
-        } else {
-            return Lists.of(new FilePathToTemplate(fileToUpload.getAbsolutePath(), templateWithFolder));
-        }
-    }
-
     private TaskExecutionResult envNotFound(String environmentVariable) {
         String message = String.format("%s environment variable is not set", environmentVariable);
         logger.error(message);
@@ -197,11 +546,19 @@ public class PublishExecutor {
 }
 
 /**
- * Represents the (AbsoluteFilePath -> S3KeyTemplate)
+ * The latest completed revision of the job, whose unchanged files are copied instead of uploaded
  */
-class FilePathToTemplate extends Tuple2<String, String> {
+class PreviousRevision {
+    final String prefix;
+    final Map<String, ManifestEntry> entries;
+    final AtomicInteger copied = new AtomicInteger();
+
+    PreviousRevision(String prefix, Manifest manifest) {
+        this.prefix = prefix;
+        this.entries = manifest.getEntriesByPath();
+    }
 
-    public FilePathToTemplate(String filePath, String template) {
-        super(filePath, template);
+    int getCopied() {
+        return copied.get();
     }
 }
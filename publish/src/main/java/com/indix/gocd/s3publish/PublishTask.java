@@ -22,9 +22,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import static com.indix.gocd.utils.Constants.ARTIFACTS_BUCKET;
-import static com.indix.gocd.utils.Constants.DESTINATION_PREFIX;
-import static com.indix.gocd.utils.Constants.SOURCEDESTINATIONS;
+import static com.indix.gocd.utils.Constants.*;
 import static com.indix.gocd.utils.utils.Lists.foreach;
 
 @Extension
@@ -127,6 +125,51 @@ public class PublishTask implements GoPlugin {
         artifactsBucket.put("required", false);
         config.put(ARTIFACTS_BUCKET, artifactsBucket);
 
+        HashMap concurrency = new HashMap();
+        concurrency.put("default-value", "1");
+        concurrency.put("required", false);
+        config.put(PUBLISH_CONCURRENCY, concurrency);
+
+        HashMap multipartPartSize = new HashMap();
+        multipartPartSize.put("default-value", "");
+        multipartPartSize.put("required", false);
+        config.put(MULTIPART_PART_SIZE, multipartPartSize);
+
+        HashMap multipartConcurrency = new HashMap();
+        multipartConcurrency.put("default-value", "");
+        multipartConcurrency.put("required", false);
+        config.put(MULTIPART_CONCURRENCY, multipartConcurrency);
+
+        HashMap delta = new HashMap();
+        delta.put("default-value", "");
+        delta.put("required", false);
+        config.put(PUBLISH_DELTA, delta);
+
+        HashMap excludes = new HashMap();
+        excludes.put("default-value", "");
+        excludes.put("required", false);
+        config.put(PUBLISH_EXCLUDES, excludes);
+
+        HashMap archive = new HashMap();
+        archive.put("default-value", "");
+        archive.put("required", false);
+        config.put(PUBLISH_ARCHIVE, archive);
+
+        HashMap compress = new HashMap();
+        compress.put("default-value", "");
+        compress.put("required", false);
+        config.put(PUBLISH_COMPRESS, compress);
+
+        HashMap bundleThreshold = new HashMap();
+        bundleThreshold.put("default-value", "");
+        bundleThreshold.put("required", false);
+        config.put(PUBLISH_BUNDLE_THRESHOLD, bundleThreshold);
+
+        HashMap chunked = new HashMap();
+        chunked.put("default-value", "");
+        chunked.put("required", false);
+        config.put(PUBLISH_CHUNKED, chunked);
+
         return createResponse(DefaultGoPluginApiResponse.SUCCESS_RESPONSE_CODE, config);
     }
 
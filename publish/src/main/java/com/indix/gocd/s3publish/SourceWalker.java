@@ -0,0 +1,159 @@
+package com.indix.gocd.s3publish;
+
+import org.apache.tools.ant.types.selectors.TokenizedPath;
+import org.apache.tools.ant.types.selectors.TokenizedPattern;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Walks the working directory once for the files matching any of a number of Ant style
+ * source patterns, handing each one over as soon as it is found instead of collecting
+ * them first.
+ *
+ * Matches the files DirectoryScanner would include, along with everything under the
+ * directories it would include, skipping the subtrees that cannot contain a match.
+ * Excluded files are left out, and so are excluded directories with everything under them.
+ */
+class SourceWalker {
+
+    interface Listener {
+        /**
+         * @param source          index of the matching source pattern
+         * @param file            a file to publish
+         * @param destinationPath where it goes under the destination, the name of the file or,
+         *                        for files under a matched directory, the path starting at that directory
+         */
+        void matched(int source, File file, String destinationPath);
+    }
+
+    private final Path baseDir;
+    private final TokenizedPattern[] includes;
+    private final TokenizedPattern[] excludes;
+
+    SourceWalker(String baseDir, List<String> sources, List<String> excludes) {
+        this.baseDir = new File(baseDir).toPath();
+        this.includes = compile(sources);
+        this.excludes = compile(excludes);
+    }
+
+    /**
+     * @return the number of files and directories matching each of the sources
+     */
+    int[] walk(final Listener listener) throws IOException {
+        final int[] matches = new int[includes.length];
+        final Deque<TokenizedPath> directories = new ArrayDeque<>();
+        // Directories matching a source that the walk is currently in
+        final Deque<MatchedDirectory> matchedDirectories = new ArrayDeque<>();
+
+        Files.walkFileTree(baseDir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (directories.isEmpty()) {
+                    directories.push(TokenizedPath.EMPTY_PATH);
+                    return FileVisitResult.CONTINUE;
+                }
+                TokenizedPath path = new TokenizedPath(directories.peek(), dir.getFileName().toString());
+                if (isExcluded(path)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                boolean couldMatchBelow = !matchedDirectories.isEmpty();
+                for (int source = 0; source < includes.length; source++) {
+                    if (includes[source].matchPath(path, true)) {
+                        matches[source]++;
+                        matchedDirectories.push(new MatchedDirectory(source, dir));
+                        couldMatchBelow = true;
+                    } else if (includes[source].matchStartOf(path, true)) {
+                        couldMatchBelow = true;
+                    }
+                }
+                if (!couldMatchBelow) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                directories.push(path);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                TokenizedPath path = new TokenizedPath(directories.peek(), file.getFileName().toString());
+                if (isExcluded(path)) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                for (int source = 0; source < includes.length; source++) {
+                    if (includes[source].matchPath(path, true)) {
+                        matches[source]++;
+                        listener.matched(source, file.toFile(), file.getFileName().toString());
+                    }
+                }
+                for (MatchedDirectory directory : matchedDirectories) {
+                    listener.matched(directory.source, file.toFile(), directory.pathOf(file));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // Unreadable entries and symbolic link loops are left out, like DirectoryScanner does
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                directories.pop();
+                while (!matchedDirectories.isEmpty() && matchedDirectories.peek().directory.equals(dir)) {
+                    matchedDirectories.pop();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return matches;
+    }
+
+    private boolean isExcluded(TokenizedPath path) {
+        for (TokenizedPattern exclude : excludes) {
+            if (exclude.matchPath(path, true)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static TokenizedPattern[] compile(List<String> patterns) {
+        TokenizedPattern[] compiled = new TokenizedPattern[patterns.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            String pattern = patterns.get(i).trim().replace('/', File.separatorChar).replace('\\', File.separatorChar);
+            if (pattern.endsWith(File.separator)) {
+                pattern += "**";
+            }
+            compiled[i] = new TokenizedPattern(pattern);
+        }
+        return compiled;
+    }
+
+    private static class MatchedDirectory {
+        private final int source;
+        private final Path directory;
+
+        MatchedDirectory(int source, Path directory) {
+            this.source = source;
+            this.directory = directory;
+        }
+
+        String pathOf(Path file) {
+            return directory.getParent().relativize(file).toString().replace(File.separatorChar, '/');
+        }
+    }
+}
@@ -1,24 +1,46 @@
 package com.indix.gocd.s3publish;
 
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.indix.gocd.models.Manifest;
+import com.indix.gocd.models.ManifestEntry;
 import com.indix.gocd.utils.Constants;
 import com.indix.gocd.utils.Context;
 import com.indix.gocd.utils.GoEnvironment;
 import com.indix.gocd.utils.TaskExecutionResult;
 import com.indix.gocd.utils.mocks.MockContext;
+import com.indix.gocd.utils.store.ArchiveUpload;
+import com.indix.gocd.utils.store.PublishJournal;
 import com.indix.gocd.utils.store.S3ArtifactStore;
 import com.indix.gocd.utils.utils.Maps;
+import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import static com.indix.gocd.utils.Constants.*;
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
 import static org.hamcrest.core.StringContains.containsString;
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.any;
@@ -172,9 +194,12 @@ public class PublishExecutorTest {
 
         assertTrue(result.isSuccessful());
 
-        final List<PutObjectRequest> allPutObjectRequests = getPutObjectRequests(mockClient, 3);
+        final List<PutObjectRequest> allPutObjectRequests = getPutObjectRequests(mockClient, 4);
 
-        PutObjectRequest metadataPutRequest = allPutObjectRequests.get(2);
+        PutObjectRequest manifestPutRequest = allPutObjectRequests.get(2);
+        assertThat(manifestPutRequest.getKey(), is("pipeline/stage/job/pipelineCounter.stageCounter/" + Manifest.FILE_NAME));
+
+        PutObjectRequest metadataPutRequest = allPutObjectRequests.get(3);
         Map<String, String> expectedUserMetadata = Maps.<String, String>builder()
                 .with(METADATA_USER, "Krishna")
                 .with(METADATA_TRACEBACK_URL, "http://go.server:8153/go/tab/build/detail/pipeline/pipelineCounter/stage/stageCounter/job")
@@ -293,6 +318,333 @@ public class PublishExecutorTest {
         assertNull(jarPutRequest.getMetadata());
     }
 
+    @Test
+    public void shouldWriteCompletionMarkerOnlyAfterAllParallelUploads() {
+        AmazonS3Client mockClient = mockClient();
+
+        Config config = new Config(Maps.builder()
+                .with(Constants.SOURCEDESTINATIONS, Maps.builder().with("value", "[{\"source\": \"target/*\", \"destination\": \"\"}, {\"source\": \"docs/*\", \"destination\": \"docs\"}]").build())
+                .with(Constants.DESTINATION_PREFIX, Maps.builder().with("value", "").build())
+                .with(Constants.ARTIFACTS_BUCKET, Maps.builder().with("value", "").build())
+                .with(Constants.PUBLISH_CONCURRENCY, Maps.builder().with("value", "4").build())
+                .build());
+
+        TaskExecutionResult result = executeMockPublish(
+                mockClient,
+                config,
+                new String[]{"a.jar", "b.jar", "c.jar"}
+        );
+
+        assertTrue(result.isSuccessful());
+
+        final List<PutObjectRequest> allPutObjectRequests = getPutObjectRequests(mockClient, 8);
+        PutObjectRequest metadataPutRequest = allPutObjectRequests.get(7);
+        assertThat(metadataPutRequest.getKey(), is("pipeline/stage/job/pipelineCounter.stageCounter/"));
+        assertThat(metadataPutRequest.getMetadata().getUserMetadata().get(COMPLETED), is(COMPLETED));
+    }
+
+    @Test
+    public void shouldWriteManifestOfAllUploadsBeforeCompletionMarker() throws Exception {
+        AmazonS3Client mockClient = mockClient();
+        PutObjectResult putObjectResult = new PutObjectResult();
+        putObjectResult.setETag("etag");
+        doReturn(putObjectResult).when(mockClient).putObject(any(PutObjectRequest.class));
+
+        Config config = new Config(Maps.builder()
+                .with(Constants.SOURCEDESTINATIONS, Maps.builder().with("value", "[{\"source\": \"target/*\", \"destination\": \"\"}, {\"source\": \"docs/*\", \"destination\": \"docs\"}]").build())
+                .with(Constants.DESTINATION_PREFIX, Maps.builder().with("value", "").build())
+                .with(Constants.ARTIFACTS_BUCKET, Maps.builder().with("value", "").build())
+                .build());
+
+        TaskExecutionResult result = executeMockPublish(
+                mockClient,
+                config,
+                new String[]{"README.md"}
+        );
+
+        assertTrue(result.isSuccessful());
+
+        final List<PutObjectRequest> allPutObjectRequests = getPutObjectRequests(mockClient, 4);
+        PutObjectRequest manifestPutRequest = allPutObjectRequests.get(2);
+        assertThat(manifestPutRequest.getKey(), is("pipeline/stage/job/pipelineCounter.stageCounter/" + Manifest.FILE_NAME));
+
+        Manifest manifest = Manifest.fromJson(IOUtils.toString(manifestPutRequest.getInputStream(), "UTF-8"));
+        List<String> paths = new ArrayList<>();
+        for (ManifestEntry entry : manifest.getEntries()) {
+            paths.add(entry.getPath());
+            assertThat(entry.getEtag(), is("etag"));
+        }
+        assertThat(paths, is(Arrays.asList("README.md", "docs/README.md")));
+    }
+
+    @Test
+    public void shouldNotWriteManifestWithDestinationPrefix() {
+        AmazonS3Client mockClient = mockClient();
+
+        Config config = new Config(Maps.builder()
+                .with(Constants.SOURCEDESTINATIONS, Maps.builder().with("value", "[{\"source\": \"target/*\", \"destination\": \"\"}]").build())
+                .with(Constants.DESTINATION_PREFIX, Maps.builder().with("value", "destinationPrefix").build())
+                .with(Constants.ARTIFACTS_BUCKET, Maps.builder().with("value", "").build())
+                .build());
+
+        TaskExecutionResult result = executeMockPublish(
+                mockClient,
+                config,
+                new String[]{"README.md"}
+        );
+
+        assertTrue(result.isSuccessful());
+        for (PutObjectRequest request : getPutObjectRequests(mockClient, 1)) {
+            assertThat(request.getKey(), is(not(containsString(Manifest.FILE_NAME))));
+        }
+    }
+
+    @Test
+    public void shouldNotWriteCompletionMarkerWhenAParallelUploadFails() {
+        AmazonS3Client mockClient = mockClient();
+        doThrow(new AmazonS3Exception("Access Denied")).when(mockClient).putObject(any(PutObjectRequest.class));
+
+        Config config = new Config(Maps.builder()
+                .with(Constants.SOURCEDESTINATIONS, Maps.builder().with("value", "[{\"source\": \"target/*\", \"destination\": \"\"}]").build())
+                .with(Constants.DESTINATION_PREFIX, Maps.builder().with("value", "").build())
+                .with(Constants.ARTIFACTS_BUCKET, Maps.builder().with("value", "").build())
+                .with(Constants.PUBLISH_CONCURRENCY, Maps.builder().with("value", "2").build())
+                .build());
+
+        TaskExecutionResult result = executeMockPublish(
+                mockClient,
+                config,
+                new String[]{"a.jar", "b.jar"}
+        );
+
+        assertFalse(result.isSuccessful());
+        assertThat(result.message(), containsString("Access Denied"));
+        ArgumentCaptor<PutObjectRequest> putObjectRequestArgumentCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(mockClient, atLeastOnce()).putObject(putObjectRequestArgumentCaptor.capture());
+        for (PutObjectRequest request : putObjectRequestArgumentCaptor.getAllValues()) {
+            assertThat(request.getKey(), is(not("pipeline/stage/job/pipelineCounter.stageCounter/")));
+        }
+    }
+
+    @Test
+    public void shouldSkipFilesAFailedRunOfTheSameRevisionAlreadyPushed() throws Exception {
+        File workingDir = new File("here");
+        workingDir.mkdirs();
+        Files.write(new File(workingDir, "a.jar").toPath(), "a".getBytes("UTF-8"));
+        Files.write(new File(workingDir, "b.jar").toPath(), "b".getBytes("UTF-8"));
+        Config config = new Config(Maps.builder()
+                .with(Constants.SOURCEDESTINATIONS, Maps.builder().with("value", "[{\"source\": \"*.jar\", \"destination\": \"\"}]").build())
+                .with(Constants.DESTINATION_PREFIX, Maps.builder().with("value", "").build())
+                .with(Constants.ARTIFACTS_BUCKET, Maps.builder().with("value", "").build())
+                .build());
+        try {
+            AmazonS3Client failingClient = mockClient();
+            doAnswer(new Answer<PutObjectResult>() {
+                @Override
+                public PutObjectResult answer(InvocationOnMock invocation) {
+                    PutObjectRequest request = (PutObjectRequest) invocation.getArguments()[0];
+                    if (request.getKey().endsWith("b.jar")) {
+                        throw new AmazonS3Exception("Connection reset");
+                    }
+                    return new PutObjectResult();
+                }
+            }).when(failingClient).putObject(any(PutObjectRequest.class));
+            assertFalse(executeMockPublish(failingClient, config, new String[]{"a.jar", "b.jar"}).isSuccessful());
+            assertTrue(new File(workingDir, PublishJournal.FILE_NAME).exists());
+
+            AmazonS3Client mockClient = mockClient();
+            TaskExecutionResult result = executeMockPublish(mockClient, config, new String[]{"a.jar", "b.jar"});
+
+            assertTrue(result.isSuccessful());
+            List<PutObjectRequest> requests = getPutObjectRequests(mockClient, 3);
+            assertThat(requests.get(0).getKey(), is("pipeline/stage/job/pipelineCounter.stageCounter/b.jar"));
+            assertThat(requests.get(2).getKey(), is("pipeline/stage/job/pipelineCounter.stageCounter/"));
+            Manifest manifest = Manifest.fromJson(IOUtils.toString(requests.get(1).getInputStream(), "UTF-8"));
+            assertThat(manifest.getEntries().size(), is(2));
+            assertFalse(new File(workingDir, PublishJournal.FILE_NAME).exists());
+        } finally {
+            new File(workingDir, "a.jar").delete();
+            new File(workingDir, "b.jar").delete();
+            new File(workingDir, PublishJournal.FILE_NAME).delete();
+        }
+    }
+
+    @Test
+    public void shouldCopyFilesUnchangedSinceThePreviousRevision() throws Exception {
+        AmazonS3Client mockClient = mockClient();
+        File workingDir = Files.createTempDirectory("delta-publish").toFile();
+        Files.write(new File(workingDir, "README.md").toPath(), "readme".getBytes("UTF-8"));
+        Files.write(new File(workingDir, "app.jar").toPath(), "changed".getBytes("UTF-8"));
+
+        ObjectListing revisions = new ObjectListing();
+        revisions.getCommonPrefixes().add("pipeline/stage/job/1.1/");
+        doReturn(revisions).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        ObjectMetadata completed = new ObjectMetadata();
+        completed.addUserMetadata(COMPLETED, COMPLETED);
+        doReturn(completed).when(mockClient).getObjectMetadata(testS3Bucket, "pipeline/stage/job/1.1/");
+        doReturn(completed).when(mockClient).getObjectMetadata(any(GetObjectMetadataRequest.class));
+        Manifest previousManifest = new Manifest()
+                .add(new ManifestEntry("README.md", 6, "3905d7917f2b3429490b01cfb60d8f5b"))
+                .add(new ManifestEntry("app.jar", 7, "3905d7917f2b3429490b01cfb60d8f5b"));
+        S3Object manifestObject = new S3Object();
+        manifestObject.setObjectContent(new ByteArrayInputStream(previousManifest.toJson().getBytes("UTF-8")));
+        doReturn(manifestObject).when(mockClient).getObject(testS3Bucket, "pipeline/stage/job/1.1/" + Manifest.FILE_NAME);
+
+        Config config = new Config(Maps.builder()
+                .with(Constants.SOURCEDESTINATIONS, Maps.builder().with("value", "[{\"source\": \"*\", \"destination\": \"\"}]").build())
+                .with(Constants.DESTINATION_PREFIX, Maps.builder().with("value", "").build())
+                .with(Constants.ARTIFACTS_BUCKET, Maps.builder().with("value", "").build())
+                .with(Constants.PUBLISH_DELTA, Maps.builder().with("value", "true").build())
+                .build());
+        store = new S3ArtifactStore(mockClient, testS3Bucket);
+        doReturn(store).when(publishExecutor).getS3ArtifactStore(any(GoEnvironment.class), eq(testS3Bucket));
+        stubSourceFiles(new String[]{"README.md", "app.jar"});
+
+        TaskExecutionResult result = publishExecutor.execute(config, new MockContext(Maps.<String, Object>builder()
+                .with("environmentVariables", mockEnvironmentVariables.build())
+                .with("workingDirectory", workingDir.getPath())
+                .build()));
+
+        assertTrue(result.isSuccessful());
+        ArgumentCaptor<CopyObjectRequest> copyCaptor = ArgumentCaptor.forClass(CopyObjectRequest.class);
+        verify(mockClient, times(1)).copyObject(copyCaptor.capture());
+        assertThat(copyCaptor.getValue().getSourceKey(), is("pipeline/stage/job/1.1/README.md"));
+        assertThat(copyCaptor.getValue().getDestinationKey(), is("pipeline/stage/job/pipelineCounter.stageCounter/README.md"));
+
+        List<PutObjectRequest> allPutObjectRequests = getPutObjectRequests(mockClient, 3);
+        assertThat(allPutObjectRequests.get(0).getKey(), is("pipeline/stage/job/pipelineCounter.stageCounter/app.jar"));
+    }
+
+    @Test
+    public void shouldPublishEachSourceAsOneArchiveInArchiveMode() throws Exception {
+        AmazonS3Client mockClient = mockClient();
+        PutObjectResult putObjectResult = new PutObjectResult();
+        putObjectResult.setETag("etag");
+        doReturn(putObjectResult).when(mockClient).putObject(any(PutObjectRequest.class));
+        File workingDir = Files.createTempDirectory("archive-publish").toFile();
+        Files.write(new File(workingDir, "README.md").toPath(), "readme".getBytes("UTF-8"));
+        Files.write(new File(workingDir, "app.jar").toPath(), "app".getBytes("UTF-8"));
+
+        Config config = new Config(Maps.builder()
+                .with(Constants.SOURCEDESTINATIONS, Maps.builder().with("value", "[{\"source\": \"target/*\", \"destination\": \"bin\"}]").build())
+                .with(Constants.DESTINATION_PREFIX, Maps.builder().with("value", "").build())
+                .with(Constants.ARTIFACTS_BUCKET, Maps.builder().with("value", "").build())
+                .with(Constants.PUBLISH_ARCHIVE, Maps.builder().with("value", ARCHIVE_MODE_TAR_GZ).build())
+                .build());
+        store = new S3ArtifactStore(mockClient, testS3Bucket);
+        doReturn(store).when(publishExecutor).getS3ArtifactStore(any(GoEnvironment.class), eq(testS3Bucket));
+        stubSourceFiles(new String[]{"README.md", "app.jar"});
+
+        TaskExecutionResult result = publishExecutor.execute(config, new MockContext(Maps.<String, Object>builder()
+                .with("environmentVariables", mockEnvironmentVariables.build())
+                .with("workingDirectory", workingDir.getPath())
+                .build()));
+
+        assertTrue(result.isSuccessful());
+        List<PutObjectRequest> allPutObjectRequests = getPutObjectRequests(mockClient, 3);
+        String archiveName = ArchiveUpload.fileName("target/*", true);
+        assertThat(allPutObjectRequests.get(0).getKey(), is("pipeline/stage/job/pipelineCounter.stageCounter/bin/" + archiveName));
+
+        Manifest manifest = Manifest.fromJson(IOUtils.toString(allPutObjectRequests.get(1).getInputStream(), "UTF-8"));
+        assertThat(manifest.getEntries().size(), is(1));
+        assertThat(manifest.getEntries().get(0).getPath(), is("bin/" + archiveName));
+    }
+
+    @Test
+    public void shouldCompressOnlyCompressibleFiles() throws Exception {
+        AmazonS3Client mockClient = mockClient();
+        File workingDir = Files.createTempDirectory("compressed-publish").toFile();
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            log.append("INFO build step ").append(i).append(" done\n");
+        }
+        Files.write(new File(workingDir, "build.log").toPath(), log.toString().getBytes("UTF-8"));
+        byte[] random = new byte[64 * 1024];
+        new Random(42).nextBytes(random);
+        Files.write(new File(workingDir, "app.jar").toPath(), random);
+
+        Config config = new Config(Maps.builder()
+                .with(Constants.SOURCEDESTINATIONS, Maps.builder().with("value", "[{\"source\": \"*\", \"destination\": \"\"}]").build())
+                .with(Constants.DESTINATION_PREFIX, Maps.builder().with("value", "").build())
+                .with(Constants.ARTIFACTS_BUCKET, Maps.builder().with("value", "").build())
+                .with(Constants.PUBLISH_COMPRESS, Maps.builder().with("value", "true").build())
+                .build());
+        store = new S3ArtifactStore(mockClient, testS3Bucket);
+        doReturn(store).when(publishExecutor).getS3ArtifactStore(any(GoEnvironment.class), eq(testS3Bucket));
+        stubSourceFiles(new String[]{"build.log", "app.jar"});
+
+        TaskExecutionResult result = publishExecutor.execute(config, new MockContext(Maps.<String, Object>builder()
+                .with("environmentVariables", mockEnvironmentVariables.build())
+                .with("workingDirectory", workingDir.getPath())
+                .build()));
+
+        assertTrue(result.isSuccessful());
+        List<PutObjectRequest> allPutObjectRequests = getPutObjectRequests(mockClient, 4);
+        // The larger file is started first
+        assertThat(allPutObjectRequests.get(0).getKey(), is("pipeline/stage/job/pipelineCounter.stageCounter/app.jar"));
+        assertNull(allPutObjectRequests.get(0).getMetadata().getContentEncoding());
+        assertThat(allPutObjectRequests.get(1).getKey(), is("pipeline/stage/job/pipelineCounter.stageCounter/build.log"));
+        assertThat(allPutObjectRequests.get(1).getMetadata().getContentEncoding(), is("gzip"));
+
+        Map<String, ManifestEntry> entries = Manifest.fromJson(IOUtils.toString(allPutObjectRequests.get(2).getInputStream(), "UTF-8")).getEntriesByPath();
+        assertThat(entries.get("build.log").getEncoding(), is("gzip"));
+        assertThat(entries.get("build.log").getSize(), is((long) log.length()));
+        assertNull(entries.get("app.jar").getEncoding());
+    }
+
+    @Test
+    public void shouldBundleFilesBelowTheThreshold() throws Exception {
+        AmazonS3Client mockClient = mockClient();
+        File workingDir = Files.createTempDirectory("bundled-publish").toFile();
+        Files.write(new File(workingDir, "README.md").toPath(), "readme".getBytes("UTF-8"));
+        Files.write(new File(workingDir, "NOTICE").toPath(), "notice".getBytes("UTF-8"));
+        Files.write(new File(workingDir, "app.jar").toPath(), new byte[2048]);
+
+        Config config = new Config(Maps.builder()
+                .with(Constants.SOURCEDESTINATIONS, Maps.builder().with("value", "[{\"source\": \"*\", \"destination\": \"docs\"}]").build())
+                .with(Constants.DESTINATION_PREFIX, Maps.builder().with("value", "").build())
+                .with(Constants.ARTIFACTS_BUCKET, Maps.builder().with("value", "").build())
+                .with(Constants.PUBLISH_BUNDLE_THRESHOLD, Maps.builder().with("value", "1").build())
+                .build());
+        store = new S3ArtifactStore(mockClient, testS3Bucket);
+        doReturn(store).when(publishExecutor).getS3ArtifactStore(any(GoEnvironment.class), eq(testS3Bucket));
+        stubSourceFiles(new String[]{"README.md", "app.jar", "NOTICE"});
+
+        TaskExecutionResult result = publishExecutor.execute(config, new MockContext(Maps.<String, Object>builder()
+                .with("environmentVariables", mockEnvironmentVariables.build())
+                .with("workingDirectory", workingDir.getPath())
+                .build()));
+
+        assertTrue(result.isSuccessful());
+        List<PutObjectRequest> allPutObjectRequests = getPutObjectRequests(mockClient, 4);
+        assertThat(allPutObjectRequests.get(0).getKey(), is("pipeline/stage/job/pipelineCounter.stageCounter/docs/app.jar"));
+        assertThat(allPutObjectRequests.get(1).getKey(), containsString("pipeline/stage/job/pipelineCounter.stageCounter/.gocd-s3-bundles/"));
+        assertThat(IOUtils.toString(allPutObjectRequests.get(1).getInputStream(), "UTF-8"), is("readmenotice"));
+
+        Manifest manifest = Manifest.fromJson(IOUtils.toString(allPutObjectRequests.get(2).getInputStream(), "UTF-8"));
+        Map<String, ManifestEntry> entries = manifest.getEntriesByPath();
+        assertThat(entries.get("docs/README.md").getBundle(), is(entries.get("docs/NOTICE").getBundle()));
+        assertThat(entries.get("docs/README.md").getOffset(), is(0L));
+        assertThat(entries.get("docs/NOTICE").getOffset(), is(6L));
+        assertNull(entries.get("docs/app.jar").getBundle());
+        assertThat(entries.get(entries.get("docs/NOTICE").getBundle()).getSize(), is(12L));
+    }
+
+    @Test
+    public void shouldFailOnUnknownArchiveMode() {
+        Config config = new Config(Maps.builder()
+                .with(Constants.SOURCEDESTINATIONS, Maps.builder().with("value", "[{\"source\": \"target/*\", \"destination\": \"\"}]").build())
+                .with(Constants.DESTINATION_PREFIX, Maps.builder().with("value", "").build())
+                .with(Constants.ARTIFACTS_BUCKET, Maps.builder().with("value", "").build())
+                .with(Constants.PUBLISH_ARCHIVE, Maps.builder().with("value", "zip").build())
+                .build());
+
+        TaskExecutionResult result = executeMockPublish(mockClient(), config, new String[]{"README.md"});
+
+        assertFalse(result.isSuccessful());
+        assertThat(result.message(), is("Archive should be either tar or tar.gz, was zip"));
+    }
+
     private TaskExecutionResult executeMockPublish(final AmazonS3Client mockClient, Config config, String[] files) {
         return executeMockPublish(mockClient, config, files, mockEnvironmentVariables);
     }
@@ -304,11 +656,34 @@ public class PublishExecutorTest {
         store = new S3ArtifactStore(mockClient, testS3Bucket);
 
         doReturn(store).when(publishExecutor).getS3ArtifactStore(any(GoEnvironment.class), eq(testS3Bucket));
-        doReturn(files).when(publishExecutor).parseSourcePath(anyString(), anyString());
+        stubSourceFiles(files);
 
         return publishExecutor.execute(config, mockContext(mockVariables));
     }
 
+    private void stubSourceFiles(final String[] files) {
+        try {
+            doAnswer(new Answer<int[]>() {
+                @Override
+                public int[] answer(InvocationOnMock invocation) {
+                    String workingDir = (String) invocation.getArguments()[0];
+                    List<?> sources = (List<?>) invocation.getArguments()[1];
+                    SourceWalker.Listener listener = (SourceWalker.Listener) invocation.getArguments()[3];
+                    int[] matches = new int[sources.size()];
+                    for (int source = 0; source < matches.length; source++) {
+                        for (String file : files) {
+                            listener.matched(source, new File(workingDir, file), file);
+                        }
+                        matches[source] = files.length;
+                    }
+                    return matches;
+                }
+            }).when(publishExecutor).walkSources(anyString(), anyListOf(SourceDestination.class), anyListOf(String.class), any(SourceWalker.Listener.class));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private List<PutObjectRequest> getPutObjectRequests(AmazonS3Client mockClient, int expectedRequestsCount) {
         ArgumentCaptor<PutObjectRequest> putObjectRequestArgumentCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
         verify(mockClient, times(expectedRequestsCount)).putObject(putObjectRequestArgumentCaptor.capture());
@@ -0,0 +1,119 @@
+package com.indix.gocd.s3publish;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+public class SourceWalkerTest {
+    private File workingDir;
+
+    @Before
+    public void setUp() throws IOException {
+        workingDir = Files.createTempDirectory("source-walker").toFile();
+        create("README.md");
+        create("target/app.jar");
+        create("target/classes/com/indix/App.class");
+        create("target/classes/META-INF/MANIFEST.MF");
+        create("logs/build.log");
+        create("logs/old/build.log");
+    }
+
+    @Test
+    public void shouldMatchFilesAndEverythingUnderMatchedDirectories() throws IOException {
+        Set<String> matched = new HashSet<>();
+        int matches = walk("target/*", matched);
+
+        assertThat(matches, is(2));
+        assertThat(matched, is(setOf("target/app.jar -> app.jar",
+                "target/classes/com/indix/App.class -> classes/com/indix/App.class",
+                "target/classes/META-INF/MANIFEST.MF -> classes/META-INF/MANIFEST.MF")));
+    }
+
+    @Test
+    public void shouldMatchAsManyEntriesAsDirectoryScanner() throws IOException {
+        for (String pattern : new String[]{"*", "**/*.log", "logs/", "target/**", "target/classes", "missing/*"}) {
+            DirectoryScanner scanner = new DirectoryScanner();
+            scanner.setBasedir(workingDir);
+            scanner.setIncludes(new String[]{pattern});
+            scanner.scan();
+            int expected = scanner.getIncludedFilesCount() + scanner.getIncludedDirsCount();
+
+            assertEquals(pattern, expected, walk(pattern, new HashSet<String>()));
+        }
+    }
+
+    @Test
+    public void shouldMatchEverySourceInOneWalk() throws IOException {
+        final Set<String> matched = new HashSet<>();
+        int[] matches = new SourceWalker(workingDir.getPath(), Arrays.asList("*.md", "logs/*", "**/*.log"), Collections.<String>emptyList())
+                .walk(recorder(matched));
+
+        assertThat(matches[0], is(1));
+        assertThat(matches[1], is(2));
+        assertThat(matches[2], is(2));
+        assertThat(matched, is(setOf("0: README.md -> README.md",
+                "1: logs/build.log -> build.log",
+                "1: logs/old/build.log -> old/build.log",
+                "2: logs/build.log -> build.log",
+                "2: logs/old/build.log -> build.log")));
+    }
+
+    @Test
+    public void shouldLeaveOutExcludedFilesAndDirectories() throws IOException {
+        final Set<String> matched = new HashSet<>();
+        int[] matches = new SourceWalker(workingDir.getPath(), Arrays.asList("target/*", "**/*.log"), Arrays.asList("**/META-INF", "logs/old/*"))
+                .walk(recorder(matched));
+
+        assertThat(matches[0], is(2));
+        assertThat(matches[1], is(1));
+        assertThat(matched, is(setOf("0: target/app.jar -> app.jar",
+                "0: target/classes/com/indix/App.class -> classes/com/indix/App.class",
+                "1: logs/build.log -> build.log")));
+    }
+
+    private int walk(String pattern, final Set<String> matched) throws IOException {
+        final String base = workingDir.getPath() + File.separator;
+        return new SourceWalker(workingDir.getPath(), Collections.singletonList(pattern), Collections.<String>emptyList()).walk(new SourceWalker.Listener() {
+            @Override
+            public void matched(int source, File file, String destinationPath) {
+                matched.add(file.getPath().substring(base.length()).replace(File.separatorChar, '/') + " -> " + destinationPath);
+            }
+        })[0];
+    }
+
+    private SourceWalker.Listener recorder(final Set<String> matched) {
+        final String base = workingDir.getPath() + File.separator;
+        return new SourceWalker.Listener() {
+            @Override
+            public void matched(int source, File file, String destinationPath) {
+                matched.add(source + ": " + file.getPath().substring(base.length()).replace(File.separatorChar, '/') + " -> " + destinationPath);
+            }
+        };
+    }
+
+    private void create(String path) throws IOException {
+        File file = new File(workingDir, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), path.getBytes("UTF-8"));
+    }
+
+    private Set<String> setOf(String... values) {
+        Set<String> set = new HashSet<>();
+        for (String value : values) {
+            set.add(value);
+        }
+        return set;
+    }
+}
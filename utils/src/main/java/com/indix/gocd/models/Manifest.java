@@ -0,0 +1,63 @@
+package com.indix.gocd.models;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every object published under a revision prefix along with its size and ETag.
+ *
+ * Written by the publish task next to the completion marker, so that fetching a completed
+ * revision does not have to list the prefix again.
+ */
+public class Manifest {
+    public static final String FILE_NAME = ".gocd-s3-manifest.json";
+    private static final Gson gson = new GsonBuilder().create();
+
+    private List<ManifestEntry> entries = new ArrayList<>();
+
+    public synchronized Manifest add(ManifestEntry entry) {
+        entries.add(entry);
+        return this;
+    }
+
+    public synchronized List<ManifestEntry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    public Map<String, ManifestEntry> getEntriesByPath() {
+        Map<String, ManifestEntry> byPath = new LinkedHashMap<>();
+        for (ManifestEntry entry : getEntries()) {
+            byPath.put(entry.getPath(), entry);
+        }
+        return byPath;
+    }
+
+    /**
+     * @return a manifest with the entries of both, the entries of <code>other</code> winning for the same path
+     */
+    public Manifest merge(Manifest other) {
+        Map<String, ManifestEntry> byPath = getEntriesByPath();
+        byPath.putAll(other.getEntriesByPath());
+        Manifest merged = new Manifest();
+        merged.entries.addAll(byPath.values());
+        return merged;
+    }
+
+    public static String key(String revisionPrefix) {
+        return String.format("%s/%s", revisionPrefix, FILE_NAME);
+    }
+
+    public synchronized String toJson() {
+        return gson.toJson(this);
+    }
+
+    public static Manifest fromJson(String json) {
+        return gson.fromJson(json, Manifest.class);
+    }
+}
@@ -0,0 +1,122 @@
+package com.indix.gocd.models;
+
+import java.util.List;
+
+/**
+ * A single object of a published revision, as recorded in its {@link Manifest}
+ */
+public class ManifestEntry {
+    private String path;
+    private long size;
+    private String etag;
+    private String encoding;
+    private String md5;
+    private String bundle;
+    private Long offset;
+    private List<Chunk> chunks;
+
+    public ManifestEntry(String path, long size, String etag) {
+        this.path = path;
+        this.size = size;
+        this.etag = etag;
+    }
+
+    /**
+     * Entry of an object stored with a content encoding, whose ETag is that of the encoded content
+     *
+     * @param size size of the content once decoded
+     * @param md5  MD5 of the content once decoded
+     */
+    public ManifestEntry(String path, long size, String etag, String encoding, String md5) {
+        this(path, size, etag);
+        this.encoding = encoding;
+        this.md5 = md5;
+    }
+
+    /**
+     * Marks the entry as stored inside a bundle object rather than as an object of its own
+     *
+     * @param bundle path of the bundle object relative to the revision prefix
+     * @param offset where the content of the entry starts in the bundle
+     */
+    public ManifestEntry withBundle(String bundle, long offset) {
+        this.bundle = bundle;
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * Marks the entry as stored in the shared chunk store rather than as an object of its own
+     *
+     * @param chunks the chunks making up the content, in order
+     */
+    public ManifestEntry withChunks(List<Chunk> chunks) {
+        this.chunks = chunks;
+        return this;
+    }
+
+    /**
+     * @return path of the object relative to the revision prefix
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * @return the Content-Encoding of the object, null when it is stored as is
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public String getMd5() {
+        return md5;
+    }
+
+    /**
+     * @return path of the bundle holding the content, null when the entry is an object of its own
+     */
+    public String getBundle() {
+        return bundle;
+    }
+
+    public long getOffset() {
+        return offset != null ? offset : 0;
+    }
+
+    /**
+     * @return the chunks making up the content, null when the entry is not stored in the chunk store
+     */
+    public List<Chunk> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * A piece of content in the chunk store, addressed by the SHA-256 of its bytes
+     */
+    public static class Chunk {
+        private String hash;
+        private long size;
+
+        public Chunk(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+}
@@ -6,4 +6,5 @@ public class ResponseMetadataConstants {
     public static final String REVISION_COMMENT = "revision_comment";
     public static final String COMPLETED = "completed";
     public static final String GO_PIPELINE_LABEL = "go_pipeline_label";
+    public static final String MD5 = "md5";
 }
@@ -4,19 +4,45 @@ public class Constants {
     public static final String METADATA_USER = "user";
     public static final String METADATA_TRACEBACK_URL = "traceback_url";
     public static final String COMPLETED = "completed";
+    public static final String METADATA_MD5 = "md5";
 
     public static final String GO_ARTIFACTS_S3_BUCKET = "GO_ARTIFACTS_S3_BUCKET";
     public static final String GO_SERVER_DASHBOARD_URL = "GO_SERVER_DASHBOARD_URL";
+    public static final String GO_ARTIFACTS_S3_CACHE_DIR = "GO_ARTIFACTS_S3_CACHE_DIR";
+    public static final String GO_ARTIFACTS_S3_CACHE_SIZE = "GO_ARTIFACTS_S3_CACHE_SIZE";
+    public static final String GO_ARTIFACTS_S3_DRY_RUN = "GO_ARTIFACTS_S3_DRY_RUN";
+    public static final String GO_ARTIFACTS_S3_UPLOAD_LIMIT = "GO_ARTIFACTS_S3_UPLOAD_LIMIT";
+    public static final String GO_ARTIFACTS_S3_DOWNLOAD_LIMIT = "GO_ARTIFACTS_S3_DOWNLOAD_LIMIT";
+    public static final String GO_ARTIFACTS_S3_BUFFER_MEMORY = "GO_ARTIFACTS_S3_BUFFER_MEMORY";
 
     public static final String SOURCEDESTINATIONS = "sourceDestinations";
     public static final String DESTINATION_PREFIX = "destinationPrefix";
     public static final String ARTIFACTS_BUCKET = "artifactsBucket";
+    public static final String PUBLISH_CONCURRENCY = "concurrency";
+    public static final String MULTIPART_PART_SIZE = "multipartPartSize";
+    public static final String MULTIPART_CONCURRENCY = "multipartConcurrency";
+    public static final String PUBLISH_DELTA = "delta";
+    public static final String PUBLISH_EXCLUDES = "excludes";
+    public static final String PUBLISH_ARCHIVE = "archive";
+    public static final String PUBLISH_COMPRESS = "compress";
+    public static final String PUBLISH_BUNDLE_THRESHOLD = "bundleThreshold";
+    public static final String PUBLISH_CHUNKED = "chunked";
+    public static final String CONCURRENCY_AUTO = "auto";
+    public static final String ARCHIVE_MODE_TAR = "tar";
+    public static final String ARCHIVE_MODE_TAR_GZ = "tar.gz";
 
     public static final String AWS_SECRET_ACCESS_KEY = "AWS_SECRET_ACCESS_KEY";
     public static final String AWS_ACCESS_KEY_ID = "AWS_ACCESS_KEY_ID";
     public static final String AWS_REGION = "AWS_REGION";
+    public static final String AWS_S3_ENDPOINT = "AWS_S3_ENDPOINT";
     public static final String AWS_USE_IAM_ROLE = "AWS_USE_IAM_ROLE";
     public static final String AWS_STORAGE_CLASS = "AWS_STORAGE_CLASS";
+    public static final String AWS_MULTIPART_THRESHOLD = "AWS_MULTIPART_THRESHOLD";
+    public static final String AWS_MULTIPART_PART_SIZE = "AWS_MULTIPART_PART_SIZE";
+    public static final String AWS_MULTIPART_CONCURRENCY = "AWS_MULTIPART_CONCURRENCY";
+    public static final String AWS_RANGED_GET_THRESHOLD = "AWS_RANGED_GET_THRESHOLD";
+    public static final String AWS_RANGED_GET_SIZE = "AWS_RANGED_GET_SIZE";
+    public static final String AWS_RANGED_GET_CONCURRENCY = "AWS_RANGED_GET_CONCURRENCY";
     public static final String STORAGE_CLASS_STANDARD = "standard";
     public static final String STORAGE_CLASS_STANDARD_IA = "standard-ia";
     public static final String STORAGE_CLASS_RRS = "rrs";
@@ -34,6 +60,10 @@ public class Constants {
     public static final String SOURCE_PREFIX = "SourcePrefix";
     public static final String DESTINATION = "Destination";
     public static final String JOB_NAME = "JobName";
+    public static final String FETCH_CONCURRENCY = "Concurrency";
+    public static final String FETCH_SYNC = "Sync";
+    public static final String SYNC_MODE_SYNC = "sync";
+    public static final String SYNC_MODE_PRUNE = "prune";
 
     public static final String REQUIRED_FIELD_MESSAGE = "This field is required";
 }
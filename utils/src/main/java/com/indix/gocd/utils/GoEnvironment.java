@@ -52,6 +52,17 @@ public class GoEnvironment {
         return !has(name);
     }
 
+    /**
+     * Parses a number out of a variable or setting, failing with its name when it isn't one
+     */
+    public static int toNumber(String value, String name) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("%s should be a number, was %s", name, value));
+        }
+    }
+
     public String traceBackUrl() {
         String serverUrl = get(GO_SERVER_DASHBOARD_URL);
         String pipelineName = get("GO_PIPELINE_NAME");
@@ -99,6 +110,13 @@ public class GoEnvironment {
         return String.format("%s/%s/%s/%s.%s", pipeline, stageName, jobName, pipelineCounter, stageCounter);
     }
 
+    /**
+     * @return whether tasks should only print what they would transfer
+     */
+    public boolean isDryRun() {
+        return has(GO_ARTIFACTS_S3_DRY_RUN) && BooleanUtils.toBoolean(get(GO_ARTIFACTS_S3_DRY_RUN));
+    }
+
     private static final List<String> validUseIamRoleValues = new ArrayList<String>(Arrays.asList("true", "false", "yes", "no", "on", "off"));
     public boolean hasAWSUseIamRole() {
         if (!has(AWS_USE_IAM_ROLE)) {
@@ -0,0 +1,188 @@
+package com.indix.gocd.utils.store;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Finds how many transfers to run at the same time while they run, increasing additively
+ * and decreasing multiplicatively (AIMD) the way TCP congestion control does.
+ *
+ * Transfers are measured in windows of as many transfers as are allowed to run at once.
+ * After a window that used every allowed transfer, one more is allowed when the throughput
+ * of the window beat the best one so far. When S3 throttles, answering 503 SlowDown, half
+ * as many are allowed, and when the time per byte grows to more than twice the best seen
+ * three quarters as many are. Throughput is probed again from there.
+ */
+public class AdaptiveConcurrency {
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+    public static final int DEFAULT_MAX_LIMIT = 64;
+    private static final double IMPROVEMENT = 1.05;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double LATENCY_BACKOFF = 0.75;
+    private static final double THROTTLING_BACKOFF = 0.5;
+
+    private final int maxLimit;
+    private int limit;
+    private int active;
+    private int peakLimit;
+    private int throttledCount;
+
+    private long windowStart = -1;
+    private long windowBytes;
+    private long windowNanos;
+    private int windowCount;
+    private int windowPeakActive;
+    private double bestThroughput;
+    private double bestNanosPerByte = Double.MAX_VALUE;
+    private boolean backedOff;
+
+    public AdaptiveConcurrency() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MAX_LIMIT);
+    }
+
+    public AdaptiveConcurrency(int initialLimit, int maxLimit) {
+        if (initialLimit < 1 || maxLimit < initialLimit) {
+            throw new IllegalArgumentException(String.format("Invalid adaptive concurrency, should start between 1 and %d, was %d", maxLimit, initialLimit));
+        }
+        this.limit = initialLimit;
+        this.maxLimit = maxLimit;
+        this.peakLimit = initialLimit;
+    }
+
+    /**
+     * @return whether S3 turned the request down because requests are sent too fast
+     */
+    public static boolean isThrottling(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AmazonServiceException) {
+                AmazonServiceException serviceException = (AmazonServiceException) cause;
+                String errorCode = serviceException.getErrorCode();
+                if (serviceException.getStatusCode() == 503 || serviceException.getStatusCode() == 429
+                        || "SlowDown".equals(errorCode) || "Throttling".equals(errorCode) || "RequestLimitExceeded".equals(errorCode)) {
+                    return true;
+                }
+            }
+            if (cause instanceof TransferFailedException) {
+                // Throttled ranges or parts of a transfer throttle the transfer
+                for (Exception failure : ((TransferFailedException) cause).getFailures().values()) {
+                    if (isThrottling(failure)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits until one more transfer is allowed to run
+     */
+    public synchronized void acquire() {
+        while (active >= limit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AbortedException("Interrupted while waiting for a transfer slot", e);
+            }
+        }
+        active++;
+        if (windowStart == -1) {
+            windowStart = now();
+        }
+        windowPeakActive = Math.max(windowPeakActive, active);
+    }
+
+    /**
+     * Releases a transfer that completed, which counts towards the throughput of the window
+     */
+    public synchronized void succeeded(long bytes, long nanos) {
+        release();
+        windowBytes += bytes;
+        windowNanos += nanos;
+        windowCount++;
+        if (windowCount >= limit) {
+            closeWindow();
+        }
+    }
+
+    public synchronized void throttled() {
+        release();
+        throttledCount++;
+        // Transfers started before backing off are throttled too, they don't call for backing off again
+        if (!backedOff) {
+            decrease(THROTTLING_BACKOFF);
+        }
+    }
+
+    /**
+     * Releases a transfer that failed for any other reason, which says nothing about throughput
+     */
+    public synchronized void failed() {
+        release();
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getPeakLimit() {
+        return peakLimit;
+    }
+
+    public synchronized int getThrottledCount() {
+        return throttledCount;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    long now() {
+        return System.nanoTime();
+    }
+
+    private void closeWindow() {
+        long elapsed = Math.max(1, now() - windowStart);
+        double throughput = (double) windowBytes / elapsed;
+        // Every request counts as some bytes, so that windows of small files have a time per byte too
+        double nanosPerByte = (double) windowNanos / (windowBytes + windowCount * TransferPlan.REQUEST_COST);
+        boolean saturated = windowPeakActive >= limit;
+        resetWindow();
+        backedOff = false;
+
+        if (nanosPerByte > bestNanosPerByte * LATENCY_TOLERANCE) {
+            decrease(LATENCY_BACKOFF);
+            return;
+        }
+        bestNanosPerByte = Math.min(bestNanosPerByte, nanosPerByte);
+        if (saturated && throughput > bestThroughput * IMPROVEMENT && limit < maxLimit) {
+            limit++;
+            peakLimit = Math.max(peakLimit, limit);
+            notifyAll();
+        }
+        bestThroughput = Math.max(bestThroughput, throughput);
+    }
+
+    private void decrease(double factor) {
+        limit = Math.max(1, (int) (limit * factor));
+        backedOff = true;
+        // Throughput and latency are measured anew at the new limit
+        bestThroughput = 0;
+        bestNanosPerByte = Double.MAX_VALUE;
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        windowStart = active > 0 ? now() : -1;
+        windowBytes = 0;
+        windowNanos = 0;
+        windowCount = 0;
+        windowPeakActive = active;
+    }
+
+    private void release() {
+        active--;
+        notifyAll();
+    }
+}
@@ -0,0 +1,28 @@
+package com.indix.gocd.utils.store;
+
+import com.indix.gocd.utils.GoEnvironment;
+
+import static com.indix.gocd.utils.Constants.*;
+import static com.indix.gocd.utils.GoEnvironment.toNumber;
+
+/**
+ * The bandwidth limits and buffer memory shared by every transfer in the agent
+ */
+public class AgentLimits {
+    private AgentLimits() {
+    }
+
+    /**
+     * Sets the limits from the environment of a task. Every task sets them, also when absent,
+     * so a limit is dropped once the tasks stop defining it.
+     */
+    public static void apply(GoEnvironment env) {
+        BandwidthLimiter.uploads().setRate(megabytes(env, GO_ARTIFACTS_S3_UPLOAD_LIMIT, 0));
+        BandwidthLimiter.downloads().setRate(megabytes(env, GO_ARTIFACTS_S3_DOWNLOAD_LIMIT, 0));
+        BufferPool.shared().setCapacity(megabytes(env, GO_ARTIFACTS_S3_BUFFER_MEMORY, BufferPool.DEFAULT_CAPACITY));
+    }
+
+    private static long megabytes(GoEnvironment env, String name, long defaultBytes) {
+        return env.has(name) ? toNumber(env.get(name), name) * S3ArtifactStore.MEGABYTE : defaultBytes;
+    }
+}
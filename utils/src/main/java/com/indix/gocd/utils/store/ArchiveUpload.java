@@ -0,0 +1,120 @@
+package com.indix.gocd.utils.store;
+
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams files into a single tar object, optionally gzip compressed on all cores, as they are added.
+ * Nothing is staged on disk, the archive is uploaded in parts while it is being written.
+ *
+ * Archives are named so that fetching the prefix they were published under recognises and
+ * extracts them where they are, see {@link #isArchive(String)}.
+ */
+public class ArchiveUpload {
+    public static final String FILE_NAME_PREFIX = ".gocd-s3-archive-";
+    public static final String TAR = ".tar";
+    public static final String TAR_GZ = ".tar.gz";
+
+    private final String key;
+    private final MultipartOutputStream upload;
+    private final ParallelGzipOutputStream gzip;
+    private final BufferPool.Lease lease;
+    private final TarWriter tar;
+    private int fileCount;
+
+    ArchiveUpload(String key, MultipartOutputStream upload) throws IOException {
+        this(key, upload, null);
+    }
+
+    /**
+     * A gzip compressed archive, its blocks and parts are taken from the lease
+     */
+    ArchiveUpload(String key, MultipartOutputStream upload, BufferPool.Lease lease) throws IOException {
+        this.key = key;
+        this.upload = upload;
+        this.lease = lease;
+        this.gzip = lease != null ? new ParallelGzipOutputStream(upload, lease) : null;
+        this.tar = new TarWriter(gzip != null ? gzip : upload);
+    }
+
+    /**
+     * @return the name of the archive holding the files of the source, the same for every publish of it
+     */
+    public static String fileName(String source, boolean gzip) {
+        String hash = BinaryUtils.toHex(Md5Utils.computeMD5Hash(source.getBytes(StandardCharsets.UTF_8))).substring(0, 12);
+        return FILE_NAME_PREFIX + hash + (gzip ? TAR_GZ : TAR);
+    }
+
+    public static boolean isArchive(String key) {
+        String name = StringUtils.substringAfterLast("/" + key, "/");
+        return name.startsWith(FILE_NAME_PREFIX) && (name.endsWith(TAR) || name.endsWith(TAR_GZ));
+    }
+
+    static boolean isGzip(String key) {
+        return key.endsWith(TAR_GZ);
+    }
+
+    /**
+     * Adds the file under the given path, relative to where the archive is extracted.
+     * Fails the whole archive when the file can't be read.
+     */
+    public synchronized void add(File file, String path) throws IOException {
+        try {
+            tar.add(file, path);
+            fileCount++;
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Finishes the archive and completes its upload
+     */
+    public synchronized void close() throws IOException {
+        try {
+            tar.close();
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        } finally {
+            if (lease != null) {
+                lease.close();
+            }
+        }
+    }
+
+    public synchronized void abort() {
+        if (gzip != null) {
+            gzip.discard();
+        }
+        upload.abort();
+        if (lease != null) {
+            lease.close();
+        }
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * @return the size of the uploaded archive
+     */
+    public long getSize() {
+        return upload.getSize();
+    }
+
+    public String getETag() {
+        return upload.getETag();
+    }
+}
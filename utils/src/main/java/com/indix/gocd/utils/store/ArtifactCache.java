@@ -0,0 +1,291 @@
+package com.indix.gocd.utils.store;
+
+import com.amazonaws.util.BinaryUtils;
+import com.thoughtworks.go.plugin.api.logging.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * On-disk cache of downloaded objects, keyed by bucket, key and ETag, that can be shared
+ * by every agent process on a host.
+ *
+ * Cached objects are copied into their destination, so that changing a fetched file
+ * never changes the cache, and checked against the MD5 recorded when they were added as
+ * they are copied. Once the cache grows past its size budget, the least recently used
+ * objects are removed. Changes to the cache are guarded by a file lock,
+ * so that agent processes sharing the directory do not step on each other.
+ */
+public class ArtifactCache {
+    private static final Logger logger = Logger.getLoggerFor(ArtifactCache.class);
+    // File locks are held on behalf of the whole JVM, threads have to take turns themselves
+    private static final Map<String, ReentrantLock> jvmLocks = new HashMap<>();
+    private static final long STALE_DOWNLOAD_AGE = TimeUnit.DAYS.toMillis(1);
+
+    private final File objects;
+    // MD5 of every object, under the same name
+    private final File digests;
+    private final File downloads;
+    private final File lockFile;
+    private final long sizeBudget;
+    private final ReentrantLock jvmLock;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private FileChannel lockChannel;
+    private FileLock fileLock;
+
+    public ArtifactCache(File directory, long sizeBudget) {
+        if (sizeBudget < 1) {
+            throw new IllegalArgumentException("Invalid size specified for the artifact cache - " + sizeBudget + ". It should be a positive number");
+        }
+        this.objects = new File(directory, "objects");
+        this.digests = new File(directory, "digests");
+        this.downloads = new File(directory, "downloads");
+        this.lockFile = new File(directory, ".lock");
+        this.sizeBudget = sizeBudget;
+        if (!(objects.isDirectory() || objects.mkdirs()) || !(digests.isDirectory() || digests.mkdirs()) || !(downloads.isDirectory() || downloads.mkdirs())) {
+            throw new IllegalArgumentException("Could not create the artifact cache in " + directory);
+        }
+        this.jvmLock = jvmLockFor(directory);
+    }
+
+    /**
+     * @return whether an object of this size is cached at all, larger ones are downloaded directly
+     */
+    public boolean fits(long size) {
+        return size <= sizeBudget;
+    }
+
+    /**
+     * Copies the cached object into the destination. The size of the object in S3 doesn't
+     * tell whether the entry is complete, as compressed objects are cached decoded, so the
+     * copy is checked against the MD5 of the entry instead.
+     *
+     * @return false when the object is not in the cache, or its entry turns out corrupt
+     */
+    public boolean get(String bucket, String key, String eTag, File destination) throws IOException {
+        File entry = entryFor(bucket, key, eTag);
+        File digestFile = digestFor(entry);
+        String expectedMd5;
+        InputStream content;
+        lock();
+        try {
+            if (!entry.isFile() || !digestFile.isFile()) {
+                // Missing, or left behind by a process that died while adding it
+                delete(entry);
+                misses.incrementAndGet();
+                return false;
+            }
+            expectedMd5 = new String(Files.readAllBytes(digestFile.toPath()), StandardCharsets.UTF_8).trim();
+            entry.setLastModified(System.currentTimeMillis());
+            // Opened under the lock, an open entry can still be read after it is evicted
+            content = new FileInputStream(entry);
+        } finally {
+            unlock();
+        }
+        if (!expectedMd5.equals(copy(content, destination))) {
+            logger.warn(String.format("Removing corrupt entry of %s from the artifact cache", key));
+            Files.deleteIfExists(destination.toPath());
+            lock();
+            try {
+                delete(entry);
+            } finally {
+                unlock();
+            }
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return a file in the cache directory to download an object into before it is {@link #add added}
+     */
+    public File newDownload() {
+        return new File(downloads, UUID.randomUUID().toString());
+    }
+
+    /**
+     * Copies a freshly downloaded object into the destination and moves it into the cache
+     */
+    public void add(String bucket, String key, String eTag, File download, File destination) throws IOException {
+        File entry = entryFor(bucket, key, eTag);
+        String md5 = copy(new FileInputStream(download), destination);
+        lock();
+        try {
+            // Replaces the entry another process may have added meanwhile, readers keep the one they opened
+            Files.move(download.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.write(digestFor(entry).toPath(), md5.getBytes(StandardCharsets.UTF_8));
+            entry.setLastModified(System.currentTimeMillis());
+            evict(entry);
+        } finally {
+            unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private File entryFor(String bucket, String key, String eTag) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String id = bucket + "\n" + key + "\n" + eTag;
+            return new File(objects, BinaryUtils.toHex(digest.digest(id.getBytes(StandardCharsets.UTF_8))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private File digestFor(File entry) {
+        return new File(digests, entry.getName());
+    }
+
+    private boolean delete(File entry) {
+        digestFor(entry).delete();
+        return entry.delete();
+    }
+
+    /**
+     * @return hex MD5 of the content copied
+     */
+    private String copy(InputStream content, File destination) throws IOException {
+        MessageDigest md5 = md5();
+        try (InputStream in = new DigestInputStream(content, md5)) {
+            Files.copy(in, destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return BinaryUtils.toHex(md5.digest());
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Removes the least recently used objects until the cache fits its budget again
+     */
+    private void evict(File keep) {
+        File[] entries = objects.listFiles();
+        if (entries == null) {
+            return;
+        }
+        long total = 0;
+        for (File entry : entries) {
+            total += entry.length();
+        }
+
+        if (total > sizeBudget) {
+            List<File> leastRecentlyUsedFirst = new ArrayList<>(Arrays.asList(entries));
+            Collections.sort(leastRecentlyUsedFirst, new Comparator<File>() {
+                @Override
+                public int compare(File left, File right) {
+                    return Long.compare(left.lastModified(), right.lastModified());
+                }
+            });
+            for (File entry : leastRecentlyUsedFirst) {
+                if (total <= sizeBudget) {
+                    break;
+                }
+                long size = entry.length();
+                if (!entry.equals(keep) && delete(entry)) {
+                    total -= size;
+                }
+            }
+        }
+
+        File[] staleDownloads = downloads.listFiles();
+        if (staleDownloads != null) {
+            long staleSince = System.currentTimeMillis() - STALE_DOWNLOAD_AGE;
+            for (File download : staleDownloads) {
+                // Left behind by agents that died while downloading
+                if (download.lastModified() < staleSince && !download.delete()) {
+                    logger.warn(String.format("Could not remove stale download %s from the artifact cache", download));
+                }
+            }
+        }
+    }
+
+    private void lock() throws IOException {
+        jvmLock.lock();
+        try {
+            lockChannel = new RandomAccessFile(lockFile, "rw").getChannel();
+            fileLock = lockChannel.lock();
+        } catch (IOException | RuntimeException e) {
+            closeLockChannel();
+            jvmLock.unlock();
+            throw e;
+        }
+    }
+
+    private void unlock() {
+        try {
+            fileLock.release();
+        } catch (IOException e) {
+            logger.warn(String.format("Could not release the lock on %s - %s", lockFile, e.getMessage()));
+        } finally {
+            closeLockChannel();
+            jvmLock.unlock();
+        }
+    }
+
+    private void closeLockChannel() {
+        try {
+            if (lockChannel != null) {
+                lockChannel.close();
+            }
+        } catch (IOException ignored) {
+            // Closing the channel releases the lock as well
+        } finally {
+            lockChannel = null;
+            fileLock = null;
+        }
+    }
+
+    private static ReentrantLock jvmLockFor(File directory) {
+        String path;
+        try {
+            path = directory.getCanonicalPath();
+        } catch (IOException e) {
+            path = directory.getAbsolutePath();
+        }
+        synchronized (jvmLocks) {
+            ReentrantLock lock = jvmLocks.get(path);
+            if (lock == null) {
+                lock = new ReentrantLock();
+                jvmLocks.put(path, lock);
+            }
+            return lock;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.indix.gocd.utils.store;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.SyncProgressListener;
+
+/**
+ * Caps the bytes per second sent or received by every transfer in the JVM together, with a
+ * token bucket that holds up to a second worth of bytes so short bursts go through at full speed.
+ *
+ * The limiter is attached to requests as a progress listener, which the SDK calls on the
+ * thread moving the bytes every few kilobytes, and holds that thread until the bytes fit in
+ * the rate. The SDK reads and writes request and response bodies through it, so uploads
+ * from files and downloads straight to files are limited too.
+ */
+public class BandwidthLimiter extends SyncProgressListener {
+    private static final BandwidthLimiter UPLOADS = new BandwidthLimiter(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT);
+    private static final BandwidthLimiter DOWNLOADS = new BandwidthLimiter(ProgressEventType.RESPONSE_BYTE_TRANSFER_EVENT);
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final ProgressEventType eventType;
+    private long bytesPerSecond;
+    private double tokens;
+    private long refilledAt;
+
+    BandwidthLimiter(ProgressEventType eventType) {
+        this.eventType = eventType;
+    }
+
+    /**
+     * @return the limiter shared by every upload in the JVM
+     */
+    public static BandwidthLimiter uploads() {
+        return UPLOADS;
+    }
+
+    /**
+     * @return the limiter shared by every download in the JVM
+     */
+    public static BandwidthLimiter downloads() {
+        return DOWNLOADS;
+    }
+
+    static <T extends AmazonWebServiceRequest> T limitUpload(T request) {
+        request.setGeneralProgressListener(UPLOADS);
+        return request;
+    }
+
+    static <T extends AmazonWebServiceRequest> T limitDownload(T request) {
+        request.setGeneralProgressListener(DOWNLOADS);
+        return request;
+    }
+
+    /**
+     * Every task sets the rate when it starts, so the bytes left in the bucket and the debt of
+     * waiting transfers carry over, only capped to a second worth of bytes at the new rate.
+     * Otherwise each task would hand out another burst on top of the transfers already running.
+     *
+     * @param bytesPerSecond the rate to cap transfers at, 0 for no limit
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Bandwidth limit should not be negative, was " + bytesPerSecond);
+        }
+        if (this.bytesPerSecond == 0) {
+            // Nothing was limited so far, the bucket starts full
+            tokens = bytesPerSecond;
+            refilledAt = now();
+        } else {
+            refill();
+            tokens = Math.min(bytesPerSecond, tokens);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public void progressChanged(ProgressEvent progressEvent) {
+        if (progressEvent.getEventType() == eventType && progressEvent.getBytes() > 0) {
+            TransferExecutor.moved(progressEvent.getBytes());
+            acquire(progressEvent.getBytes());
+        }
+    }
+
+    /**
+     * Takes the bytes out of the bucket, waiting for them to be refilled when it runs dry
+     */
+    void acquire(long bytes) {
+        long waitNanos;
+        synchronized (this) {
+            if (bytesPerSecond == 0) {
+                return;
+            }
+            refill();
+            // Going into debt lets every thread wait for its own share instead of polling for tokens
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * NANOS_PER_SECOND / bytesPerSecond) : 0;
+        }
+        if (waitNanos > 0) {
+            sleep(waitNanos);
+        }
+    }
+
+    private void refill() {
+        long now = now();
+        tokens = Math.min(bytesPerSecond, tokens + (double) (now - refilledAt) * bytesPerSecond / NANOS_PER_SECOND);
+        refilledAt = now;
+    }
+
+    long now() {
+        return System.nanoTime();
+    }
+
+    void sleep(long nanos) {
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            // The SDK notices the interrupt and aborts the transfer
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.indix.gocd.utils.store;
+
+import com.amazonaws.AbortedException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Direct buffers shared by every transfer in the JVM, holding the parts of streamed
+ * uploads, the blocks being compressed and the bytes of downloads on their way to files.
+ *
+ * All buffers together never take more than the capacity of the pool, off the heap of the
+ * agent. Once it is reached, transfers asking for another buffer wait until one is handed
+ * back instead of allocating, so the number of transfers running at the same time can't
+ * run the agent out of memory. Handed back buffers are kept and reused by the next transfer
+ * asking for the same size, and only dropped when the memory is needed for another size.
+ *
+ * A buffer larger than the whole capacity is still handed out, but only while no other
+ * buffer is in use. Transfers that need buffers of a given size to make any progress, like
+ * a part of a streamed upload, make sure they {@link #fit(int)} so the capacity is never
+ * set below them. Transfers holding on to buffers while waiting for others take them from
+ * a {@link Lease} instead.
+ */
+public class BufferPool implements Buffers {
+    public static final long DEFAULT_CAPACITY = Math.min(256 * 1024L * 1024L, Runtime.getRuntime().maxMemory() / 4);
+    static final int BUFFER_SIZE = 256 * 1024;
+    private static final BufferPool shared = new BufferPool(DEFAULT_CAPACITY);
+
+    private final Map<Integer, Deque<ByteBuffer>> free = new HashMap<>();
+    private long capacity;
+    // The largest buffer a transfer needs to make progress, the capacity is never below it
+    private long minimum;
+    // Bytes of every buffer allocated, whether in use or kept for reuse
+    private long allocated;
+    private long inUse;
+    // Budgets of the open leases and the bytes of their buffers in use
+    private final List<Lease> leases = new ArrayList<>();
+    private long leased;
+    private long leasedInUse;
+
+    BufferPool(long capacity) {
+        setCapacity(capacity);
+    }
+
+    /**
+     * @return the pool shared by every transfer in the JVM
+     */
+    public static BufferPool shared() {
+        return shared;
+    }
+
+    /**
+     * @param capacity bytes all buffers together may take, raised to the largest buffer
+     *                 a transfer needs if it is below it
+     */
+    public synchronized void setCapacity(long capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Buffer memory should be a positive number, was " + capacity);
+        }
+        this.capacity = Math.max(capacity, minimum);
+        trim(0);
+        notifyAll();
+    }
+
+    /**
+     * Makes sure a buffer of the size always fits in the capacity, now and whenever it is set again
+     */
+    synchronized void fit(int size) {
+        minimum = Math.max(minimum, size);
+        if (capacity < minimum) {
+            capacity = minimum;
+            notifyAll();
+        }
+    }
+
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return bytes of the buffers handed out and not given back yet
+     */
+    public synchronized long getInUse() {
+        return inUse;
+    }
+
+    ByteBuffer acquire() {
+        return acquire(BUFFER_SIZE);
+    }
+
+    /**
+     * Waits until the buffer fits in the capacity of the pool, next to the memory set aside
+     * for leases
+     *
+     * @return a cleared buffer of the size, which has to be given back with {@link #release(ByteBuffer)}
+     */
+    @Override
+    public synchronized ByteBuffer acquire(int size) {
+        ByteBuffer buffer;
+        while ((buffer = tryAcquire(size)) == null) {
+            await();
+        }
+        return buffer;
+    }
+
+    /**
+     * @return a cleared buffer of the size, or null instead of waiting when it does not fit
+     * in the capacity of the pool
+     */
+    @Override
+    public synchronized ByteBuffer tryAcquire(int size) {
+        long committed = committed();
+        if (committed + size > capacity && committed > 0) {
+            return null;
+        }
+        return take(size);
+    }
+
+    /**
+     * Trades the buffer for one of another size holding what was written to it. The memory
+     * of the buffer is counted as given back while waiting, so growing never waits on the
+     * buffer itself, which no other transfer could ever hand back.
+     *
+     * @return a buffer of the size, positioned after the content of the given one, which
+     * is not to be used or released anymore
+     */
+    @Override
+    public synchronized ByteBuffer grow(ByteBuffer buffer, int size) {
+        int held = buffer.capacity();
+        inUse -= held;
+        allocated -= held;
+        ByteBuffer grown;
+        try {
+            grown = acquire(size);
+        } catch (RuntimeException e) {
+            inUse += held;
+            allocated += held;
+            throw e;
+        }
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    @Override
+    public synchronized void release(ByteBuffer buffer) {
+        int size = buffer.capacity();
+        inUse -= size;
+        if (allocated > capacity) {
+            // The capacity was lowered or overdrawn by a buffer larger than it
+            allocated -= size;
+        } else {
+            if (!free.containsKey(size)) {
+                free.put(size, new ArrayDeque<ByteBuffer>());
+            }
+            free.get(size).push(buffer);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Sets the memory aside for a transfer that holds on to some buffers while waiting for
+     * others, like a compressed upload holding blocks until a part is free to write them to.
+     * Transfers like that could otherwise wait on each other forever once the pool is
+     * exhausted. Waits until the memory fits next to everything else in use, unless the
+     * thread already holds a lease, which it could not give back while waiting.
+     *
+     * @param budget the most the transfer ever holds at a time
+     * @return the lease to take the buffers of the transfer from, to be closed once done
+     */
+    synchronized Lease lease(long budget) {
+        while (true) {
+            long committed = committed();
+            if (committed + budget <= capacity || committed == 0 || holdsLease(Thread.currentThread())) {
+                break;
+            }
+            await();
+        }
+        Lease lease = new Lease(budget);
+        leased += budget;
+        leases.add(lease);
+        return lease;
+    }
+
+    /**
+     * Memory set aside in the pool for a single transfer, its buffers only ever wait on each
+     * other to be given back, never on other transfers
+     */
+    class Lease implements Buffers {
+        private final long budget;
+        private final Thread owner = Thread.currentThread();
+        private long inUse;
+        private boolean closed;
+
+        private Lease(long budget) {
+            this.budget = budget;
+        }
+
+        long getBudget() {
+            return budget;
+        }
+
+        @Override
+        public ByteBuffer acquire(int size) {
+            synchronized (BufferPool.this) {
+                ByteBuffer buffer;
+                while ((buffer = tryAcquire(size)) == null) {
+                    await();
+                }
+                return buffer;
+            }
+        }
+
+        @Override
+        public ByteBuffer tryAcquire(int size) {
+            synchronized (BufferPool.this) {
+                if (inUse + size > budget && inUse > 0) {
+                    return null;
+                }
+                ByteBuffer buffer = take(size);
+                inUse += size;
+                leasedInUse += size;
+                return buffer;
+            }
+        }
+
+        @Override
+        public ByteBuffer grow(ByteBuffer buffer, int size) {
+            synchronized (BufferPool.this) {
+                int held = buffer.capacity();
+                inUse -= held;
+                leasedInUse -= held;
+                BufferPool.this.inUse -= held;
+                allocated -= held;
+                ByteBuffer grown;
+                try {
+                    grown = acquire(size);
+                } catch (RuntimeException e) {
+                    inUse += held;
+                    leasedInUse += held;
+                    BufferPool.this.inUse += held;
+                    allocated += held;
+                    throw e;
+                }
+                buffer.flip();
+                grown.put(buffer);
+                return grown;
+            }
+        }
+
+        @Override
+        public void release(ByteBuffer buffer) {
+            synchronized (BufferPool.this) {
+                inUse -= buffer.capacity();
+                leasedInUse -= buffer.capacity();
+                BufferPool.this.release(buffer);
+                if (closed && inUse == 0) {
+                    end();
+                }
+            }
+        }
+
+        /**
+         * Gives the memory back to the pool once the buffers still in use, like parts still
+         * being uploaded, are given back too
+         */
+        void close() {
+            synchronized (BufferPool.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (inUse == 0) {
+                    end();
+                }
+            }
+        }
+
+        private void end() {
+            leased -= budget;
+            leases.remove(this);
+            BufferPool.this.notifyAll();
+        }
+    }
+
+    /**
+     * @return bytes in use outside of leases and set aside for leases
+     */
+    private long committed() {
+        return inUse - leasedInUse + leased;
+    }
+
+    private boolean holdsLease(Thread thread) {
+        for (Lease lease : leases) {
+            if (lease.owner == thread) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ByteBuffer take(int size) {
+        inUse += size;
+        Deque<ByteBuffer> reusable = free.get(size);
+        if (reusable != null && !reusable.isEmpty()) {
+            ByteBuffer buffer = reusable.pop();
+            buffer.clear();
+            return buffer;
+        }
+        trim(size);
+        allocated += size;
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private void await() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException("Interrupted while waiting for buffer memory", e);
+        }
+    }
+
+    /**
+     * Drops kept buffers until another <code>size</code> bytes fit in the capacity, their
+     * memory is freed once the garbage collector gets to them
+     */
+    private void trim(int size) {
+        Iterator<Deque<ByteBuffer>> sizes = free.values().iterator();
+        while (allocated + size > capacity && sizes.hasNext()) {
+            Deque<ByteBuffer> buffers = sizes.next();
+            while (allocated + size > capacity && !buffers.isEmpty()) {
+                allocated -= buffers.pop().capacity();
+            }
+            if (buffers.isEmpty()) {
+                sizes.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.indix.gocd.utils.store;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where a transfer takes its buffers from, the whole {@link BufferPool} or memory set aside
+ * in it for the transfer
+ */
+interface Buffers {
+    /**
+     * @return a cleared buffer of the size, waiting for memory if needed
+     */
+    ByteBuffer acquire(int size);
+
+    /**
+     * @return a cleared buffer of the size, or null instead of waiting for memory
+     */
+    ByteBuffer tryAcquire(int size);
+
+    /**
+     * @return a buffer of the size holding what was written to the given one, which is given back
+     */
+    ByteBuffer grow(ByteBuffer buffer, int size);
+
+    void release(ByteBuffer buffer);
+}
@@ -0,0 +1,101 @@
+package com.indix.gocd.utils.store;
+
+import com.amazonaws.util.BinaryUtils;
+import com.indix.gocd.models.ManifestEntry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Packs small files back to back into a single bundle object, streamed to S3 as they are added.
+ *
+ * The bundle has no structure of its own, the manifest entry returned for every file holds
+ * the offset of its content, so single files can be fetched with a ranged GET. Entries keep
+ * the relative path the file would have had as an object of its own, and the MD5 of its
+ * content as ETag, which is what S3 would have given that object.
+ */
+public class BundleUpload {
+    public static final String DIRECTORY = ".gocd-s3-bundles";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final String key;
+    private final String path;
+    private final MultipartOutputStream upload;
+    private final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    private long size;
+    private int fileCount;
+
+    /**
+     * @param path path of the bundle relative to the revision prefix
+     */
+    BundleUpload(String key, String path, MultipartOutputStream upload) {
+        this.key = key;
+        this.path = path;
+        this.upload = upload;
+    }
+
+    public static boolean isBundle(String path) {
+        return path.startsWith(DIRECTORY + "/");
+    }
+
+    /**
+     * @return the manifest entry of the file, pointing into the bundle
+     */
+    public synchronized ManifestEntry add(File file, String filePath) throws IOException {
+        long offset = size;
+        long expected = file.length();
+        MessageDigest digest = ETags.md5Digest();
+        try (InputStream content = new FileInputStream(file)) {
+            long remaining = expected;
+            while (remaining > 0) {
+                int read = content.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new IOException(String.format("%s got shorter while it was being bundled", file));
+                }
+                digest.update(buffer, 0, read);
+                upload.write(buffer, 0, read);
+                remaining -= read;
+                size += read;
+            }
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+        fileCount++;
+        return new ManifestEntry(filePath, expected, BinaryUtils.toHex(digest.digest())).withBundle(path, offset);
+    }
+
+    /**
+     * Completes the upload of the bundle
+     *
+     * @return the manifest entry of the bundle itself
+     */
+    public synchronized ManifestEntry close() throws IOException {
+        try {
+            upload.close();
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+        return new ManifestEntry(path, size, upload.getETag());
+    }
+
+    public synchronized void abort() {
+        upload.abort();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+}
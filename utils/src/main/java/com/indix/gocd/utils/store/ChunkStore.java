@@ -0,0 +1,246 @@
+package com.indix.gocd.utils.store;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.util.BinaryUtils;
+import com.indix.gocd.models.ManifestEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores file content as content-defined chunks shared by every revision and pipeline
+ * publishing to the bucket.
+ *
+ * Chunks are keyed by the SHA-256 of their bytes under {@link #DIRECTORY} at the root of the
+ * bucket, so a chunk is uploaded once no matter how many files or revisions contain it. Files
+ * are described by the list of their chunks in the manifest of the revision and put back
+ * together from them on fetch. Chunks are never deleted, as any revision may refer to them.
+ */
+class ChunkStore {
+    static final String DIRECTORY = ".gocd-s3-chunks";
+
+    private final AmazonS3 client;
+    private final String bucket;
+    // Chunks known to be in the bucket, saves asking S3 again for chunks repeated across files
+    private final Set<String> known = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong reusedBytes = new AtomicLong();
+
+    ChunkStore(AmazonS3 client, String bucket) {
+        this.client = client;
+        this.bucket = bucket;
+    }
+
+    static String key(String hash) {
+        return DIRECTORY + "/" + hash;
+    }
+
+    /**
+     * Uploads the chunks of the content missing from the bucket, at most <code>concurrency</code> at a time
+     *
+     * @return the chunks making up the content, in order
+     */
+    List<ManifestEntry.Chunk> put(InputStream content, final StorageClass storageClass, int concurrency) throws IOException {
+        final List<ManifestEntry.Chunk> chunks = new ArrayList<>();
+        // Chunks not uploaded yet, which are given back to the pool if their upload never runs
+        final Set<ByteBuffer> pendingChunks = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+        TransferExecutor uploads = new TransferExecutor(concurrency);
+        try {
+            Chunker chunker = new Chunker(content);
+            ByteBuffer chunk;
+            while ((chunk = chunker.next()) != null) {
+                final ByteBuffer bytes = chunk;
+                synchronized (pendingChunks) {
+                    pendingChunks.add(bytes);
+                }
+                final String hash = sha256(bytes);
+                chunks.add(new ManifestEntry.Chunk(hash, bytes.remaining()));
+                uploads.submit(key(hash), new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            putIfMissing(hash, bytes, storageClass);
+                        } finally {
+                            releaseChunk(pendingChunks, bytes);
+                        }
+                    }
+                });
+            }
+            uploads.awaitCompletion();
+        } finally {
+            uploads.shutdown();
+            List<ByteBuffer> neverUploaded;
+            synchronized (pendingChunks) {
+                neverUploaded = new ArrayList<>(pendingChunks);
+            }
+            for (ByteBuffer chunk : neverUploaded) {
+                releaseChunk(pendingChunks, chunk);
+            }
+        }
+        return chunks;
+    }
+
+    private void putIfMissing(String hash, ByteBuffer bytes, StorageClass storageClass) {
+        if (known.contains(hash) || exists(key(hash))) {
+            known.add(hash);
+            reusedBytes.addAndGet(bytes.remaining());
+            return;
+        }
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(bytes.remaining());
+        metadata.setContentType("application/octet-stream");
+        client.putObject(BandwidthLimiter.limitUpload(new PutObjectRequest(bucket, key(hash), new ByteBufferInputStream(bytes), metadata))
+                .withStorageClass(storageClass));
+        known.add(hash);
+        uploadedBytes.addAndGet(bytes.remaining());
+    }
+
+    private static void releaseChunk(Set<ByteBuffer> pendingChunks, ByteBuffer chunk) {
+        synchronized (pendingChunks) {
+            if (!pendingChunks.remove(chunk)) {
+                return;
+            }
+        }
+        BufferPool.shared().release(chunk);
+    }
+
+    private boolean exists(String key) {
+        try {
+            return client.getObjectMetadata(bucket, key) != null;
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Puts the file back together from its chunks, downloading at most <code>concurrency</code>
+     * of them at a time straight to their offset in the file. Every chunk is checked against
+     * its hash, as a chunk is shared by everything that contains it.
+     */
+    void get(List<ManifestEntry.Chunk> chunks, File destinationFile, int concurrency) {
+        long size = 0;
+        for (ManifestEntry.Chunk chunk : chunks) {
+            size += chunk.getSize();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(destinationFile, "rw")) {
+            file.setLength(size);
+            final FileChannel channel = file.getChannel();
+
+            TransferExecutor downloads = new TransferExecutor(Math.max(1, Math.min(concurrency, chunks.size())));
+            try {
+                long offset = 0;
+                for (final ManifestEntry.Chunk chunk : chunks) {
+                    final long position = offset;
+                    downloads.submit(key(chunk.getHash()), new Runnable() {
+                        @Override
+                        public void run() {
+                            getChunk(chunk, channel, position);
+                        }
+                    });
+                    offset += chunk.getSize();
+                }
+                downloads.awaitCompletion();
+            } finally {
+                downloads.shutdown();
+            }
+        } catch (IOException | RuntimeException e) {
+            destinationFile.delete();
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            throw new AmazonClientException(String.format("Failed to write %s - %s", destinationFile, e.getMessage()), e);
+        }
+    }
+
+    private void getChunk(ManifestEntry.Chunk chunk, FileChannel channel, long start) {
+        String key = key(chunk.getHash());
+        S3Object object = client.getObject(BandwidthLimiter.limitDownload(new GetObjectRequest(bucket, key)));
+        if (object == null) {
+            throw new AmazonClientException(String.format("Chunk %s is missing from %s", chunk.getHash(), bucket));
+        }
+
+        MessageDigest digest = sha256Digest();
+        ByteBuffer buffer = BufferPool.shared().acquire();
+        try (InputStream content = object.getObjectContent();
+             ReadableByteChannel source = Channels.newChannel(content)) {
+            long position = start;
+            long end = start + chunk.getSize();
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                if (source.read(buffer) == -1) {
+                    break;
+                }
+                buffer.flip();
+                digest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+            if (position != end) {
+                throw new AmazonClientException(String.format("Expected %d bytes of chunk %s but got %d", chunk.getSize(), chunk.getHash(), position - start));
+            }
+        } catch (IOException e) {
+            throw new AmazonClientException(String.format("Failed to download chunk %s - %s", chunk.getHash(), e.getMessage()), e);
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+        String hash = BinaryUtils.toHex(digest.digest());
+        if (!hash.equalsIgnoreCase(chunk.getHash())) {
+            throw new AmazonClientException(String.format("Chunk %s is corrupt, its content hashes to %s", chunk.getHash(), hash));
+        }
+    }
+
+    /**
+     * @return bytes of chunks uploaded so far
+     */
+    long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    /**
+     * @return bytes of chunks found already in the bucket and not uploaded again
+     */
+    long getReusedBytes() {
+        return reusedBytes.get();
+    }
+
+    static String sha256(ByteBuffer bytes) {
+        MessageDigest digest = sha256Digest();
+        digest.update(bytes.duplicate());
+        return BinaryUtils.toHex(digest.digest());
+    }
+
+    private static MessageDigest sha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.indix.gocd.utils.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Cuts a stream into content-defined chunks with a gear rolling hash, as in FastCDC.
+ *
+ * Boundaries depend only on the bytes right before them, so inserting or removing bytes in
+ * a file only changes the chunks around the edit and the rest of the file keeps the chunks
+ * it had before. Chunks are between {@link #MIN_SIZE} and {@link #MAX_SIZE} bytes long and
+ * about {@link #AVERAGE_SIZE} bytes on average.
+ *
+ * The gear table and sizes decide where chunks end, changing any of them means no chunk of
+ * earlier publishes is ever reused again.
+ *
+ * Chunks are cut into buffers of the {@link BufferPool}, so cutting waits for memory while
+ * too many chunks are on their way already.
+ */
+class Chunker {
+    static final int MIN_SIZE = 256 * 1024;
+    static final int AVERAGE_SIZE = 1024 * 1024;
+    static final int MAX_SIZE = 4 * 1024 * 1024;
+    // The high bits of a gear hash depend on the most bytes, 20 of them give the average size
+    private static final long MASK = ((long) AVERAGE_SIZE - 1) << 44;
+    private static final long[] GEAR = gear();
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] window = new byte[READ_SIZE];
+    private int position;
+    private int limit;
+
+    Chunker(InputStream in) {
+        this.in = in;
+        BufferPool.shared().fit(MAX_SIZE);
+    }
+
+    /**
+     * @return the next chunk, ready to be read, or null at the end of the stream. The chunk
+     * has to be given back with {@link BufferPool#release(ByteBuffer)}.
+     */
+    ByteBuffer next() throws IOException {
+        ByteBuffer chunk = BufferPool.shared().acquire(MAX_SIZE);
+        try {
+            long hash = 0;
+            boolean boundary = false;
+            while (!boundary && chunk.hasRemaining()) {
+                if (position == limit) {
+                    limit = in.read(window);
+                    position = 0;
+                    if (limit == -1) {
+                        limit = 0;
+                        break;
+                    }
+                }
+                int start = position;
+                int end = position + Math.min(limit - position, chunk.remaining());
+                int length = chunk.position();
+                while (position < end) {
+                    hash = (hash << 1) + GEAR[window[position++] & 0xff];
+                    if (++length >= MIN_SIZE && (hash & MASK) == 0) {
+                        boundary = true;
+                        break;
+                    }
+                }
+                chunk.put(window, start, position - start);
+            }
+        } catch (IOException | RuntimeException e) {
+            BufferPool.shared().release(chunk);
+            throw e;
+        }
+        chunk.flip();
+        if (!chunk.hasRemaining()) {
+            BufferPool.shared().release(chunk);
+            return null;
+        }
+        return chunk;
+    }
+
+    /**
+     * Random values from a fixed seed with SplitMix64, the same on every JVM
+     */
+    private static long[] gear() {
+        long[] gear = new long[256];
+        long state = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < gear.length; i++) {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            gear[i] = z ^ (z >>> 31);
+        }
+        return gear;
+    }
+}
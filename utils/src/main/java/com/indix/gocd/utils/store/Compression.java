@@ -0,0 +1,86 @@
+package com.indix.gocd.utils.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which files are worth compressing and owns the threads compressing them.
+ *
+ * Whether a file is compressible is estimated from the byte entropy of a few samples spread
+ * over the file. Compressed formats like jar, png or gz files are close to 8 bits per byte
+ * and are left alone, text like logs or JSON is usually well below.
+ */
+public class Compression {
+    public static final String GZIP = "gzip";
+
+    static final int SAMPLE_SIZE = 4096;
+    static final int SAMPLE_COUNT = 16;
+    static final double MAX_COMPRESSIBLE_ENTROPY = 7.5;
+    static final long MIN_COMPRESSIBLE_SIZE = 1024;
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(threads(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "s3-compression-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private Compression() {
+    }
+
+    public static boolean isCompressible(File file) throws IOException {
+        long size = file.length();
+        if (size < MIN_COMPRESSIBLE_SIZE) {
+            return false;
+        }
+        return entropy(file) <= MAX_COMPRESSIBLE_ENTROPY;
+    }
+
+    /**
+     * @return the Shannon entropy in bits per byte of samples taken evenly across the file
+     */
+    static double entropy(File file) throws IOException {
+        long[] counts = new long[256];
+        long total = 0;
+        byte[] sample = new byte[SAMPLE_SIZE];
+        try (RandomAccessFile content = new RandomAccessFile(file, "r")) {
+            long size = content.length();
+            int samples = (int) Math.min(SAMPLE_COUNT, (size + SAMPLE_SIZE - 1) / SAMPLE_SIZE);
+            long stride = samples > 1 ? (size - SAMPLE_SIZE) / (samples - 1) : 0;
+            for (int i = 0; i < samples; i++) {
+                content.seek(i * stride);
+                int read = content.read(sample);
+                for (int j = 0; j < read; j++) {
+                    counts[sample[j] & 0xff]++;
+                }
+                total += Math.max(read, 0);
+            }
+        }
+
+        double entropy = 0;
+        for (long count : counts) {
+            if (count > 0) {
+                double probability = (double) count / total;
+                entropy -= probability * Math.log(probability) / Math.log(2);
+            }
+        }
+        return entropy;
+    }
+
+    static ExecutorService executor() {
+        return EXECUTOR;
+    }
+
+    static int threads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+}
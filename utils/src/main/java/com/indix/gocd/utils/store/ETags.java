@@ -0,0 +1,262 @@
+package com.indix.gocd.utils.store;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.SSEAlgorithm;
+import com.amazonaws.util.BinaryUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes the ETag S3 gives an object from the local file it was uploaded from.
+ *
+ * Objects uploaded in a single request get the MD5 of their content. Multipart uploads get
+ * the MD5 of the concatenated MD5s of every part, followed by a dash and the number of parts.
+ */
+public class ETags {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ETags() {
+    }
+
+    /**
+     * Computes the ETag of an object from its content as it streams by, in parts when the
+     * ETag it is checked against is that of a multipart upload
+     */
+    static class Digest {
+        private final long partSize;
+        private final List<byte[]> partMd5s = new ArrayList<>();
+        private MessageDigest partDigest = md5Digest();
+        private long inPart;
+
+        private Digest(long partSize) {
+            this.partSize = partSize;
+        }
+
+        /**
+         * @return a digest to check content of this size against the ETag, or null when
+         * the ETag can't be computed from the content, as with an unknown part size
+         */
+        static Digest of(String eTag, long size, long preferredPartSize) {
+            if (eTag == null || !strip(eTag).matches("[0-9a-fA-F]{32}(-[0-9]+)?")) {
+                return null;
+            }
+            if (!isMultipart(eTag)) {
+                return md5();
+            }
+            long partSize = partSize(size, partCount(eTag), preferredPartSize);
+            return partSize > 0 ? new Digest(partSize) : null;
+        }
+
+        /**
+         * @return a digest of the MD5 of the content, as in the ETag of a single part upload
+         */
+        static Digest md5() {
+            return new Digest(Long.MAX_VALUE);
+        }
+
+        /**
+         * @return the stream, digesting every byte read from it
+         */
+        InputStream digesting(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        update(new byte[]{(byte) b}, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) throws IOException {
+                    int read = super.read(bytes, offset, length);
+                    if (read > 0) {
+                        update(bytes, offset, read);
+                    }
+                    return read;
+                }
+
+                @Override
+                public long skip(long count) throws IOException {
+                    // Skipped bytes have to be digested too
+                    byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(count, 1))];
+                    long skipped = 0;
+                    int read;
+                    while (skipped < count && (read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped))) != -1) {
+                        skipped += read;
+                    }
+                    return skipped;
+                }
+            };
+        }
+
+        void update(byte[] bytes, int offset, int length) {
+            update(ByteBuffer.wrap(bytes, offset, length));
+        }
+
+        /**
+         * Digests the remaining bytes of the buffer, which is left with none remaining
+         */
+        void update(ByteBuffer bytes) {
+            while (bytes.hasRemaining()) {
+                int inThisPart = (int) Math.min(bytes.remaining(), partSize - inPart);
+                ByteBuffer part = bytes.duplicate();
+                part.limit(part.position() + inThisPart);
+                partDigest.update(part);
+                bytes.position(bytes.position() + inThisPart);
+                inPart += inThisPart;
+                if (inPart == partSize) {
+                    partMd5s.add(partDigest.digest());
+                    inPart = 0;
+                }
+            }
+        }
+
+        String getETag() {
+            if (partSize == Long.MAX_VALUE) {
+                return BinaryUtils.toHex(partDigest.digest());
+            }
+            List<byte[]> md5s = new ArrayList<>(partMd5s);
+            if (inPart > 0 || md5s.isEmpty()) {
+                md5s.add(partDigest.digest());
+            }
+            return multipart(md5s);
+        }
+    }
+
+    public static boolean isMultipart(String eTag) {
+        return eTag != null && eTag.contains("-");
+    }
+
+    /**
+     * @return number of parts of a multipart ETag, 1 for any other
+     */
+    public static int partCount(String eTag) {
+        if (!isMultipart(eTag)) {
+            return 1;
+        }
+        String stripped = strip(eTag);
+        try {
+            return Integer.parseInt(stripped.substring(stripped.lastIndexOf('-') + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static String md5(File file) throws IOException {
+        MessageDigest digest = md5Digest();
+        try (InputStream content = new FileInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return BinaryUtils.toHex(digest.digest());
+    }
+
+    public static String multipart(File file, long partSize) throws IOException {
+        MessageDigest partDigests = md5Digest();
+        MessageDigest partDigest = md5Digest();
+        int parts = 0;
+        try (InputStream content = new FileInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long inPart = 0;
+            int read;
+            while ((read = content.read(buffer, 0, (int) Math.min(buffer.length, partSize - inPart))) != -1) {
+                partDigest.update(buffer, 0, read);
+                inPart += read;
+                if (inPart == partSize) {
+                    partDigests.update(partDigest.digest());
+                    parts++;
+                    inPart = 0;
+                }
+            }
+            if (inPart > 0 || parts == 0) {
+                partDigests.update(partDigest.digest());
+                parts++;
+            }
+        }
+        return BinaryUtils.toHex(partDigests.digest()) + "-" + parts;
+    }
+
+    /**
+     * @return the ETag of a multipart upload whose parts had these MD5s, in order
+     */
+    static String multipart(List<byte[]> partMd5s) {
+        MessageDigest partDigests = md5Digest();
+        for (byte[] partMd5 : partMd5s) {
+            partDigests.update(partMd5);
+        }
+        return BinaryUtils.toHex(partDigests.digest()) + "-" + partMd5s.size();
+    }
+
+    /**
+     * Works out the part size of a multipart upload from its size and number of parts,
+     * trying the part size it would be uploaded with here first and then whole megabytes,
+     * which is what other tools upload with
+     *
+     * @return the part size, or -1 when no part size gives that number of parts
+     */
+    static long partSize(long size, int partCount, long preferredPartSize) {
+        if (partCount < 1) {
+            return -1;
+        }
+        if (partCountOf(size, preferredPartSize) == partCount) {
+            return preferredPartSize;
+        }
+        long megabyte = 1024 * 1024;
+        long partSize = ((size + partCount - 1) / partCount + megabyte - 1) / megabyte * megabyte;
+        return partCountOf(size, partSize) == partCount ? partSize : -1;
+    }
+
+    private static long partCountOf(long size, long partSize) {
+        return Math.max(1, (size + partSize - 1) / partSize);
+    }
+
+    /**
+     * @return the MD5 of the remaining bytes of the buffer, leaving its position as it was
+     */
+    static byte[] md5(ByteBuffer content) {
+        MessageDigest digest = md5Digest();
+        digest.update(content.duplicate());
+        return digest.digest();
+    }
+
+    /**
+     * @return whether the ETag of the object is computed from its content, which is not the
+     * case for objects encrypted with KMS or customer keys
+     */
+    static boolean isContentDigest(ObjectMetadata metadata) {
+        return metadata == null || (!SSEAlgorithm.KMS.getAlgorithm().equals(metadata.getSSEAlgorithm()) && metadata.getSSECustomerAlgorithm() == null);
+    }
+
+    /**
+     * @return whether the ETags are the same, ignoring the quotes S3 may send them with
+     */
+    static boolean matches(String eTag, String other) {
+        return eTag != null && other != null && strip(eTag).equalsIgnoreCase(strip(other));
+    }
+
+    private static String strip(String eTag) {
+        return eTag.replace("\"", "");
+    }
+
+    static MessageDigest md5Digest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.indix.gocd.utils.store;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Lists objects on a background thread into a bounded queue, so that the next listing
+ * page is requested while the objects from the previous ones are being consumed.
+ *
+ * The listing thread blocks once the queue is full, which keeps memory constant however
+ * many keys there are under the prefix.
+ */
+class ListingPrefetcher implements Iterator<S3ObjectSummary> {
+    private static final S3ObjectSummary END = new S3ObjectSummary();
+
+    private final AmazonS3 client;
+    private final ListObjectsRequest listObjectsRequest;
+    private final BlockingQueue<S3ObjectSummary> queue;
+    private final Thread lister;
+    private volatile Throwable failure;
+    private volatile boolean closed = false;
+    private S3ObjectSummary next;
+
+    ListingPrefetcher(AmazonS3 client, ListObjectsRequest listObjectsRequest, int capacity) {
+        this.client = client;
+        this.listObjectsRequest = listObjectsRequest;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.lister = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                list();
+            }
+        }, "s3-lister-" + listObjectsRequest.getPrefix());
+        this.lister.setDaemon(true);
+    }
+
+    ListingPrefetcher start() {
+        lister.start();
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new RuntimeException("Interrupted while listing " + listObjectsRequest.getPrefix(), e);
+            }
+        }
+        if (next == END) {
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            if (failure != null) {
+                throw (RuntimeException) failure;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public S3ObjectSummary next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        S3ObjectSummary current = next;
+        next = null;
+        return current;
+    }
+
+    /**
+     * Stops listing when the consumer gives up before reaching the end
+     */
+    void close() {
+        closed = true;
+        lister.interrupt();
+    }
+
+    private void list() {
+        try {
+            ObjectListing objectListing;
+            do {
+                objectListing = client.listObjects(listObjectsRequest);
+                for (S3ObjectSummary objectSummary : objectListing.getObjectSummaries()) {
+                    queue.put(objectSummary);
+                }
+                listObjectsRequest.setMarker(objectListing.getNextMarker());
+            } while (objectListing.isTruncated() && !closed);
+        } catch (InterruptedException e) {
+            // Only close interrupts the listing
+        } catch (RuntimeException | Error e) {
+            if (!closed) {
+                failure = e;
+            }
+        } finally {
+            // The consumer blocks until the end is queued, whatever stopped the listing
+            if (!closed) {
+                try {
+                    queue.put(END);
+                } catch (InterruptedException ignored) {
+                    // Nobody is waiting for the end of the listing anymore
+                }
+            }
+        }
+    }
+}
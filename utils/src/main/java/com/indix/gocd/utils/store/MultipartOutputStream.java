@@ -0,0 +1,250 @@
+package com.indix.gocd.utils.store;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.thoughtworks.go.plugin.api.logging.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Uploads whatever is written to it as an object whose size is not known up front.
+ *
+ * Content is buffered a part at a time, every full part is uploaded in the background
+ * while the next one is written. Content that never fills a part is uploaded with a
+ * single PUT when the stream is closed. Parts are buffered in the {@link BufferPool}, so
+ * writing waits for memory when too many parts are on their way already.
+ */
+class MultipartOutputStream extends OutputStream {
+    private static final Logger logger = Logger.getLoggerFor(MultipartOutputStream.class);
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final AmazonS3 client;
+    private final String bucket;
+    private final String key;
+    private final ObjectMetadata metadata;
+    private final StorageClass storageClass;
+    private final int partSize;
+    private final int concurrency;
+    private final Buffers buffers;
+    private final List<PartETag> partETags = Collections.synchronizedList(new ArrayList<PartETag>());
+    // Buffers of parts not uploaded yet, which are given back to the pool if their upload never runs
+    private final Set<ByteBuffer> pendingParts = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+
+    private ByteBuffer buffer;
+    private int count;
+    private int partCount;
+    private long size;
+    private String uploadId;
+    private TransferExecutor parts;
+    private String eTag;
+    private boolean closed;
+
+    MultipartOutputStream(AmazonS3 client, String bucket, String key, ObjectMetadata metadata, StorageClass storageClass, long partSize, int concurrency) {
+        this(client, bucket, key, metadata, storageClass, partSize, concurrency, BufferPool.shared());
+    }
+
+    MultipartOutputStream(AmazonS3 client, String bucket, String key, ObjectMetadata metadata, StorageClass storageClass, long partSize, int concurrency, Buffers buffers) {
+        this.client = client;
+        this.bucket = bucket;
+        this.key = key;
+        this.metadata = metadata;
+        this.storageClass = storageClass;
+        this.partSize = (int) Math.min(partSize, Integer.MAX_VALUE - 8);
+        this.concurrency = concurrency;
+        this.buffers = buffers;
+        BufferPool.shared().fit(this.partSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException(String.format("Upload of %s is already closed", key));
+        }
+        while (length > 0) {
+            if (buffer == null) {
+                // Only content that is not known to fill a part yet starts out small
+                buffer = buffers.acquire(uploadId == null ? Math.min(INITIAL_BUFFER_SIZE, partSize) : partSize);
+            } else if (count == buffer.capacity()) {
+                if (count == partSize) {
+                    uploadPart();
+                    continue;
+                }
+                // Small objects never need a buffer the size of a whole part
+                buffer = buffers.grow(buffer, (int) Math.min((long) buffer.capacity() * 2, partSize));
+            }
+            int written = Math.min(length, buffer.capacity() - count);
+            buffer.put(bytes, offset, written);
+            count += written;
+            size += written;
+            offset += written;
+            length -= written;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (uploadId == null) {
+                metadata.setContentLength(count);
+                PutObjectRequest putObjectRequest = BandwidthLimiter.limitUpload(new PutObjectRequest(bucket, key, content(buffer), metadata))
+                        .withStorageClass(storageClass);
+                PutObjectResult result = client.putObject(putObjectRequest);
+                eTag = result != null ? result.getETag() : null;
+            } else {
+                if (count > 0) {
+                    uploadPart();
+                }
+                parts.awaitCompletion();
+                List<PartETag> completed = new ArrayList<>(partETags);
+                Collections.sort(completed, new Comparator<PartETag>() {
+                    @Override
+                    public int compare(PartETag left, PartETag right) {
+                        return Integer.compare(left.getPartNumber(), right.getPartNumber());
+                    }
+                });
+                CompleteMultipartUploadResult result = client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, completed));
+                eTag = result != null ? result.getETag() : null;
+                uploadId = null;
+            }
+        } catch (RuntimeException e) {
+            abort();
+            throw e;
+        } finally {
+            if (parts != null) {
+                parts.shutdown();
+            }
+            releaseBuffers();
+        }
+    }
+
+    /**
+     * Gives up on the upload, nothing written so far ends up in the bucket. Does nothing
+     * once the upload is complete.
+     */
+    void abort() {
+        closed = true;
+        if (parts != null) {
+            parts.shutdown();
+        }
+        releaseBuffers();
+        if (uploadId != null) {
+            try {
+                client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+            } catch (Exception e) {
+                logger.error(String.format("Failed to abort multipart upload %s of %s - %s", uploadId, key, e.getMessage()), e);
+            }
+            uploadId = null;
+        }
+    }
+
+    /**
+     * @return the ETag of the uploaded object once the stream is closed
+     */
+    String getETag() {
+        return eTag;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    int getPartSize() {
+        return partSize;
+    }
+
+    private void uploadPart() {
+        if (uploadId == null) {
+            InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(bucket, key, metadata)
+                    .withStorageClass(storageClass);
+            uploadId = client.initiateMultipartUpload(initiateRequest).getUploadId();
+            parts = new TransferExecutor(concurrency);
+        }
+        final String upload = uploadId;
+        final ByteBuffer part = buffer;
+        final int length = count;
+        final int partNumber = ++partCount;
+        synchronized (pendingParts) {
+            pendingParts.add(part);
+        }
+        // Taken before the part is handed over, which may upload it inline and give it back to the pool
+        buffer = null;
+        count = 0;
+        parts.submit(String.format("%s (part %d)", key, partNumber), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    UploadPartRequest uploadPartRequest = BandwidthLimiter.limitUpload(new UploadPartRequest())
+                            .withBucketName(bucket)
+                            .withKey(key)
+                            .withUploadId(upload)
+                            .withPartNumber(partNumber)
+                            .withInputStream(content(part))
+                            .withPartSize(length);
+                    partETags.add(client.uploadPart(uploadPartRequest).getPartETag());
+                } finally {
+                    releasePart(part);
+                }
+            }
+        });
+    }
+
+    private static InputStream content(ByteBuffer buffer) {
+        if (buffer == null) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        ByteBuffer written = buffer.duplicate();
+        written.flip();
+        return new ByteBufferInputStream(written);
+    }
+
+    private void releasePart(ByteBuffer part) {
+        synchronized (pendingParts) {
+            if (!pendingParts.remove(part)) {
+                return;
+            }
+        }
+        buffers.release(part);
+    }
+
+    private void releaseBuffers() {
+        if (buffer != null) {
+            buffers.release(buffer);
+            buffer = null;
+        }
+        List<ByteBuffer> neverUploaded;
+        synchronized (pendingParts) {
+            neverUploaded = new ArrayList<>(pendingParts);
+        }
+        for (ByteBuffer part : neverUploaded) {
+            releasePart(part);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.indix.gocd.utils.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compresses what is written to it on all cores, the way pigz does.
+ *
+ * The content is cut into blocks which are compressed as independent gzip members in
+ * parallel and written out in order. Concatenated members are a valid gzip stream, which
+ * GZIPInputStream, gunzip and HTTP clients decode as one. Only a few blocks per core are
+ * held in memory at a time, writing blocks until the oldest one is compressed. Every block
+ * is buffered in the {@link BufferPool} together with room for its compressed member, so
+ * writing also waits when it is exhausted, after writing out the members it holds.
+ *
+ * Writing out a member into an upload may wait for a part while the stream holds its other
+ * blocks, so streams compressing into uploads take blocks and parts from a lease set aside
+ * for both, see {@link #leaseFor(long)}.
+ */
+class ParallelGzipOutputStream extends OutputStream {
+    static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    // Deflater only takes arrays before Java 11, blocks are fed to it through these
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[64 * 1024];
+        }
+    };
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final int bufferSize;
+    private final Buffers buffers;
+    private final int maxPendingBlocks;
+    private final Deque<Member> pending = new ArrayDeque<>();
+
+    private ByteBuffer block;
+    private int count;
+    private boolean written;
+    private boolean closed;
+
+    ParallelGzipOutputStream(OutputStream out) {
+        this(out, DEFAULT_BLOCK_SIZE);
+    }
+
+    ParallelGzipOutputStream(OutputStream out, int blockSize) {
+        this(out, blockSize, BufferPool.shared(), Compression.threads() * 2);
+    }
+
+    /**
+     * Compresses into the upload, which takes its parts from the same lease
+     */
+    ParallelGzipOutputStream(MultipartOutputStream upload, BufferPool.Lease lease) {
+        this(upload, DEFAULT_BLOCK_SIZE, lease, (int) Math.max(1, (lease.getBudget() - upload.getPartSize()) / bufferSizeFor(DEFAULT_BLOCK_SIZE)));
+    }
+
+    private ParallelGzipOutputStream(OutputStream out, int blockSize, Buffers buffers, int maxPendingBlocks) {
+        this.out = out;
+        this.blockSize = blockSize;
+        this.bufferSize = bufferSizeFor(blockSize);
+        this.buffers = buffers;
+        this.maxPendingBlocks = maxPendingBlocks;
+        BufferPool.shared().fit(bufferSize);
+    }
+
+    /**
+     * Sets aside the most a stream compressing into an upload of parts of the size holds at
+     * a time, its blocks and a part. Fewer blocks are compressed at a time in a small pool,
+     * so that a stream takes at most half of it where a part leaves room for that.
+     */
+    static BufferPool.Lease leaseFor(long partSize) {
+        BufferPool pool = BufferPool.shared();
+        int bufferSize = bufferSizeFor(DEFAULT_BLOCK_SIZE);
+        long blocks = Math.max(1, Math.min(Compression.threads() * 2, (pool.getCapacity() / 2 - partSize) / bufferSize));
+        return pool.lease(blocks * bufferSize + partSize);
+    }
+
+    private static int bufferSizeFor(int blockSize) {
+        return blockSize + maxMemberSize(blockSize);
+    }
+
+    /**
+     * The bound zlib gives for deflating the bytes with the default settings, plus the gzip
+     * header and trailer, as incompressible blocks come out slightly larger than they went in.
+     * Whatever another zlib build compresses beyond it spills over to the heap.
+     */
+    static int maxMemberSize(int length) {
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 18;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (block == null) {
+                block = acquireBlock();
+            }
+            int copied = Math.min(length, blockSize - count);
+            block.put(bytes, offset, copied);
+            count += copied;
+            offset += copied;
+            length -= copied;
+            if (count == blockSize) {
+                compressBlock();
+            }
+        }
+    }
+
+    /**
+     * Compresses and writes out everything written so far, without closing the underlying stream
+     */
+    void finish() throws IOException {
+        if (count > 0 || !written) {
+            // An empty stream still has to be a valid gzip stream
+            compressBlock();
+        }
+        while (!pending.isEmpty()) {
+            writeOldest();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+        } finally {
+            discard();
+        }
+        out.close();
+    }
+
+    /**
+     * Gives up on compressing what was written and gives its blocks back to the pool,
+     * without writing anything more
+     */
+    void discard() {
+        closed = true;
+        boolean interrupted = false;
+        while (!pending.isEmpty()) {
+            Member member = pending.removeFirst();
+            // A block being compressed is still written to, it can only go back to the pool once done
+            if (!member.compression.cancel(false)) {
+                while (true) {
+                    try {
+                        member.compression.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException | CancellationException e) {
+                        break;
+                    }
+                }
+            }
+            buffers.release(member.buffer);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (block != null) {
+            buffers.release(block);
+            block = null;
+        }
+    }
+
+    /**
+     * Compressed members are only given back to the pool once written out, so they are
+     * written before waiting for memory, or streams could wait on the memory they hold
+     */
+    private ByteBuffer acquireBlock() throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = buffers.tryAcquire(bufferSize)) == null && !pending.isEmpty()) {
+            writeOldest();
+        }
+        return buffer != null ? buffer : buffers.acquire(bufferSize);
+    }
+
+    private void compressBlock() throws IOException {
+        if (block == null) {
+            block = acquireBlock();
+        }
+        final ByteBuffer buffer = block;
+        final int length = count;
+        block = null;
+        count = 0;
+        Future<byte[]> compression;
+        try {
+            compression = Compression.executor().submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    final ByteBuffer member = buffer.duplicate();
+                    member.limit(member.capacity()).position(blockSize);
+                    final ByteArrayOutputStream overflow = new ByteArrayOutputStream(0);
+                    try (GZIPOutputStream gzip = new GZIPOutputStream(new OutputStream() {
+                        @Override
+                        public void write(int b) {
+                            write(new byte[]{(byte) b}, 0, 1);
+                        }
+
+                        @Override
+                        public void write(byte[] compressed, int offset, int size) {
+                            int fits = Math.min(size, member.remaining());
+                            member.put(compressed, offset, fits);
+                            overflow.write(compressed, offset + fits, size - fits);
+                        }
+                    }, 64 * 1024)) {
+                        ByteBuffer bytes = buffer.duplicate();
+                        bytes.position(0).limit(length);
+                        byte[] chunk = scratch.get();
+                        while (bytes.hasRemaining()) {
+                            int read = Math.min(chunk.length, bytes.remaining());
+                            bytes.get(chunk, 0, read);
+                            gzip.write(chunk, 0, read);
+                        }
+                    }
+                    buffer.limit(member.position()).position(blockSize);
+                    return overflow.size() > 0 ? overflow.toByteArray() : null;
+                }
+            });
+        } catch (RuntimeException e) {
+            buffers.release(buffer);
+            throw e;
+        }
+        pending.add(new Member(buffer, compression));
+        written = true;
+        while (pending.size() >= maxPendingBlocks) {
+            writeOldest();
+        }
+    }
+
+    /**
+     * Writes out the oldest member once compressed. It stays pending until written, so a
+     * failure leaves it for {@link #discard()} to give back.
+     */
+    private void writeOldest() throws IOException {
+        Member member = pending.getFirst();
+        byte[] overflow;
+        try {
+            overflow = member.compression.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress - " + e.getCause().getMessage(), e.getCause());
+        }
+        ByteBuffer bytes = member.buffer.duplicate();
+        byte[] chunk = scratch.get();
+        while (bytes.hasRemaining()) {
+            int read = Math.min(chunk.length, bytes.remaining());
+            bytes.get(chunk, 0, read);
+            out.write(chunk, 0, read);
+        }
+        if (overflow != null) {
+            out.write(overflow);
+        }
+        pending.removeFirst();
+        buffers.release(member.buffer);
+    }
+
+    private static class Member {
+        private final ByteBuffer buffer;
+        private final Future<byte[]> compression;
+
+        Member(ByteBuffer buffer, Future<byte[]> compression) {
+            this.buffer = buffer;
+            this.compression = compression;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.indix.gocd.utils.store;
+
+import com.thoughtworks.go.plugin.api.logging.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A download written to a <code>.part</code> file next to its destination, which is only
+ * moved into place once it is complete, so the destination never holds half an object.
+ *
+ * Downloads split into ranges record every range they finish in a <code>.part.etag</code>
+ * sidecar with the MD5 of its content, along with the ETag of the object and the range
+ * size, so that resumed downloads can still be verified. A later download of the
+ * same version of the object picks the sidecar back up and only fetches the ranges that
+ * are missing, a download of any other version starts over.
+ */
+class PartialDownload {
+    static final String SUFFIX = ".part";
+    static final String SIDECAR_SUFFIX = ".part.etag";
+    private static final Logger logger = Logger.getLoggerFor(PartialDownload.class);
+
+    private final File destination;
+    private final File part;
+    private final File sidecar;
+    // MD5 of every finished range by offset, empty when it was not digested
+    private final Map<Long, String> finishedRanges = new ConcurrentHashMap<>();
+    private Writer progress;
+
+    private PartialDownload(File destination) {
+        this.destination = destination;
+        this.part = new File(destination.getPath() + SUFFIX);
+        this.sidecar = new File(destination.getPath() + SIDECAR_SUFFIX);
+    }
+
+    /**
+     * Starts a download written in a single pass, anything an earlier download left is overwritten
+     */
+    static PartialDownload start(File destination) {
+        PartialDownload download = new PartialDownload(destination);
+        download.sidecar.delete();
+        return download;
+    }
+
+    /**
+     * Starts a download split into ranges of <code>rangeSize</code> bytes, picking up the
+     * ranges an earlier download of the same version of the object finished
+     *
+     * @param eTag ETag of the object, without one there is nothing to tell versions apart by
+     */
+    static PartialDownload startRanged(File destination, String eTag, long rangeSize) {
+        PartialDownload download = new PartialDownload(destination);
+        if (eTag == null) {
+            download.sidecar.delete();
+            return download;
+        }
+        String header = eTag + " " + rangeSize;
+        download.resume(header);
+        try {
+            if (download.finishedRanges.isEmpty()) {
+                Files.write(download.sidecar.toPath(), (header + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            download.progress = Files.newBufferedWriter(download.sidecar.toPath(), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            // The download still works, a later one just can't resume it
+            logger.warn(String.format("Could not record the progress of %s in %s - %s", destination, download.sidecar, e.getMessage()));
+        }
+        return download;
+    }
+
+    private void resume(String header) {
+        if (!part.isFile() || !sidecar.isFile()) {
+            return;
+        }
+        try {
+            List<String> lines = Files.readAllLines(sidecar.toPath(), StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !header.equals(lines.get(0))) {
+                // Left by a download of another version of the object
+                return;
+            }
+            for (String line : lines.subList(1, lines.size())) {
+                String[] fields = line.trim().split(" ");
+                try {
+                    finishedRanges.put(Long.parseLong(fields[0]), fields.length > 1 ? fields[1] : "");
+                } catch (NumberFormatException e) {
+                    // Cut short when the download was interrupted
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            logger.warn(String.format("Ignoring unreadable download progress %s - %s", sidecar, e.getMessage()));
+            finishedRanges.clear();
+        }
+    }
+
+    File getFile() {
+        return part;
+    }
+
+    /**
+     * @return whether an earlier download already finished the range starting at this offset
+     */
+    boolean isFinished(long start) {
+        return finishedRanges.containsKey(start);
+    }
+
+    /**
+     * @return the MD5 of the range starting at this offset, or null when it is unknown
+     */
+    String getMd5(long start) {
+        String md5 = finishedRanges.get(start);
+        return md5 != null && !md5.isEmpty() ? md5 : null;
+    }
+
+    /**
+     * @return number of ranges finished so far, counting those of an earlier download
+     */
+    int getFinishedCount() {
+        return finishedRanges.size();
+    }
+
+    /**
+     * @param md5 MD5 of the content of the range, null when it was not digested
+     */
+    synchronized void finished(long start, String md5) {
+        String hex = md5 != null ? md5 : "";
+        finishedRanges.put(start, hex);
+        if (progress == null) {
+            return;
+        }
+        try {
+            progress.write(hex.isEmpty() ? start + "\n" : start + " " + hex + "\n");
+            progress.flush();
+        } catch (IOException e) {
+            logger.warn(String.format("Could not record the progress of %s in %s - %s", destination, sidecar, e.getMessage()));
+            closeProgress();
+        }
+    }
+
+    /**
+     * Moves the finished download into place, replacing whatever was there
+     */
+    void complete() throws IOException {
+        closeProgress();
+        if (!part.exists()) {
+            // Nothing was written, which the size checks of the fetch report
+            sidecar.delete();
+            return;
+        }
+        try {
+            Files.move(part.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        sidecar.delete();
+    }
+
+    /**
+     * Keeps what was downloaded so far for a later download to resume, when it can
+     */
+    void interrupted() {
+        closeProgress();
+        if (!sidecar.isFile()) {
+            part.delete();
+        }
+    }
+
+    /**
+     * Throws away what was downloaded, which a later download must not resume from
+     */
+    void discard() {
+        closeProgress();
+        discard(destination);
+    }
+
+    static void discard(File destination) {
+        new File(destination.getPath() + SUFFIX).delete();
+        new File(destination.getPath() + SIDECAR_SUFFIX).delete();
+    }
+
+    private synchronized void closeProgress() {
+        if (progress == null) {
+            return;
+        }
+        try {
+            progress.close();
+        } catch (IOException e) {
+            logger.warn(String.format("Could not close %s - %s", sidecar, e.getMessage()));
+        }
+        progress = null;
+    }
+}
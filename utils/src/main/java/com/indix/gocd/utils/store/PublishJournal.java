@@ -0,0 +1,352 @@
+package com.indix.gocd.utils.store;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.indix.gocd.models.ManifestEntry;
+import com.thoughtworks.go.plugin.api.logging.Logger;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the progress of a publish in the working directory, so that running the task
+ * again for the same revision picks up where a run that died or timed out stopped.
+ *
+ * Every uploaded file is recorded with the size and modification time it had, and every
+ * multipart upload with its upload ID and the parts finished so far. A later run skips the
+ * files that are unchanged since and resumes their unfinished multipart uploads. Records
+ * are appended a line at a time as uploads finish, a line cut short by the agent dying is
+ * dropped when the journal is read back.
+ *
+ * The journal only holds for the revision it was started for, and is deleted once the
+ * revision is marked complete. Multipart uploads recorded that no run is going to resume,
+ * those of another revision and those of files changed or gone since, are handed out as
+ * abandoned so that they can be aborted instead of keeping their parts in the bucket.
+ */
+public class PublishJournal implements Closeable {
+    public static final String FILE_NAME = ".gocd-s3-publish-journal";
+    private static final Logger logger = Logger.getLoggerFor(PublishJournal.class);
+    private static final Gson gson = new GsonBuilder().create();
+    private static final String PUBLISH = "publish";
+    private static final String COMPLETED = "completed";
+    private static final String UPLOAD = "upload";
+    private static final String PART = "part";
+    private static final String UPLOADED = "uploaded";
+
+    private final File file;
+    private final Map<String, Record> completed = new ConcurrentHashMap<>();
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    // Upload IDs by key
+    private final Map<String, String> abandoned = new HashMap<>();
+    private final AtomicInteger skippedCount = new AtomicInteger();
+    private Writer writer;
+
+    private PublishJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads back the journal an earlier run left in the directory when it was publishing the
+     * same revision, or starts a new one
+     */
+    public static PublishJournal open(File directory, String destinationPrefix) {
+        PublishJournal journal = new PublishJournal(new File(directory, FILE_NAME));
+        journal.read(destinationPrefix);
+        journal.rewrite(destinationPrefix);
+        return journal;
+    }
+
+    /**
+     * @return the manifest entry of the file when an earlier run uploaded it to the key and
+     * the file is unchanged since, or null when it has to be uploaded
+     */
+    public ManifestEntry skipIfCompleted(String key, File localFile) {
+        Record record = completed.get(key);
+        if (record == null || !localFile.isFile() || localFile.length() != record.size || localFile.lastModified() != record.lastModified) {
+            return null;
+        }
+        skippedCount.incrementAndGet();
+        return record.entry;
+    }
+
+    public void completed(String key, File localFile, ManifestEntry entry) {
+        Record record = new Record(COMPLETED, key);
+        record.size = localFile.length();
+        record.lastModified = localFile.lastModified();
+        record.entry = entry;
+        completed.put(key, record);
+        append(record);
+    }
+
+    /**
+     * @return the multipart upload an earlier run started for the file with the same part
+     * size, or null when there is none to resume
+     */
+    Upload getUpload(String key, File localFile, long partSize) {
+        Upload upload = uploads.get(key);
+        if (upload == null) {
+            return null;
+        }
+        if (localFile.length() != upload.record.size || localFile.lastModified() != upload.record.lastModified || partSize != upload.record.partSize) {
+            abandon(uploads.remove(key));
+            return null;
+        }
+        return upload;
+    }
+
+    void startedUpload(String key, File localFile, String uploadId, long partSize) {
+        Record record = new Record(UPLOAD, key);
+        record.uploadId = uploadId;
+        record.size = localFile.length();
+        record.lastModified = localFile.lastModified();
+        record.partSize = partSize;
+        uploads.put(key, new Upload(record));
+        append(record);
+    }
+
+    void uploadedPart(String key, int partNumber, String eTag) {
+        Upload upload = uploads.get(key);
+        if (upload != null) {
+            upload.parts.put(partNumber, eTag);
+        }
+        Record record = new Record(PART, key);
+        record.partNumber = partNumber;
+        record.eTag = eTag;
+        append(record);
+    }
+
+    void finishedUpload(String key) {
+        uploads.remove(key);
+        append(new Record(UPLOADED, key));
+    }
+
+    /**
+     * Gives up on the multipart uploads still recorded, which once the revision is complete
+     * belong to files that were not published again
+     */
+    public void abandonUnfinishedUploads() {
+        for (String key : new ArrayList<>(uploads.keySet())) {
+            abandon(uploads.remove(key));
+        }
+    }
+
+    /**
+     * @return the upload IDs of the multipart uploads no run is going to resume by key,
+     * each handed out once
+     */
+    synchronized Map<String, String> takeAbandonedUploads() {
+        Map<String, String> taken = new HashMap<>(abandoned);
+        abandoned.clear();
+        return taken;
+    }
+
+    private synchronized void abandon(Upload upload) {
+        if (upload != null && upload.record.uploadId != null) {
+            abandoned.put(upload.record.key, upload.record.uploadId);
+            append(new Record(UPLOADED, upload.record.key));
+        }
+    }
+
+    /**
+     * @return number of files skipped as an earlier run uploaded them
+     */
+    public int getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    /**
+     * @return number of multipart uploads an earlier run left unfinished
+     */
+    public int getUnfinishedUploadCount() {
+        return uploads.size();
+    }
+
+    /**
+     * Removes the journal once the revision is complete, there is nothing left to resume
+     */
+    public synchronized void delete() {
+        close();
+        if (file.exists() && !file.delete()) {
+            logger.warn(String.format("Could not delete publish journal %s", file));
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.warn(String.format("Could not close publish journal %s - %s", file, e.getMessage()));
+        }
+        writer = null;
+    }
+
+    private void read(String destinationPrefix) {
+        if (!file.isFile()) {
+            return;
+        }
+        Record start;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            start = line != null ? parse(line) : null;
+            if (start == null || !PUBLISH.equals(start.type)) {
+                return;
+            }
+            while ((line = reader.readLine()) != null) {
+                Record record = parse(line);
+                if (record == null) {
+                    // The rest was being written when the run died
+                    break;
+                }
+                replay(record);
+            }
+        } catch (IOException e) {
+            logger.warn(String.format("Ignoring unreadable publish journal %s - %s", file, e.getMessage()));
+            completed.clear();
+            uploads.clear();
+            return;
+        }
+        if (!destinationPrefix.equals(start.key)) {
+            // Left by a run of another revision, nothing in it applies but its unfinished uploads have to go
+            completed.clear();
+            for (Upload upload : uploads.values()) {
+                if (upload.record.uploadId != null) {
+                    abandoned.put(upload.record.key, upload.record.uploadId);
+                }
+            }
+            uploads.clear();
+        }
+    }
+
+    private Record parse(String line) {
+        try {
+            Record record = gson.fromJson(line, Record.class);
+            return record != null && record.type != null && record.key != null ? record : null;
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    private void replay(Record record) {
+        if (COMPLETED.equals(record.type)) {
+            completed.put(record.key, record);
+        } else if (UPLOAD.equals(record.type)) {
+            uploads.put(record.key, new Upload(record));
+        } else if (PART.equals(record.type) && uploads.containsKey(record.key) && record.partNumber != null) {
+            uploads.get(record.key).parts.put(record.partNumber, record.eTag);
+        } else if (UPLOADED.equals(record.type)) {
+            uploads.remove(record.key);
+        }
+    }
+
+    /**
+     * Writes what is still relevant to a fresh journal, which also drops any line cut short
+     */
+    private synchronized void rewrite(String destinationPrefix) {
+        List<Record> records = new ArrayList<>();
+        records.add(new Record(PUBLISH, destinationPrefix));
+        records.addAll(completed.values());
+        for (Upload upload : uploads.values()) {
+            records.add(upload.record);
+            for (Map.Entry<Integer, String> part : upload.parts.entrySet()) {
+                Record record = new Record(PART, upload.record.key);
+                record.partNumber = part.getKey();
+                record.eTag = part.getValue();
+                records.add(record);
+            }
+        }
+
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+            try (Writer out = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8)) {
+                for (Record record : records) {
+                    out.write(gson.toJson(record));
+                    out.write('\n');
+                }
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            // Without the journal the publish still works, it just can't be resumed
+            logger.warn(String.format("Could not write publish journal %s - %s", file, e.getMessage()));
+            temporary.delete();
+        }
+    }
+
+    private synchronized void append(Record record) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(gson.toJson(record));
+            writer.write('\n');
+            // Handed to the OS right away, so the record outlives the agent process
+            writer.flush();
+        } catch (IOException e) {
+            logger.warn(String.format("Could not write to publish journal %s, the rest of this publish can't be resumed - %s", file, e.getMessage()));
+            close();
+        }
+    }
+
+    /**
+     * A multipart upload an earlier run started, with the parts it finished
+     */
+    static class Upload {
+        private final Record record;
+        private final Map<Integer, String> parts = Collections.synchronizedMap(new TreeMap<Integer, String>());
+
+        private Upload(Record record) {
+            this.record = record;
+        }
+
+        String getUploadId() {
+            return record.uploadId;
+        }
+
+        /**
+         * @return the ETags of the finished parts by part number
+         */
+        Map<Integer, String> getParts() {
+            synchronized (parts) {
+                return new TreeMap<>(parts);
+            }
+        }
+    }
+
+    private static class Record {
+        private String type;
+        private String key;
+        private long size;
+        private long lastModified;
+        private ManifestEntry entry;
+        private String uploadId;
+        private long partSize;
+        private Integer partNumber;
+        private String eTag;
+
+        Record(String type, String key) {
+            this.type = type;
+            this.key = key;
+        }
+    }
+}
@@ -1,13 +1,14 @@
 package com.indix.gocd.utils.store;
 
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.auth.InstanceProfileCredentialsProvider;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.*;
+import com.amazonaws.services.s3.internal.Mimetypes;
+import com.amazonaws.util.BinaryUtils;
 import com.indix.gocd.models.Artifact;
+import com.indix.gocd.models.Manifest;
+import com.indix.gocd.models.ManifestEntry;
 import com.indix.gocd.models.ResponseMetadataConstants;
 import com.indix.gocd.models.Revision;
 import com.indix.gocd.models.RevisionStatus;
@@ -16,16 +17,47 @@ import com.indix.gocd.utils.utils.Function;
 import com.indix.gocd.utils.utils.Functions;
 import com.indix.gocd.utils.utils.Lists;
 import com.indix.gocd.utils.utils.Maps;
+import com.thoughtworks.go.plugin.api.logging.Logger;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
 
 import static com.indix.gocd.utils.Constants.*;
 
 public class S3ArtifactStore {
+    private static Logger logger = Logger.getLoggerFor(S3ArtifactStore.class);
 
     private static Map<String, StorageClass> STORAGE_CLASSES = Maps.<String, StorageClass>builder()
             .with(STORAGE_CLASS_STANDARD, StorageClass.Standard)
@@ -34,13 +66,57 @@ public class S3ArtifactStore {
             .with(STORAGE_CLASS_GLACIER, StorageClass.Glacier)
             .build();
 
+    public static final long MEGABYTE = 1024L * 1024L;
+    public static final long DEFAULT_MULTIPART_THRESHOLD = 64 * MEGABYTE;
+    public static final long DEFAULT_MULTIPART_PART_SIZE = 16 * MEGABYTE;
+    public static final int DEFAULT_MULTIPART_CONCURRENCY = 4;
+    public static final long DEFAULT_RANGED_GET_THRESHOLD = 64 * MEGABYTE;
+    public static final long DEFAULT_RANGED_GET_SIZE = 16 * MEGABYTE;
+    public static final int DEFAULT_RANGED_GET_CONCURRENCY = 4;
+    // Smaller files are not worth storing as chunks, they would mostly be a single chunk
+    public static final long MIN_CHUNKED_SIZE = MEGABYTE;
+    // Larger objects can only be copied in parts
+    public static final long MAX_COPY_SIZE = 5 * 1024 * MEGABYTE;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    // Larger files are never read into a single buffer, to keep sizes within an int
+    private static final long MAX_BUFFERED_SIZE = 1 << 30;
+    // Two listing pages worth of keys
+    private static final int LISTING_QUEUE_CAPACITY = 2000;
+    // Objects found by listing are scheduled a listing page at a time
+    private static final int SCHEDULING_WINDOW = 1000;
+    private static final long MIN_MULTIPART_PART_SIZE = 5 * MEGABYTE;
+    private static final int MAX_MULTIPART_PARTS = 10000;
+    // Times a range is requested again from where its connection dropped before giving up
+    private static final int MAX_RANGE_ATTEMPTS = 3;
+    // Times an object whose content doesn't match its checksum is downloaded
+    private static final int MAX_VERIFY_ATTEMPTS = 2;
+    // What a request costs compared to downloading bytes, in bytes, when deciding how to fetch from a bundle
+    private static final long BUNDLE_RANGE_COST = 256 * 1024;
+
     private AmazonS3 client;
     private String bucket;
     private StorageClass storageClass = StorageClass.Standard;
+    private int concurrency = 1;
+    private AdaptiveConcurrency adaptiveConcurrency;
+    private long multipartThreshold = DEFAULT_MULTIPART_THRESHOLD;
+    private long multipartPartSize = DEFAULT_MULTIPART_PART_SIZE;
+    private int multipartConcurrency = DEFAULT_MULTIPART_CONCURRENCY;
+    private long rangedGetThreshold = DEFAULT_RANGED_GET_THRESHOLD;
+    private long rangedGetSize = DEFAULT_RANGED_GET_SIZE;
+    private int rangedGetConcurrency = DEFAULT_RANGED_GET_CONCURRENCY;
+    private ArtifactCache cache;
+    private boolean sync = false;
+    private boolean prune = false;
+    private final AtomicInteger unchangedCount = new AtomicInteger();
+    private final AtomicInteger prunedCount = new AtomicInteger();
+    private final AtomicInteger extractedCount = new AtomicInteger();
+    private final ChunkStore chunkStore;
+    private PublishJournal journal;
 
     public S3ArtifactStore(AmazonS3 client, String bucket) {
         this.client = client;
         this.bucket = bucket;
+        this.chunkStore = new ChunkStore(client, bucket);
     }
 
     public S3ArtifactStore(GoEnvironment env, String bucket) {
@@ -60,18 +136,518 @@ public class S3ArtifactStore {
         }
     }
 
-    public void put(String from, String to) {
-        put(new PutObjectRequest(bucket, to, new File(from)));
+    /**
+     * Number of objects transferred in parallel by {@link #getPrefix(String, String)}
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Invalid concurrency specified for S3 transfers - " + concurrency + ". It should be a positive number");
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Makes {@link #getPrefix(String, String)} find the number of objects to transfer in
+     * parallel while transferring, instead of using a fixed concurrency
+     */
+    public void setAdaptiveConcurrency(AdaptiveConcurrency adaptiveConcurrency) {
+        this.adaptiveConcurrency = adaptiveConcurrency;
+    }
+
+    public AdaptiveConcurrency getAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    /**
+     * Files larger than this many bytes are uploaded as multipart uploads
+     */
+    public void setMultipartThreshold(long multipartThreshold) {
+        if (multipartThreshold < MIN_MULTIPART_PART_SIZE) {
+            throw new IllegalArgumentException("Invalid multipart threshold specified for S3 - " + multipartThreshold + ". It should be at least 5 MB");
+        }
+        this.multipartThreshold = multipartThreshold;
+    }
+
+    public void setMultipartPartSize(long multipartPartSize) {
+        if (multipartPartSize < MIN_MULTIPART_PART_SIZE) {
+            throw new IllegalArgumentException("Invalid multipart part size specified for S3 - " + multipartPartSize + ". It should be at least 5 MB");
+        }
+        this.multipartPartSize = multipartPartSize;
+    }
+
+    /**
+     * Number of parts of a single multipart upload sent in parallel
+     */
+    public void setMultipartConcurrency(int multipartConcurrency) {
+        if (multipartConcurrency < 1) {
+            throw new IllegalArgumentException("Invalid multipart concurrency specified for S3 - " + multipartConcurrency + ". It should be a positive number");
+        }
+        this.multipartConcurrency = multipartConcurrency;
+    }
+
+    /**
+     * Objects larger than this many bytes are downloaded as parallel ranged GETs
+     */
+    public void setRangedGetThreshold(long rangedGetThreshold) {
+        if (rangedGetThreshold < 1) {
+            throw new IllegalArgumentException("Invalid ranged get threshold specified for S3 - " + rangedGetThreshold + ". It should be a positive number");
+        }
+        this.rangedGetThreshold = rangedGetThreshold;
+    }
+
+    public void setRangedGetSize(long rangedGetSize) {
+        if (rangedGetSize < 1) {
+            throw new IllegalArgumentException("Invalid ranged get size specified for S3 - " + rangedGetSize + ". It should be a positive number");
+        }
+        this.rangedGetSize = rangedGetSize;
+    }
+
+    /**
+     * Number of ranges of a single object downloaded in parallel
+     */
+    public void setRangedGetConcurrency(int rangedGetConcurrency) {
+        if (rangedGetConcurrency < 1) {
+            throw new IllegalArgumentException("Invalid ranged get concurrency specified for S3 - " + rangedGetConcurrency + ". It should be a positive number");
+        }
+        this.rangedGetConcurrency = rangedGetConcurrency;
     }
 
-    public void put(String from, String to, ObjectMetadata metadata) {
-        put(new PutObjectRequest(bucket, to, new File(from))
+    /**
+     * Downloads are looked up in, and added to, this cache when set
+     */
+    public void setCache(ArtifactCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Makes {@link #getPrefix(String, String)} download only the objects whose local copy is
+     * missing or different, and with <code>prune</code> also delete the files an earlier sync
+     * downloaded that are no longer at the source.
+     */
+    public void setSync(boolean sync, boolean prune) {
+        this.sync = sync;
+        this.prune = sync && prune;
+    }
+
+    /**
+     * Makes multipart uploads record their progress in the journal and resume the uploads an
+     * earlier run recorded there, instead of aborting unfinished uploads on failure
+     */
+    public void setJournal(PublishJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return number of files found unchanged and not downloaded again while syncing
+     */
+    public int getUnchangedCount() {
+        return unchangedCount.get();
+    }
+
+    /**
+     * @return number of files deleted while syncing as their objects were gone
+     */
+    public int getPrunedCount() {
+        return prunedCount.get();
+    }
+
+    /**
+     * @return number of archives extracted by the fetches so far
+     */
+    public int getExtractedCount() {
+        return extractedCount.get();
+    }
+
+    /**
+     * @return bytes of chunks uploaded by {@link #putChunked(String, String)} so far
+     */
+    public long getChunkUploadedBytes() {
+        return chunkStore.getUploadedBytes();
+    }
+
+    /**
+     * @return bytes of chunks {@link #putChunked(String, String)} found already in the bucket so far
+     */
+    public long getChunkReusedBytes() {
+        return chunkStore.getReusedBytes();
+    }
+
+    /**
+     * @return the ETag of the uploaded object, when S3 reported one
+     */
+    public String put(String from, String to) {
+        return put(new PutObjectRequest(bucket, to, new File(from)));
+    }
+
+    public String put(String from, String to, ObjectMetadata metadata) {
+        return put(new PutObjectRequest(bucket, to, new File(from))
                 .withMetadata(metadata));
     }
 
-    public void put(PutObjectRequest putObjectRequest) {
+    public String put(PutObjectRequest putObjectRequest) {
         putObjectRequest.setStorageClass(this.storageClass);
-        client.putObject(putObjectRequest);
+        BandwidthLimiter.limitUpload(putObjectRequest);
+        File file = putObjectRequest.getFile();
+        if (file != null && file.length() > multipartThreshold) {
+            return putMultipart(putObjectRequest, file);
+        } else if (file != null && file.length() > 0) {
+            return putWithMd5(putObjectRequest, file);
+        } else {
+            PutObjectResult result = client.putObject(putObjectRequest);
+            return result != null ? result.getETag() : null;
+        }
+    }
+
+    /**
+     * Uploads the file with the MD5 of its content for S3 to check the upload against and to
+     * keep in the user metadata. Files up to a part are read into a buffer of the pool, which
+     * is hashed and uploaded, so they are read from disk only once. Larger files are hashed
+     * first and read again by the upload, from the page cache hashing pulled them into.
+     */
+    private String putWithMd5(PutObjectRequest putObjectRequest, File file) {
+        long length = file.length();
+        ByteBuffer content = length <= Math.min(multipartPartSize, MAX_BUFFERED_SIZE) ? BufferPool.shared().acquire(bufferSizeFor(length)) : null;
+        try {
+            byte[] md5;
+            if (content != null) {
+                content.limit((int) length);
+                read(file, 0, content);
+                content.flip();
+                md5 = ETags.md5(content);
+            } else {
+                md5 = BinaryUtils.fromHex(ETags.md5(file));
+            }
+            ObjectMetadata metadata = putObjectRequest.getMetadata() != null ? putObjectRequest.getMetadata() : new ObjectMetadata();
+            if (metadata.getContentType() == null) {
+                metadata.setContentType(Mimetypes.getInstance().getMimetype(file));
+            }
+            metadata.setContentMD5(BinaryUtils.toBase64(md5));
+            metadata.addUserMetadata(METADATA_MD5, BinaryUtils.toHex(md5));
+            if (content != null) {
+                metadata.setContentLength(content.remaining());
+                putObjectRequest.setFile(null);
+                putObjectRequest.setInputStream(new ByteBufferInputStream(content));
+            }
+            putObjectRequest.setMetadata(metadata);
+            PutObjectResult result = client.putObject(putObjectRequest);
+            return result != null ? result.getETag() : null;
+        } catch (IOException e) {
+            throw new AmazonClientException(String.format("Failed to read %s - %s", file, e.getMessage()), e);
+        } finally {
+            if (content != null) {
+                BufferPool.shared().release(content);
+            }
+        }
+    }
+
+    /**
+     * @return the size of the pool buffer to read that many bytes into, in powers of two so
+     * that buffers are reused across files of about the same size
+     */
+    private static int bufferSizeFor(long length) {
+        return Math.max(BufferPool.BUFFER_SIZE, Integer.highestOneBit((int) length - 1) << 1);
+    }
+
+    /**
+     * Fills the buffer up to its limit with the bytes of the file from the offset on
+     */
+    private static void read(File file, long offset, ByteBuffer buffer) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read == -1) {
+                    throw new IOException(String.format("File ended at %d bytes while it was being uploaded", position));
+                }
+                position += read;
+            }
+        } catch (IOException e) {
+            throw new AmazonClientException(String.format("Failed to read %s - %s", file, e.getMessage()), e);
+        }
+    }
+
+    private String putMultipart(PutObjectRequest putObjectRequest, final File file) {
+        final String bucketName = putObjectRequest.getBucketName();
+        final String key = putObjectRequest.getKey();
+        final long fileSize = file.length();
+        final long partSize = partSizeFor(fileSize);
+        final int partCount = (int) ((fileSize + partSize - 1) / partSize);
+        final PartETag[] partETags = new PartETag[partCount];
+
+        PublishJournal.Upload resumed = journal != null ? journal.getUpload(key, file, partSize) : null;
+        // The upload an earlier run started for another version of the file can't be resumed
+        abortAbandonedUploads();
+        Map<Integer, String> uploadedParts = resumed != null ? listUploadedParts(bucketName, key, resumed) : null;
+        final String uploadId;
+        if (uploadedParts != null) {
+            uploadId = resumed.getUploadId();
+            for (Map.Entry<Integer, String> part : uploadedParts.entrySet()) {
+                if (part.getKey() <= partCount) {
+                    partETags[part.getKey() - 1] = new PartETag(part.getKey(), part.getValue());
+                }
+            }
+            logger.info(String.format("Resuming multipart upload %s of %s with %d of %d parts already uploaded", uploadId, key, uploadedParts.size(), partCount));
+        } else {
+            ObjectMetadata metadata = putObjectRequest.getMetadata() != null ? putObjectRequest.getMetadata() : new ObjectMetadata();
+            InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(bucketName, key, metadata)
+                    .withStorageClass(this.storageClass);
+            uploadId = client.initiateMultipartUpload(initiateRequest).getUploadId();
+            if (journal != null) {
+                journal.startedUpload(key, file, uploadId, partSize);
+            }
+        }
+
+        try {
+            TransferExecutor parts = new TransferExecutor(Math.min(multipartConcurrency, partCount));
+            try {
+                for (int i = 0; i < partCount; i++) {
+                    if (partETags[i] != null) {
+                        continue;
+                    }
+                    final int partNumber = i + 1;
+                    final long offset = i * partSize;
+                    parts.submit(String.format("%s (part %d)", key, partNumber), new Runnable() {
+                        @Override
+                        public void run() {
+                            // Hashed and uploaded from the same buffer, like putWithMd5
+                            ByteBuffer part = BufferPool.shared().acquire((int) partSize);
+                            try {
+                                part.limit((int) Math.min(partSize, fileSize - offset));
+                                read(file, offset, part);
+                                part.flip();
+                                UploadPartRequest uploadPartRequest = BandwidthLimiter.limitUpload(new UploadPartRequest())
+                                        .withBucketName(bucketName)
+                                        .withKey(key)
+                                        .withUploadId(uploadId)
+                                        .withPartNumber(partNumber)
+                                        .withInputStream(new ByteBufferInputStream(part))
+                                        .withPartSize(part.remaining())
+                                        .withMD5Digest(BinaryUtils.toBase64(ETags.md5(part)));
+                                partETags[partNumber - 1] = client.uploadPart(uploadPartRequest).getPartETag();
+                            } finally {
+                                BufferPool.shared().release(part);
+                            }
+                            if (journal != null) {
+                                journal.uploadedPart(key, partNumber, partETags[partNumber - 1].getETag());
+                            }
+                        }
+                    });
+                }
+                parts.awaitCompletion();
+            } finally {
+                parts.shutdown();
+            }
+
+            CompleteMultipartUploadResult result = client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, Arrays.asList(partETags)));
+            if (journal != null) {
+                journal.finishedUpload(key);
+            }
+            return result != null ? result.getETag() : null;
+        } catch (RuntimeException e) {
+            // With a journal the parts uploaded so far are kept for the next run to resume from,
+            // unless running again would fail the same way
+            if (journal == null || !isResumable(e)) {
+                abortMultipart(bucketName, key, uploadId);
+                if (journal != null) {
+                    journal.finishedUpload(key);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Aborts the multipart uploads the journal knows no run is going to resume
+     *
+     * @return number of uploads aborted
+     */
+    public int abortAbandonedUploads() {
+        if (journal == null) {
+            return 0;
+        }
+        Map<String, String> abandoned = journal.takeAbandonedUploads();
+        for (Map.Entry<String, String> upload : abandoned.entrySet()) {
+            abortMultipart(bucket, upload.getKey(), upload.getValue());
+        }
+        return abandoned.size();
+    }
+
+    /**
+     * @return whether running the task again can finish the upload, as it failed on S3 or the
+     * network being unavailable for a while or on being cancelled. Requests S3 turned down,
+     * such as for missing permissions, are turned down again.
+     */
+    private static boolean isResumable(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AmazonServiceException) {
+                int status = ((AmazonServiceException) cause).getStatusCode();
+                return status >= 500 || status == 408 || AdaptiveConcurrency.isThrottling(cause);
+            }
+            if (cause instanceof TransferFailedException) {
+                for (Exception failure : ((TransferFailedException) cause).getFailures().values()) {
+                    if (!isResumable(failure)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the parts of the upload both the journal and S3 know about, by part number, or
+     * null when the upload is gone from S3 and has to be started over
+     */
+    private Map<Integer, String> listUploadedParts(String bucketName, String key, PublishJournal.Upload upload) {
+        Map<Integer, String> recorded = upload.getParts();
+        Map<Integer, String> uploaded = new HashMap<>();
+        try {
+            ListPartsRequest listPartsRequest = new ListPartsRequest(bucketName, key, upload.getUploadId());
+            PartListing listing;
+            do {
+                listing = client.listParts(listPartsRequest);
+                if (listing == null) {
+                    break;
+                }
+                for (PartSummary part : listing.getParts()) {
+                    String eTag = recorded.get(part.getPartNumber());
+                    if (eTag != null && StringUtils.strip(eTag, "\"").equals(StringUtils.strip(part.getETag(), "\""))) {
+                        uploaded.put(part.getPartNumber(), eTag);
+                    }
+                }
+                listPartsRequest.setPartNumberMarker(listing.getNextPartNumberMarker());
+            } while (listing.isTruncated());
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                // Aborted, completed or expired by a lifecycle rule since
+                return null;
+            }
+            throw e;
+        }
+        return uploaded;
+    }
+
+    /**
+     * Starts uploading a tar archive to the key, files are streamed into it as they are added
+     */
+    public ArchiveUpload putArchive(String key, boolean gzip) throws IOException {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(gzip ? "application/gzip" : "application/x-tar");
+        if (!gzip) {
+            return new ArchiveUpload(key, new MultipartOutputStream(client, bucket, key, metadata, storageClass, multipartPartSize, multipartConcurrency));
+        }
+        BufferPool.Lease lease = ParallelGzipOutputStream.leaseFor(multipartPartSize);
+        try {
+            return new ArchiveUpload(key, new MultipartOutputStream(client, bucket, key, metadata, storageClass, multipartPartSize, multipartConcurrency, lease), lease);
+        } catch (IOException | RuntimeException e) {
+            lease.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts a bundle of small files under the revision, files are streamed into it as they are added
+     */
+    public BundleUpload putBundle(String revisionPrefix) {
+        String path = BundleUpload.DIRECTORY + "/" + UUID.randomUUID();
+        String key = revisionPrefix + "/" + path;
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType("application/octet-stream");
+        return new BundleUpload(key, path, new MultipartOutputStream(client, bucket, key, metadata, storageClass, multipartPartSize, multipartConcurrency));
+    }
+
+    /**
+     * Uploads the file gzip compressed on all cores, with a Content-Encoding that lets
+     * fetches and HTTP clients decode it transparently
+     *
+     * @return the manifest entry of the object, holding the size and MD5 of the file itself
+     */
+    public ManifestEntry putCompressed(String from, String to, String path) throws IOException {
+        File file = new File(from);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentEncoding(Compression.GZIP);
+        metadata.setContentType(Mimetypes.getInstance().getMimetype(file));
+        BufferPool.Lease lease = ParallelGzipOutputStream.leaseFor(multipartPartSize);
+        MultipartOutputStream upload = new MultipartOutputStream(client, bucket, to, metadata, storageClass, multipartPartSize, multipartConcurrency, lease);
+        MessageDigest digest = ETags.md5Digest();
+        try (InputStream content = new FileInputStream(file);
+             OutputStream compressed = new ParallelGzipOutputStream(upload, lease)) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                compressed.write(buffer, 0, read);
+            }
+        } catch (IOException | RuntimeException e) {
+            upload.abort();
+            throw e;
+        } finally {
+            lease.close();
+        }
+        return new ManifestEntry(path, file.length(), upload.getETag(), Compression.GZIP, BinaryUtils.toHex(digest.digest()));
+    }
+
+    /**
+     * Uploads the chunks of the file that are not in the bucket yet, to be put back together
+     * on fetch from the manifest entry
+     *
+     * @return the manifest entry of the file, holding its chunks and MD5
+     */
+    public ManifestEntry putChunked(String from, String path) throws IOException {
+        File file = new File(from);
+        MessageDigest digest = ETags.md5Digest();
+        List<ManifestEntry.Chunk> chunks;
+        try (InputStream content = new DigestInputStream(new FileInputStream(file), digest)) {
+            chunks = chunkStore.put(content, storageClass, multipartConcurrency);
+        }
+        String md5 = BinaryUtils.toHex(digest.digest());
+        return new ManifestEntry(path, file.length(), md5, null, md5).withChunks(chunks);
+    }
+
+    private long partSizeFor(long fileSize) {
+        // S3 allows at most 10000 parts, so very large files get larger parts
+        return Math.max(multipartPartSize, (fileSize + MAX_MULTIPART_PARTS - 1) / MAX_MULTIPART_PARTS);
+    }
+
+    /**
+     * @return whether the file has the same content as the object with this ETag, assuming
+     * the object was uploaded by {@link #put(PutObjectRequest)} with the same part size
+     */
+    public boolean hasContent(File file, String eTag) throws IOException {
+        if (eTag == null) {
+            return false;
+        }
+        eTag = StringUtils.strip(eTag, "\"");
+        long fileSize = file.length();
+        if (!ETags.isMultipart(eTag)) {
+            return ETags.md5(file).equalsIgnoreCase(eTag);
+        }
+        long partSize = partSizeFor(fileSize);
+        if ((fileSize + partSize - 1) / partSize != ETags.partCount(eTag)) {
+            return false;
+        }
+        return ETags.multipart(file, partSize).equalsIgnoreCase(eTag);
+    }
+
+    /**
+     * Copies an object within the bucket without downloading it
+     *
+     * @return the ETag of the copy, when S3 reported one
+     */
+    public String copy(String from, String to) {
+        CopyObjectRequest copyObjectRequest = new CopyObjectRequest(bucket, from, bucket, to)
+                .withStorageClass(this.storageClass);
+        CopyObjectResult result = client.copyObject(copyObjectRequest);
+        return result != null ? result.getETag() : null;
+    }
+
+    private void abortMultipart(String bucketName, String key, String uploadId) {
+        try {
+            client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+        } catch (Exception e) {
+            logger.error(String.format("Failed to abort multipart upload %s of %s - %s", uploadId, key, e.getMessage()), e);
+        }
     }
 
     public String pathString(String pathOnS3) {
@@ -79,34 +655,974 @@ public class S3ArtifactStore {
     }
 
     public void get(String from, String to) {
-        GetObjectRequest getObjectRequest = new GetObjectRequest(bucket, from);
+        ObjectMetadata metadata = client.getObjectMetadata(bucket, from);
+        get(from, to, metadata.getContentLength(), metadata.getETag(), metadata.getContentEncoding(), null);
+    }
+
+    /**
+     * @param encoding Content-Encoding of the object when known up front, objects found to be
+     *                 gzip encoded while downloading are decoded either way
+     * @param md5      MD5 of the decoded content of a compressed object, when known
+     */
+    private void get(String from, String to, long size, String eTag, String encoding, String md5) {
         File destinationFile = new File(to);
         destinationFile.getParentFile().mkdirs();
-        client.getObject(getObjectRequest, destinationFile);
+        if (cache != null && eTag != null && cache.fits(size)) {
+            getCached(from, destinationFile, size, eTag, encoding, md5);
+        } else {
+            download(from, destinationFile, size, eTag, encoding, md5);
+        }
+    }
+
+    private void getCached(String from, File destinationFile, long size, String eTag, String encoding, String md5) {
+        try {
+            if (cache.get(bucket, from, eTag, destinationFile)) {
+                return;
+            }
+            File download = cache.newDownload();
+            try {
+                download(from, download, size, eTag, encoding, md5);
+                cache.add(bucket, from, eTag, download, destinationFile);
+            } finally {
+                download.delete();
+                // Cache downloads have names of their own, no later download would resume them
+                PartialDownload.discard(download);
+            }
+        } catch (IOException e) {
+            throw new AmazonClientException(String.format("Failed to fetch %s through the artifact cache - %s", from, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Downloads the object, checking its content against its ETag as it is written, and
+     * downloads it again when it turns out corrupt
+     */
+    private void download(String from, File destinationFile, long size, String eTag, String encoding, String md5) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                downloadOnce(from, destinationFile, size, eTag, encoding, md5);
+                return;
+            } catch (CorruptDownloadException e) {
+                if (attempt >= MAX_VERIFY_ATTEMPTS) {
+                    throw e;
+                }
+                logger.warn(String.format("Downloading %s again - %s", from, e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Downloads into a <code>.part</code> file that is moved into place once complete, see
+     * {@link PartialDownload}. Objects split into ranges pick up the ranges an earlier
+     * download of the same version finished.
+     */
+    private void downloadOnce(String from, File destinationFile, long size, String eTag, String encoding, String md5) {
+        // Compressed content has to be decoded in order, so it is not split into ranges
+        boolean compressed = Compression.GZIP.equals(encoding);
+        boolean ranged = size > rangedGetThreshold && !compressed;
+        long rangeSize = ranged ? rangeSizeFor(size, eTag) : 0;
+        PartialDownload partial = ranged ? PartialDownload.startRanged(destinationFile, eTag, rangeSize) : PartialDownload.start(destinationFile);
+        File part = partial.getFile();
+        try {
+            if (compressed) {
+                downloadDecoded(from, part, eTag, md5);
+            } else {
+                String receivedEncoding = ranged ? getRanges(from, partial, size, rangeSize, eTag) : getWhole(from, part, size, eTag);
+                if (Compression.GZIP.equals(receivedEncoding)) {
+                    // Listings don't tell the encoding, so compressed objects found that way are decoded after the fact
+                    decodeInPlace(from, part);
+                }
+            }
+            partial.complete();
+        } catch (CorruptDownloadException e) {
+            partial.discard();
+            throw e;
+        } catch (IOException e) {
+            partial.interrupted();
+            throw new AmazonClientException(String.format("Failed to move %s into place - %s", part, e.getMessage()), e);
+        } catch (RuntimeException e) {
+            partial.interrupted();
+            throw e;
+        }
+    }
+
+    /**
+     * Ranges of objects uploaded in parts follow the parts, so that the MD5 of every range
+     * adds up to the ETag of the object
+     */
+    private long rangeSizeFor(long size, String eTag) {
+        if (ETags.isMultipart(eTag)) {
+            long partSize = ETags.partSize(size, ETags.partCount(eTag), partSizeFor(size));
+            if (partSize > 0) {
+                return partSize;
+            }
+        }
+        return rangedGetSize;
+    }
+
+    /**
+     * @return the Content-Encoding of the object
+     */
+    private String getWhole(String from, File destinationFile, long size, String eTag) {
+        ETags.Digest digest = ETags.Digest.of(eTag, size, partSizeFor(size));
+        ObjectMetadata metadata;
+        try (RandomAccessFile file = new RandomAccessFile(destinationFile, "rw")) {
+            file.setLength(0);
+            metadata = getRange(from, eTag, 0, size - 1, size, file.getChannel(), digest);
+        } catch (IOException e) {
+            throw new AmazonClientException(String.format("Failed to write %s - %s", destinationFile, e.getMessage()), e);
+        }
+        verify(from, eTag, metadata, digest);
+        return metadata != null ? metadata.getContentEncoding() : null;
+    }
+
+    private void downloadDecoded(String from, File destinationFile, String eTag, String md5) {
+        GetObjectRequest getObjectRequest = BandwidthLimiter.limitDownload(new GetObjectRequest(bucket, from));
+        if (eTag != null) {
+            getObjectRequest.withMatchingETagConstraint(eTag);
+        }
+        S3Object object = client.getObject(getObjectRequest);
+        if (object == null) {
+            throw new AmazonClientException(String.format("%s changed while it was being downloaded", from));
+        }
+        long size = object.getObjectMetadata() != null ? object.getObjectMetadata().getContentLength() : 0;
+        // Compressed objects are streamed up in parts of the configured size
+        ETags.Digest digest = ETags.Digest.of(eTag, size, multipartPartSize);
+        MessageDigest decodedDigest = md5 != null ? ETags.md5Digest() : null;
+        try (InputStream content = digest != null ? digest.digesting(object.getObjectContent()) : object.getObjectContent()) {
+            decode(content, destinationFile, decodedDigest);
+            // Every byte of the object counts towards its ETag, also any after the compressed content
+            skip(content, Long.MAX_VALUE, from);
+        } catch (IOException e) {
+            destinationFile.delete();
+            throw new AmazonClientException(String.format("Failed to decompress %s into %s - %s", pathString(from), destinationFile, e.getMessage()), e);
+        }
+        verify(from, eTag, object.getObjectMetadata(), digest);
+        if (decodedDigest != null) {
+            String decodedMd5 = BinaryUtils.toHex(decodedDigest.digest());
+            if (!decodedMd5.equalsIgnoreCase(md5)) {
+                throw new CorruptDownloadException(String.format("Content of %s decompresses to MD5 %s instead of %s", from, decodedMd5, md5));
+            }
+        }
+    }
+
+    private void verify(String key, String eTag, ObjectMetadata metadata, ETags.Digest digest) {
+        if (digest == null) {
+            return;
+        }
+        String downloaded = digest.getETag();
+        if (ETags.isContentDigest(metadata)) {
+            if (!ETags.matches(downloaded, eTag)) {
+                throw new CorruptDownloadException(String.format("Content of %s has ETag %s instead of %s", key, downloaded, eTag));
+            }
+            return;
+        }
+        // Encrypted objects have an ETag unrelated to their content, but files put here in a single request carry their MD5
+        String md5 = ETags.isMultipart(eTag) ? null : metadata.getUserMetaDataOf(ResponseMetadataConstants.MD5);
+        if (md5 != null && !ETags.matches(downloaded, md5)) {
+            throw new CorruptDownloadException(String.format("Content of %s has MD5 %s instead of %s", key, downloaded, md5));
+        }
+    }
+
+    private void decodeInPlace(String from, File destinationFile) {
+        File decoded = new File(destinationFile.getPath() + ".gunzip");
+        try {
+            try (InputStream content = new FileInputStream(destinationFile)) {
+                decode(content, decoded, null);
+            }
+            Files.move(decoded.toPath(), destinationFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            decoded.delete();
+            destinationFile.delete();
+            throw new AmazonClientException(String.format("Failed to decompress %s into %s - %s", pathString(from), destinationFile, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * @param digest digest of the decoded content, when it is checked
+     */
+    private void decode(InputStream content, File destinationFile, MessageDigest digest) throws IOException {
+        // The decoder must not close the content, its remaining bytes are still digested
+        InputStream unclosed = new FilterInputStream(content) {
+            @Override
+            public void close() {
+            }
+        };
+        try (InputStream decoded = new GZIPInputStream(unclosed, COPY_BUFFER_SIZE);
+             OutputStream out = new FileOutputStream(destinationFile)) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = decoded.read(buffer)) != -1) {
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    /**
+     * Downloads the object as concurrent ranged GETs, each written at its own offset into
+     * a file preallocated to the size of the object. Ranges an earlier download finished are
+     * skipped, and every range finished is recorded for a later download to skip. When the
+     * ranges follow the parts of a multipart upload, the MD5 of every range is computed as
+     * it is written and the object is checked against its ETag once all of them are done.
+     * Objects put in a single request are checked as a whole instead.
+     *
+     * @return the Content-Encoding of the object
+     */
+    private String getRanges(final String key, final PartialDownload partial, final long size, final long rangeSize, final String eTag) {
+        final int rangeCount = (int) ((size + rangeSize - 1) / rangeSize);
+        final boolean digested = ETags.Digest.of(eTag, size, rangeSize) != null && ETags.isMultipart(eTag) && ETags.partCount(eTag) == rangeCount;
+        final AtomicReference<ObjectMetadata> metadata = new AtomicReference<>();
+        if (partial.getFinishedCount() > 0) {
+            logger.info(String.format("Resuming download of %s with %d of %d ranges already downloaded", key, partial.getFinishedCount(), rangeCount));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(partial.getFile(), "rw")) {
+            file.setLength(size);
+            final FileChannel channel = file.getChannel();
+
+            TransferExecutor ranges = new TransferExecutor(Math.min(rangedGetConcurrency, rangeCount));
+            try {
+                for (int i = 0; i < rangeCount; i++) {
+                    final long start = i * rangeSize;
+                    final long end = Math.min(start + rangeSize, size) - 1;
+                    if (partial.isFinished(start)) {
+                        continue;
+                    }
+                    ranges.submit(String.format("%s (bytes %d-%d)", key, start, end), new Runnable() {
+                        @Override
+                        public void run() {
+                            ETags.Digest digest = digested ? ETags.Digest.md5() : null;
+                            metadata.set(getRange(key, eTag, start, end, size, channel, digest));
+                            partial.finished(start, digest != null ? digest.getETag() : null);
+                        }
+                    });
+                }
+                ranges.awaitCompletion();
+            } finally {
+                ranges.shutdown();
+            }
+        } catch (IOException e) {
+            throw new AmazonClientException(String.format("Failed to write %s - %s", partial.getFile(), e.getMessage()), e);
+        }
+        if (metadata.get() == null) {
+            // Every range was downloaded earlier, the metadata of the object has to be asked for
+            metadata.set(client.getObjectMetadata(bucket, key));
+        }
+        if (digested) {
+            if (ETags.isContentDigest(metadata.get())) {
+                verifyRanges(key, eTag, partial, rangeCount, rangeSize);
+            }
+        } else if (!ETags.isMultipart(eTag)) {
+            verifyWhole(key, eTag, partial.getFile(), metadata.get());
+        }
+        return metadata.get() != null ? metadata.get().getContentEncoding() : null;
+    }
+
+    /**
+     * Objects put in a single request have the MD5 of their whole content as ETag, or carry it
+     * in their metadata when encrypted, which no range adds up to. Their file is read back once
+     * every range is in.
+     */
+    private void verifyWhole(String key, String eTag, File file, ObjectMetadata metadata) {
+        ETags.Digest digest = ETags.Digest.of(eTag, file.length(), file.length());
+        if (digest == null || (!ETags.isContentDigest(metadata) && metadata.getUserMetaDataOf(ResponseMetadataConstants.MD5) == null)) {
+            return;
+        }
+        try (InputStream content = digest.digesting(new FileInputStream(file))) {
+            skip(content, Long.MAX_VALUE, key);
+        } catch (IOException e) {
+            throw new AmazonClientException(String.format("Failed to read %s - %s", file, e.getMessage()), e);
+        }
+        verify(key, eTag, metadata, digest);
+    }
+
+    private void verifyRanges(String key, String eTag, PartialDownload partial, int rangeCount, long rangeSize) {
+        List<byte[]> md5s = new ArrayList<>();
+        for (int i = 0; i < rangeCount; i++) {
+            String md5 = partial.getMd5(i * rangeSize);
+            if (md5 == null) {
+                // Resumed from ranges that were not digested, there is nothing to check against
+                return;
+            }
+            md5s.add(BinaryUtils.fromHex(md5));
+        }
+        String downloaded = ETags.multipart(md5s);
+        if (!ETags.matches(downloaded, eTag)) {
+            throw new CorruptDownloadException(String.format("Content of %s has ETag %s instead of %s", key, downloaded, eTag));
+        }
+    }
+
+    /**
+     * Downloads bytes <code>start</code> to <code>end</code> of the object into the channel,
+     * asking for the rest of the range again when the connection drops halfway. The whole
+     * object is asked for without a range.
+     *
+     * @param digest digest updated with every byte of the range in order, when it is checked
+     * @return the metadata of the object
+     */
+    private ObjectMetadata getRange(String key, String eTag, long start, long end, long size, FileChannel channel, ETags.Digest digest) {
+        long position = start;
+        for (int attempt = 1; ; attempt++) {
+            GetObjectRequest getObjectRequest = BandwidthLimiter.limitDownload(new GetObjectRequest(bucket, key));
+            if (position > 0 || end < size - 1) {
+                getObjectRequest.withRange(position, end);
+            }
+            if (eTag != null) {
+                // Every range has to come from the same version of the object
+                getObjectRequest.withMatchingETagConstraint(eTag);
+            }
+            S3Object object;
+            try {
+                object = client.getObject(getObjectRequest);
+            } catch (AmazonServiceException e) {
+                throw e;
+            } catch (AmazonClientException e) {
+                if (attempt >= MAX_RANGE_ATTEMPTS) {
+                    throw e;
+                }
+                logger.warn(String.format("Requesting bytes %d-%d of %s again - %s", position, end, key, e.getMessage()));
+                continue;
+            }
+            if (object == null) {
+                throw new AmazonClientException(String.format("%s changed while it was being downloaded", key));
+            }
+
+            ByteBuffer buffer = BufferPool.shared().acquire();
+            try (InputStream content = object.getObjectContent();
+                 ReadableByteChannel source = Channels.newChannel(content)) {
+                while (position <= end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end + 1 - position));
+                    if (source.read(buffer) == -1) {
+                        break;
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        ByteBuffer written = buffer.duplicate();
+                        position += channel.write(buffer, position);
+                        if (digest != null) {
+                            // Only what made it to the file, a resumed range digests the rest
+                            written.limit(buffer.position());
+                            digest.update(written);
+                        }
+                    }
+                }
+                if (position != end + 1) {
+                    throw new IOException(String.format("Expected bytes %d-%d of %s but the download ended at %d", start, end, key, position));
+                }
+                return object.getObjectMetadata();
+            } catch (IOException e) {
+                if (attempt >= MAX_RANGE_ATTEMPTS) {
+                    throw new AmazonClientException(String.format("Failed to download bytes %d-%d of %s - %s", start, end, key, e.getMessage()), e);
+                }
+                logger.warn(String.format("Resuming bytes %d-%d of %s at %d - %s", start, end, key, position, e.getMessage()));
+            } finally {
+                BufferPool.shared().release(buffer);
+            }
+        }
     }
 
     public ObjectMetadata getMetadata(String key) {
         return client.getObjectMetadata(bucket, key);
     }
 
+    /**
+     * @return the manifest published for the revision, or null when the revision has none
+     */
+    public Manifest getManifest(String revisionPrefix) {
+        String key = Manifest.key(revisionPrefix);
+        try {
+            S3Object object = client.getObject(bucket, key);
+            if (object == null) {
+                return null;
+            }
+            try (InputStream content = object.getObjectContent()) {
+                return Manifest.fromJson(IOUtils.toString(content, "UTF-8"));
+            }
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        } catch (IOException e) {
+            throw new AmazonClientException(String.format("Failed to read %s - %s", pathString(key), e.getMessage()), e);
+        }
+    }
+
+    public void putManifest(String revisionPrefix, Manifest manifest) {
+        byte[] content = manifest.toJson().getBytes(StandardCharsets.UTF_8);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(content.length);
+        metadata.setContentType("application/json");
+        put(new PutObjectRequest(bucket, Manifest.key(revisionPrefix), new ByteArrayInputStream(content), metadata));
+    }
+
+    /**
+     * Downloads every object under the prefix. Objects are scheduled a listing page at a time,
+     * so downloads start while the rest of the prefix is still being listed.
+     */
     public void getPrefix(String prefix, String to) {
-        ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
+        getPrefix(prefix, to, prefix);
+    }
+
+    /**
+     * Same as {@link #getPrefix(String, String)}, for a prefix under the revision it was
+     * published to, whose manifest and bundles are left out of the download
+     */
+    public void getPrefix(String prefix, String to, String revisionPrefix) {
+        ListingPrefetcher objectSummaries = new ListingPrefetcher(client, listPrefix(prefix), LISTING_QUEUE_CAPACITY).start();
+        SyncState syncState = startSync(to);
+        TransferExecutor transfers = newTransferExecutor();
+        try {
+            TransferPlan plan = new TransferPlan();
+            planEnclosingArchives(plan, syncState, prefix, to, revisionPrefix);
+            while (objectSummaries.hasNext()) {
+                planObject(plan, syncState, objectSummaries.next(), prefix, to, revisionPrefix);
+                if (plan.size() == SCHEDULING_WINDOW) {
+                    plan.submitTo(transfers);
+                    plan = new TransferPlan();
+                }
+            }
+            plan.submitTo(transfers);
+
+            transfers.awaitCompletion();
+            pruneSync(syncState);
+        } finally {
+            objectSummaries.close();
+            transfers.shutdown();
+            finishSync(syncState);
+        }
+    }
+
+    /**
+     * @return what {@link #getPrefix(String, String)} would download, in the order it would
+     * start downloading if the whole prefix was listed at once, without downloading anything
+     */
+    public TransferPlan planPrefix(String prefix, String to) {
+        return planPrefix(prefix, to, prefix);
+    }
+
+    /**
+     * @return what {@link #getPrefix(String, String, String)} would download, see {@link #planPrefix(String, String)}
+     */
+    public TransferPlan planPrefix(String prefix, String to, String revisionPrefix) {
+        ListingPrefetcher objectSummaries = new ListingPrefetcher(client, listPrefix(prefix), LISTING_QUEUE_CAPACITY).start();
+        try {
+            TransferPlan plan = new TransferPlan();
+            planEnclosingArchives(plan, null, prefix, to, revisionPrefix);
+            while (objectSummaries.hasNext()) {
+                planObject(plan, null, objectSummaries.next(), prefix, to, revisionPrefix);
+            }
+            return plan;
+        } finally {
+            objectSummaries.close();
+        }
+    }
+
+    private TransferExecutor newTransferExecutor() {
+        return adaptiveConcurrency != null ? new TransferExecutor(adaptiveConcurrency) : new TransferExecutor(concurrency);
+    }
+
+    private ListObjectsRequest listPrefix(String prefix) {
+        return new ListObjectsRequest()
                 .withBucketName(bucket)
                 .withPrefix(prefix);
+    }
+
+    private void planObject(TransferPlan plan, SyncState syncState, S3ObjectSummary objectSummary, String prefix, String to, String revisionPrefix) {
+        String key = objectSummary.getKey();
+        if (ArchiveUpload.isArchive(key)) {
+            submitExtract(plan, syncState, key, objectSummary.getSize(), objectSummary.getETag(), to, key.replace(prefix + "/", ""), "");
+        } else if (objectSummary.getSize() > 0 && !isRevisionMetadata(key, revisionPrefix) && !key.startsWith(ChunkStore.DIRECTORY + "/")) {
+            submitGet(plan, syncState, key, to, key.replace(prefix + "/", ""), objectSummary.getSize(), objectSummary.getETag(), null, null, false);
+        }
+    }
 
-        ObjectListing objectListing;
-        do {
-            objectListing = client.listObjects(listObjectsRequest);
-            for (S3ObjectSummary objectSummary : objectListing.getObjectSummaries()) {
-                String destinationPath = to + "/" + objectSummary.getKey().replace(prefix + "/", "");
-                long size = objectSummary.getSize();
-                if (size > 0) {
-                    get(objectSummary.getKey(), destinationPath);
+    /**
+     * Extracts the files under the prefix out of the archives in the directories between the
+     * revision and the prefix. A source published as an archive is a single object in the
+     * directory it was published to, which fetching a directory below it would not list.
+     */
+    private void planEnclosingArchives(TransferPlan plan, SyncState syncState, String prefix, String to, String revisionPrefix) {
+        for (String directory : directoriesAbove(prefix, revisionPrefix)) {
+            ListObjectsRequest listObjectsRequest = listPrefix(directory + "/" + ArchiveUpload.FILE_NAME_PREFIX);
+            ObjectListing listing;
+            do {
+                listing = client.listObjects(listObjectsRequest);
+                if (listing == null) {
+                    break;
+                }
+                for (S3ObjectSummary objectSummary : listing.getObjectSummaries()) {
+                    String key = objectSummary.getKey();
+                    if (ArchiveUpload.isArchive(key) && StringUtils.substringBeforeLast(key, "/").equals(directory)) {
+                        submitExtract(plan, syncState, key, objectSummary.getSize(), objectSummary.getETag(), to, StringUtils.substringAfterLast(key, "/"), entriesUnder(prefix, directory));
+                    }
                 }
+                listObjectsRequest.setMarker(listing.getNextMarker());
+            } while (listing.isTruncated());
+        }
+    }
+
+    /**
+     * @return the directories from the revision down to the parent of the prefix, none when
+     * the prefix is the revision itself
+     */
+    private static List<String> directoriesAbove(String prefix, String revisionPrefix) {
+        List<String> directories = new ArrayList<>();
+        if (!prefix.startsWith(revisionPrefix + "/")) {
+            return directories;
+        }
+        String directory = revisionPrefix;
+        directories.add(directory);
+        String[] segments = StringUtils.split(prefix.substring(revisionPrefix.length() + 1), '/');
+        for (int i = 0; i < segments.length - 1; i++) {
+            directory += "/" + segments[i];
+            directories.add(directory);
+        }
+        return directories;
+    }
+
+    /**
+     * @return the path of the prefix within an archive in the directory, which its entries start with
+     */
+    private static String entriesUnder(String prefix, String directory) {
+        return StringUtils.removeEnd(prefix.substring(directory.length() + 1), "/") + "/";
+    }
+
+    /**
+     * @return whether the key is the manifest or a bundle of the revision, artifacts published
+     * with the same names further down are downloaded as any other
+     */
+    private boolean isRevisionMetadata(String key, String revisionPrefix) {
+        return key.equals(Manifest.key(revisionPrefix)) || key.startsWith(revisionPrefix + "/" + BundleUpload.DIRECTORY + "/");
+    }
+
+    /**
+     * Same as {@link #getPrefix(String, String)}, but takes the objects to download from the
+     * manifest of the revision instead of listing them. The whole revision is scheduled at
+     * once, see {@link TransferPlan}, and every downloaded file is checked against the size
+     * recorded in the manifest.
+     */
+    public void getPrefix(String prefix, String to, String revisionPrefix, Manifest manifest) {
+        SyncState syncState = startSync(to);
+        TransferExecutor transfers = newTransferExecutor();
+        try {
+            planManifest(syncState, prefix, to, revisionPrefix, manifest).submitTo(transfers);
+
+            transfers.awaitCompletion();
+            pruneSync(syncState);
+        } finally {
+            transfers.shutdown();
+            finishSync(syncState);
+        }
+    }
+
+    /**
+     * @return what {@link #getPrefix(String, String, String, Manifest)} would download, in
+     * the order it would start downloading, without downloading anything
+     */
+    public TransferPlan planPrefix(String prefix, String to, String revisionPrefix, Manifest manifest) {
+        return planManifest(null, prefix, to, revisionPrefix, manifest);
+    }
+
+    private TransferPlan planManifest(SyncState syncState, String prefix, String to, String revisionPrefix, Manifest manifest) {
+        Map<String, ManifestEntry> bundles = new HashMap<>();
+        for (ManifestEntry entry : manifest.getEntries()) {
+            if (BundleUpload.isBundle(entry.getPath())) {
+                bundles.put(entry.getPath(), entry);
             }
-            listObjectsRequest.setMarker(objectListing.getNextMarker());
-        } while (objectListing.isTruncated());
+        }
 
+        TransferPlan plan = new TransferPlan();
+        Map<String, List<ManifestEntry>> bundled = new LinkedHashMap<>();
+        List<String> directoriesAbove = directoriesAbove(prefix, revisionPrefix);
+        for (ManifestEntry entry : manifest.getEntries()) {
+            String key = revisionPrefix + "/" + entry.getPath();
+            if (!key.startsWith(prefix) && ArchiveUpload.isArchive(key)) {
+                // An archive of a source published above the prefix, see planEnclosingArchives
+                String directory = StringUtils.substringBeforeLast(key, "/");
+                if (directoriesAbove.contains(directory)) {
+                    submitExtract(plan, syncState, key, entry.getSize(), entry.getEtag(), to, StringUtils.substringAfterLast(key, "/"), entriesUnder(prefix, directory));
+                }
+                continue;
+            }
+            if (!key.startsWith(prefix) || BundleUpload.isBundle(entry.getPath())) {
+                continue;
+            }
+            if (ArchiveUpload.isArchive(key)) {
+                submitExtract(plan, syncState, key, entry.getSize(), entry.getEtag(), to, key.replace(prefix + "/", ""), "");
+            } else if (entry.getSize() > 0 && entry.getBundle() != null) {
+                String path = key.replace(prefix + "/", "");
+                if (syncState != null && syncState.isUnchanged(path, entry.getSize(), entry.getEtag(), entry.getMd5())) {
+                    unchangedCount.incrementAndGet();
+                } else {
+                    if (!bundled.containsKey(entry.getBundle())) {
+                        bundled.put(entry.getBundle(), new ArrayList<ManifestEntry>());
+                    }
+                    bundled.get(entry.getBundle()).add(entry);
+                }
+            } else if (entry.getChunks() != null) {
+                submitChunked(plan, syncState, entry, to, key.replace(prefix + "/", ""));
+            } else if (entry.getSize() > 0) {
+                submitGet(plan, syncState, key, to, key.replace(prefix + "/", ""), entry.getSize(), entry.getEtag(), entry.getEncoding(), entry.getMd5(), true);
+            }
+        }
+        for (Map.Entry<String, List<ManifestEntry>> bundle : bundled.entrySet()) {
+            ManifestEntry bundleEntry = bundles.get(bundle.getKey());
+            if (bundleEntry == null) {
+                throw new AmazonClientException(String.format("Bundle %s is missing from the manifest of %s", bundle.getKey(), pathString(revisionPrefix)));
+            }
+            submitBundle(plan, syncState, revisionPrefix, bundleEntry, bundle.getValue(), prefix, to);
+        }
+        return plan;
+    }
+
+    /**
+     * Adds the upload of a file to the plan, with the requests {@link #put(PutObjectRequest)}
+     * or {@link #putChunked(String, String)} would take for it
+     */
+    public void planUpload(TransferPlan plan, String name, long size, boolean chunked, Runnable upload) {
+        if (chunked && size >= MIN_CHUNKED_SIZE) {
+            // Every chunk is looked up and uploaded when it is missing
+            int chunks = (int) ((size + Chunker.AVERAGE_SIZE - 1) / Chunker.AVERAGE_SIZE);
+            plan.add(name, size, chunks * 2, Math.min(multipartConcurrency, chunks), upload);
+        } else if (size > multipartThreshold) {
+            long partSize = partSizeFor(size);
+            int parts = (int) ((size + partSize - 1) / partSize);
+            plan.add(name, size, parts + 2, Math.min(multipartConcurrency, parts), upload);
+        } else {
+            plan.add(name, size, 1, 1, upload);
+        }
+    }
+
+    /**
+     * Fetches files out of a bundle, with a single GET of the whole bundle when most of it is
+     * wanted or with a ranged GET for every file when only a few of them are
+     */
+    private void submitBundle(TransferPlan plan, final SyncState syncState, String revisionPrefix, ManifestEntry bundle, List<ManifestEntry> wanted, final String prefix, final String to) {
+        final String bundleKey = revisionPrefix + "/" + bundle.getPath();
+        final String eTag = bundle.getEtag();
+        final String keyPrefix = revisionPrefix + "/";
+        long wantedCost = 0;
+        for (ManifestEntry entry : wanted) {
+            wantedCost += entry.getSize() + BUNDLE_RANGE_COST;
+        }
+
+        if (wantedCost >= bundle.getSize()) {
+            final List<ManifestEntry> byOffset = new ArrayList<>(wanted);
+            Collections.sort(byOffset, new Comparator<ManifestEntry>() {
+                @Override
+                public int compare(ManifestEntry left, ManifestEntry right) {
+                    return Long.compare(left.getOffset(), right.getOffset());
+                }
+            });
+            plan.add(bundleKey, bundle.getSize(), 1, 1, new Runnable() {
+                @Override
+                public void run() {
+                    getBundle(bundleKey, eTag, byOffset, keyPrefix, prefix, to, syncState);
+                }
+            });
+            return;
+        }
+
+        for (final ManifestEntry entry : wanted) {
+            final String path = (keyPrefix + entry.getPath()).replace(prefix + "/", "");
+            plan.add(keyPrefix + entry.getPath(), entry.getSize(), 1, 1, new Runnable() {
+                @Override
+                public void run() {
+                    getBundled(bundleKey, eTag, entry, new File(to, path));
+                    if (syncState != null) {
+                        syncState.record(path, entry.getEtag());
+                    }
+                }
+            });
+        }
+    }
+
+    private void getBundle(String bundleKey, String eTag, List<ManifestEntry> byOffset, String keyPrefix, String prefix, String to, SyncState syncState) {
+        GetObjectRequest getObjectRequest = BandwidthLimiter.limitDownload(new GetObjectRequest(bucket, bundleKey));
+        if (eTag != null) {
+            getObjectRequest.withMatchingETagConstraint(eTag);
+        }
+        S3Object object = client.getObject(getObjectRequest);
+        if (object == null) {
+            throw new AmazonClientException(String.format("%s changed while it was being downloaded", bundleKey));
+        }
+        Map<ManifestEntry, File> corrupt = new LinkedHashMap<>();
+        try (InputStream content = object.getObjectContent()) {
+            long position = 0;
+            for (ManifestEntry entry : byOffset) {
+                skip(content, entry.getOffset() - position, bundleKey);
+                String path = (keyPrefix + entry.getPath()).replace(prefix + "/", "");
+                File destinationFile = new File(to, path);
+                try {
+                    writeBundled(content, bundleKey, entry, destinationFile);
+                    if (syncState != null) {
+                        syncState.record(path, entry.getEtag());
+                    }
+                } catch (CorruptDownloadException e) {
+                    // The rest of the bundle is still fine, only this file is asked for again
+                    logger.warn(String.format("Downloading %s again - %s", path, e.getMessage()));
+                    corrupt.put(entry, destinationFile);
+                }
+                position = entry.getOffset() + entry.getSize();
+            }
+            // Let the download finish normally instead of being cut off
+            skip(content, Long.MAX_VALUE, bundleKey);
+        } catch (IOException e) {
+            throw new AmazonClientException(String.format("Failed to fetch files from %s - %s", pathString(bundleKey), e.getMessage()), e);
+        }
+        for (Map.Entry<ManifestEntry, File> entry : corrupt.entrySet()) {
+            GetObjectRequest rangeRequest = BandwidthLimiter.limitDownload(new GetObjectRequest(bucket, bundleKey))
+                    .withRange(entry.getKey().getOffset(), entry.getKey().getOffset() + entry.getKey().getSize() - 1);
+            if (eTag != null) {
+                rangeRequest.withMatchingETagConstraint(eTag);
+            }
+            getBundledOnce(rangeRequest, bundleKey, entry.getKey(), entry.getValue());
+            if (syncState != null) {
+                syncState.record((keyPrefix + entry.getKey().getPath()).replace(prefix + "/", ""), entry.getKey().getEtag());
+            }
+        }
+    }
+
+    /**
+     * Fetches a single file out of a bundle with a ranged GET, fetching it again when it
+     * turns out corrupt
+     */
+    private void getBundled(String bundleKey, String eTag, ManifestEntry entry, File destinationFile) {
+        for (int attempt = 1; ; attempt++) {
+            GetObjectRequest getObjectRequest = BandwidthLimiter.limitDownload(new GetObjectRequest(bucket, bundleKey))
+                    .withRange(entry.getOffset(), entry.getOffset() + entry.getSize() - 1);
+            if (eTag != null) {
+                getObjectRequest.withMatchingETagConstraint(eTag);
+            }
+            try {
+                getBundledOnce(getObjectRequest, bundleKey, entry, destinationFile);
+                return;
+            } catch (CorruptDownloadException e) {
+                if (attempt >= MAX_VERIFY_ATTEMPTS) {
+                    throw e;
+                }
+                logger.warn(String.format("Downloading %s again - %s", destinationFile, e.getMessage()));
+            }
+        }
+    }
+
+    private void getBundledOnce(GetObjectRequest getObjectRequest, String bundleKey, ManifestEntry entry, File destinationFile) {
+        S3Object object = client.getObject(getObjectRequest);
+        if (object == null) {
+            throw new AmazonClientException(String.format("%s changed while it was being downloaded", bundleKey));
+        }
+        try (InputStream content = object.getObjectContent()) {
+            writeBundled(content, bundleKey, entry, destinationFile);
+        } catch (IOException e) {
+            throw new AmazonClientException(String.format("Failed to fetch %s from %s - %s", entry.getPath(), pathString(bundleKey), e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Writes the next file of the bundle through a <code>.part</code> file, checking it
+     * against the MD5 the manifest recorded for it on the way
+     */
+    private void writeBundled(InputStream content, String bundleKey, ManifestEntry entry, File destinationFile) throws IOException {
+        destinationFile.getParentFile().mkdirs();
+        PartialDownload partial = PartialDownload.start(destinationFile);
+        ETags.Digest digest = ETags.Digest.of(entry.getEtag(), entry.getSize(), entry.getSize());
+        try {
+            try (FileOutputStream out = new FileOutputStream(partial.getFile())) {
+                copy(digest != null ? digest.digesting(content) : content, out.getChannel(), entry.getSize(), bundleKey);
+            }
+            if (digest != null && !ETags.matches(digest.getETag(), entry.getEtag())) {
+                throw new CorruptDownloadException(String.format("Content of %s in %s has MD5 %s instead of %s", entry.getPath(), bundleKey, digest.getETag(), entry.getEtag()));
+            }
+            partial.complete();
+        } catch (IOException | RuntimeException e) {
+            partial.discard();
+            throw e;
+        }
+    }
+
+    private void copy(InputStream content, WritableByteChannel out, long size, String key) throws IOException {
+        // Not closed, that would close the content
+        ReadableByteChannel source = Channels.newChannel(content);
+        ByteBuffer buffer = BufferPool.shared().acquire();
+        try {
+            long remaining = size;
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                int read = source.read(buffer);
+                if (read == -1) {
+                    throw new IOException(String.format("%s ended %d bytes early", key, remaining));
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                remaining -= read;
+            }
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+    }
+
+    private void skip(InputStream content, long count, String key) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(content);
+        ByteBuffer buffer = BufferPool.shared().acquire();
+        try {
+            long remaining = count;
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                int read = source.read(buffer);
+                if (read == -1) {
+                    if (count == Long.MAX_VALUE) {
+                        return;
+                    }
+                    throw new IOException(String.format("%s ended %d bytes early", key, remaining));
+                }
+                remaining -= read;
+            }
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+    }
+
+    private void submitGet(TransferPlan plan, final SyncState syncState, final String key, String to, final String path, final long size, final String eTag, final String encoding, final String md5, final boolean verifySize) {
+        final String destinationPath = to + "/" + path;
+        // Compressed content is downloaded as a single stream, see download. Ranges are cut the same way download cuts them.
+        long rangeSize = rangeSizeFor(size, eTag);
+        int ranges = size > rangedGetThreshold && !Compression.GZIP.equals(encoding) ? (int) ((size + rangeSize - 1) / rangeSize) : 1;
+        plan.add(key, size, ranges, Math.min(rangedGetConcurrency, ranges), new Runnable() {
+            @Override
+            public void run() {
+                if (syncState != null && syncState.isUnchanged(path, size, eTag, md5)) {
+                    unchangedCount.incrementAndGet();
+                    return;
+                }
+                get(key, destinationPath, size, eTag, encoding, md5);
+                if (verifySize) {
+                    long downloaded = new File(destinationPath).length();
+                    if (downloaded != size) {
+                        throw new AmazonClientException(String.format("Expected %s to be %d bytes but downloaded %d bytes", key, size, downloaded));
+                    }
+                }
+                if (syncState != null) {
+                    syncState.record(path, eTag);
+                }
+            }
+        });
+    }
+
+    /**
+     * Puts the file back together from the chunk store, which is not covered by the artifact cache
+     */
+    private void submitChunked(TransferPlan plan, final SyncState syncState, final ManifestEntry entry, String to, final String path) {
+        final File destinationFile = new File(to, path);
+        int chunks = entry.getChunks().size();
+        plan.add(path, entry.getSize(), chunks, Math.min(rangedGetConcurrency, chunks), new Runnable() {
+            @Override
+            public void run() {
+                if (syncState != null && syncState.isUnchanged(path, entry.getSize(), entry.getEtag(), entry.getMd5())) {
+                    unchangedCount.incrementAndGet();
+                    return;
+                }
+                destinationFile.getParentFile().mkdirs();
+                chunkStore.get(entry.getChunks(), destinationFile, rangedGetConcurrency);
+                if (destinationFile.length() != entry.getSize()) {
+                    throw new AmazonClientException(String.format("Expected %s to be %d bytes but its chunks add up to %d bytes", path, entry.getSize(), destinationFile.length()));
+                }
+                if (syncState != null) {
+                    syncState.record(path, entry.getEtag());
+                }
+            }
+        });
+    }
+
+    /**
+     * Extracts the archive into the directory it was published to while downloading it
+     *
+     * @param entryPrefix what the paths of the entries to extract start with, which is left
+     *                    out of where they are extracted to, empty for every entry
+     */
+    private void submitExtract(TransferPlan plan, final SyncState syncState, final String key, final long size, final String eTag, String to, String path, final String entryPrefix) {
+        final String directoryPath = path.contains("/") ? StringUtils.substringBeforeLast(path, "/") + "/" : "";
+        final File directory = new File(to, directoryPath);
+        plan.add(key, size, 1, 1, new Runnable() {
+            @Override
+            public void run() {
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        List<String> extracted = extract(key, size, eTag, directory, entryPrefix);
+                        if (syncState != null) {
+                            // Recorded so that a later sync prunes them once they are gone from the archive
+                            for (String extractedPath : extracted) {
+                                syncState.record(directoryPath + extractedPath, eTag);
+                            }
+                        }
+                        break;
+                    } catch (CorruptDownloadException e) {
+                        if (attempt >= MAX_VERIFY_ATTEMPTS) {
+                            throw e;
+                        }
+                        logger.warn(String.format("Extracting %s again - %s", key, e.getMessage()));
+                    }
+                }
+                extractedCount.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Extracts the archive while downloading it, checking it against its ETag on the way
+     *
+     * @return the paths of the files extracted, relative to the directory
+     */
+    private List<String> extract(String key, long size, String eTag, File directory, String entryPrefix) {
+        GetObjectRequest getObjectRequest = BandwidthLimiter.limitDownload(new GetObjectRequest(bucket, key));
+        if (eTag != null) {
+            getObjectRequest.withMatchingETagConstraint(eTag);
+        }
+        S3Object object = client.getObject(getObjectRequest);
+        if (object == null) {
+            throw new AmazonClientException(String.format("%s changed while it was being downloaded", key));
+        }
+        // Archives are streamed up in parts of the configured size
+        ETags.Digest digest = ETags.Digest.of(eTag, size, multipartPartSize);
+        List<String> extracted;
+        try (InputStream content = digest != null ? digest.digesting(object.getObjectContent()) : object.getObjectContent()) {
+            InputStream archive = ArchiveUpload.isGzip(key) ? new GZIPInputStream(content, COPY_BUFFER_SIZE) : content;
+            directory.mkdirs();
+            extracted = new TarReader(archive).extractTo(directory, entryPrefix);
+            // Every byte of the object counts towards its ETag, also the padding after the last entry
+            skip(content, Long.MAX_VALUE, key);
+        } catch (IOException e) {
+            throw new AmazonClientException(String.format("Failed to extract %s into %s - %s", pathString(key), directory, e.getMessage()), e);
+        }
+        verify(key, eTag, object.getObjectMetadata(), digest);
+        return extracted;
+    }
+
+    private SyncState startSync(String to) {
+        return sync ? SyncState.load(new File(to)) : null;
+    }
+
+    private void pruneSync(SyncState syncState) {
+        // Only a complete fetch knows every object that is still at the source
+        if (syncState != null && prune) {
+            for (String path : syncState.prune()) {
+                logger.info(String.format("Removed %s as its object is no longer at the source", path));
+                prunedCount.incrementAndGet();
+            }
+        }
+    }
+
+    private void finishSync(SyncState syncState) {
+        if (syncState != null) {
+            syncState.save();
+        }
     }
 
     public boolean bucketExists() {
@@ -228,18 +1744,17 @@ public class S3ArtifactStore {
     }
 
     public static AmazonS3 getS3client(GoEnvironment env) {
-        AmazonS3ClientBuilder amazonS3ClientBuilder = AmazonS3ClientBuilder.standard();
+        return S3ClientRegistry.getInstance().clientFor(env);
+    }
 
-        if (env.has(AWS_REGION)) {
-            amazonS3ClientBuilder.withRegion(env.get(AWS_REGION));
-        }
-        if (env.hasAWSUseIamRole()) {
-            amazonS3ClientBuilder.withCredentials(new InstanceProfileCredentialsProvider(false));
-        } else if (env.has(AWS_ACCESS_KEY_ID) && env.has(AWS_SECRET_ACCESS_KEY)) {
-            BasicAWSCredentials basicCreds = new BasicAWSCredentials(env.get(AWS_ACCESS_KEY_ID), env.get(AWS_SECRET_ACCESS_KEY));
-            amazonS3ClientBuilder.withCredentials(new AWSStaticCredentialsProvider(basicCreds));
-        }
+    /**
+     * Downloaded content that doesn't match the checksum of the object, which is worth downloading again
+     */
+    private static class CorruptDownloadException extends AmazonClientException {
+        private static final long serialVersionUID = 1L;
 
-        return amazonS3ClientBuilder.build();
+        CorruptDownloadException(String message) {
+            super(message);
+        }
     }
 }
@@ -0,0 +1,160 @@
+package com.indix.gocd.utils.store;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.InstanceProfileCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.util.BinaryUtils;
+import com.indix.gocd.utils.GoEnvironment;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.indix.gocd.utils.Constants.*;
+
+/**
+ * Shares S3 clients, along with their connection pools and cached credentials, across
+ * every plugin invocation in the JVM.
+ *
+ * Clients are keyed by endpoint, region and credentials source. A client that has not been used
+ * for a while is shut down and dropped the next time a client is asked for.
+ */
+public class S3ClientRegistry {
+    private static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(30);
+    private static final S3ClientRegistry instance = new S3ClientRegistry(DEFAULT_IDLE_TIMEOUT);
+
+    private final long idleTimeout;
+    private final Map<String, Entry> clients = new HashMap<>();
+
+    S3ClientRegistry(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public static S3ClientRegistry getInstance() {
+        return instance;
+    }
+
+    public synchronized AmazonS3 clientFor(GoEnvironment env) {
+        evictIdleClients();
+        String key = keyFor(env);
+        Entry entry = clients.get(key);
+        if (entry == null) {
+            entry = new Entry(newClient(env));
+            clients.put(key, entry);
+        }
+        entry.touch();
+        return entry.proxy;
+    }
+
+    synchronized int size() {
+        return clients.size();
+    }
+
+    private void evictIdleClients() {
+        long idleSince = System.currentTimeMillis() - idleTimeout;
+        Iterator<Entry> entries = clients.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.isIdleSince(idleSince)) {
+                entries.remove();
+                entry.client.shutdown();
+            }
+        }
+    }
+
+    private String keyFor(GoEnvironment env) {
+        String endpoint = env.has(AWS_S3_ENDPOINT) ? env.get(AWS_S3_ENDPOINT) : "default";
+        String region = env.has(AWS_REGION) ? env.get(AWS_REGION) : "default";
+        String credentials;
+        if (env.hasAWSUseIamRole()) {
+            credentials = "instance-profile";
+        } else if (env.has(AWS_ACCESS_KEY_ID) && env.has(AWS_SECRET_ACCESS_KEY)) {
+            credentials = "static:" + env.get(AWS_ACCESS_KEY_ID) + ":" + sha256(env.get(AWS_SECRET_ACCESS_KEY));
+        } else {
+            credentials = "default";
+        }
+        return endpoint + "|" + region + "|" + credentials;
+    }
+
+    private String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return BinaryUtils.toHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private AmazonS3 newClient(GoEnvironment env) {
+        AmazonS3ClientBuilder amazonS3ClientBuilder = AmazonS3ClientBuilder.standard();
+
+        if (env.has(AWS_S3_ENDPOINT)) {
+            // The region is then only used to sign requests
+            String signingRegion = env.has(AWS_REGION) ? env.get(AWS_REGION) : null;
+            amazonS3ClientBuilder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(env.get(AWS_S3_ENDPOINT), signingRegion));
+        } else if (env.has(AWS_REGION)) {
+            amazonS3ClientBuilder.withRegion(env.get(AWS_REGION));
+        }
+        if (env.hasAWSUseIamRole()) {
+            amazonS3ClientBuilder.withCredentials(new InstanceProfileCredentialsProvider(false));
+        } else if (env.has(AWS_ACCESS_KEY_ID) && env.has(AWS_SECRET_ACCESS_KEY)) {
+            BasicAWSCredentials basicCreds = new BasicAWSCredentials(env.get(AWS_ACCESS_KEY_ID), env.get(AWS_SECRET_ACCESS_KEY));
+            amazonS3ClientBuilder.withCredentials(new AWSStaticCredentialsProvider(basicCreds));
+        }
+
+        return amazonS3ClientBuilder.build();
+    }
+
+    /**
+     * Tracks when a shared client was last used, counting calls still in progress as use,
+     * so that a client is never shut down under a running transfer.
+     */
+    private static class Entry implements InvocationHandler {
+        private final AmazonS3 client;
+        private final AmazonS3 proxy;
+        private final AtomicInteger callsInProgress = new AtomicInteger();
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        Entry(AmazonS3 client) {
+            this.client = client;
+            this.proxy = (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[]{AmazonS3.class}, this);
+        }
+
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+
+        boolean isIdleSince(long time) {
+            return callsInProgress.get() == 0 && lastUsed < time;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("shutdown".equals(method.getName())) {
+                // Shared clients are shut down only when the registry evicts them
+                return null;
+            }
+            callsInProgress.incrementAndGet();
+            try {
+                return method.invoke(client, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                touch();
+                callsInProgress.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.indix.gocd.utils.store;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.thoughtworks.go.plugin.api.logging.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which object version every file synced into a directory was downloaded from,
+ * along with the size and modification time the file had right after, so that later
+ * syncs can tell unchanged files apart without reading them.
+ *
+ * Files without a usable record are compared against the MD5 of the object instead, which
+ * S3 reports as the ETag of objects that were not uploaded in parts.
+ */
+class SyncState {
+    static final String FILE_NAME = ".gocd-s3-sync.json";
+    private static final Logger logger = Logger.getLoggerFor(SyncState.class);
+    private static final Gson gson = new GsonBuilder().create();
+
+    private final File directory;
+    private final Map<String, SyncedFile> files;
+    private final Set<String> seen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private SyncState(File directory, Map<String, SyncedFile> files) {
+        this.directory = directory;
+        this.files = new ConcurrentHashMap<>(files);
+    }
+
+    static SyncState load(File directory) {
+        File stateFile = new File(directory, FILE_NAME);
+        Map<String, SyncedFile> files = new HashMap<>();
+        if (stateFile.isFile()) {
+            try {
+                State state = gson.fromJson(new String(Files.readAllBytes(stateFile.toPath()), StandardCharsets.UTF_8), State.class);
+                if (state != null && state.files != null) {
+                    files = state.files;
+                }
+            } catch (IOException | JsonParseException e) {
+                logger.warn(String.format("Ignoring unreadable sync state %s - %s", stateFile, e.getMessage()));
+            }
+        }
+        return new SyncState(directory, files);
+    }
+
+    /**
+     * Marks the path as present at the source and tells whether the local file already
+     * has the content of the object.
+     *
+     * @param size size of the object, which for compressed objects is not the size of the file
+     * @param md5  MD5 of the decoded content of a compressed object, when known
+     */
+    boolean isUnchanged(String path, long size, String eTag, String md5) {
+        seen.add(path);
+        File file = new File(directory, path);
+        if (!file.isFile()) {
+            return false;
+        }
+        // Records hold the file as it was written, decoded when the object is compressed
+        SyncedFile synced = files.get(path);
+        if (synced != null && eTag != null && eTag.equals(synced.eTag) && synced.size == file.length() && synced.lastModified == file.lastModified()) {
+            return true;
+        }
+        String contentMd5 = md5 != null ? md5 : eTag != null && isMd5(eTag) && file.length() == size ? eTag : null;
+        if (contentMd5 != null && contentMd5.equalsIgnoreCase(md5(file))) {
+            record(path, eTag);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records the file as downloaded from the object, which also marks it as present at the source
+     */
+    void record(String path, String eTag) {
+        seen.add(path);
+        File file = new File(directory, path);
+        files.put(path, new SyncedFile(eTag, file.length(), file.lastModified()));
+    }
+
+    /**
+     * Deletes the files an earlier sync downloaded whose objects are gone from the source.
+     * Files that were not put there by a sync are left alone.
+     *
+     * @return the paths of the deleted files
+     */
+    synchronized List<String> prune() {
+        List<String> pruned = new ArrayList<>();
+        for (String path : new ArrayList<>(files.keySet())) {
+            if (!seen.contains(path)) {
+                File file = new File(directory, path);
+                if (!file.exists() || file.delete()) {
+                    files.remove(path);
+                    pruned.add(path);
+                }
+            }
+        }
+        return pruned;
+    }
+
+    synchronized void save() {
+        File stateFile = new File(directory, FILE_NAME);
+        File temporary = new File(directory, FILE_NAME + ".tmp");
+        State state = new State();
+        state.files = files;
+        try {
+            Files.createDirectories(directory.toPath());
+            Files.write(temporary.toPath(), gson.toJson(state).getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Without the state the next sync falls back to checksums, it still works
+            logger.warn(String.format("Could not save sync state %s - %s", stateFile, e.getMessage()));
+        }
+    }
+
+    private boolean isMd5(String eTag) {
+        return eTag.length() == 32 && eTag.matches("[0-9a-fA-F]+");
+    }
+
+    private String md5(File file) {
+        try {
+            return ETags.md5(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static class State {
+        private Map<String, SyncedFile> files;
+    }
+
+    private static class SyncedFile {
+        private String eTag;
+        private long size;
+        private long lastModified;
+
+        SyncedFile(String eTag, long size, long lastModified) {
+            this.eTag = eTag;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
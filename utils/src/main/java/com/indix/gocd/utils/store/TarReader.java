@@ -0,0 +1,226 @@
+package com.indix.gocd.utils.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts the regular files and directories of a tar archive as it is read, so an archive
+ * can be unpacked straight from a download without being stored first.
+ *
+ * Understands the ustar format written by {@link TarWriter} along with GNU long names and
+ * pax path records. Links and special files are skipped, as are entries that would end up
+ * outside of the destination directory.
+ */
+class TarReader {
+    private static final byte TYPE_OLD_FILE = 0;
+    private static final byte TYPE_CONTIGUOUS_FILE = '7';
+    private static final byte TYPE_PAX = 'x';
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+
+    TarReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * @return the paths of the files extracted, relative to the directory
+     */
+    List<String> extractTo(File directory) throws IOException {
+        return extractTo(directory, "");
+    }
+
+    /**
+     * Extracts only the entries whose path starts with the prefix, without it
+     *
+     * @return the paths of the files extracted, relative to the directory
+     */
+    List<String> extractTo(File directory, String entryPrefix) throws IOException {
+        String root = directory.getCanonicalPath() + File.separator;
+        byte[] header = new byte[TarWriter.BLOCK_SIZE];
+        String longName = null;
+        List<String> extracted = new ArrayList<>();
+        while (readBlock(header)) {
+            if (isEndOfArchive(header)) {
+                break;
+            }
+            verifyChecksum(header);
+            byte type = header[156];
+            long size = number(header, 124, 12);
+
+            if (type == TarWriter.TYPE_LONG_NAME) {
+                longName = trimNul(new String(readFully(size), StandardCharsets.UTF_8));
+                continue;
+            }
+            if (type == TYPE_PAX) {
+                String path = paxPath(new String(readFully(size), StandardCharsets.UTF_8));
+                if (path != null) {
+                    longName = path;
+                }
+                continue;
+            }
+
+            String path = longName != null ? longName : path(header);
+            longName = null;
+            if (!path.startsWith(entryPrefix)) {
+                copy(size, null);
+                continue;
+            }
+            path = path.substring(entryPrefix.length());
+            File target = new File(directory, path);
+            if (!(target.getCanonicalPath() + File.separator).startsWith(root)) {
+                throw new IOException(String.format("Archive entry %s points outside of %s", path, directory));
+            }
+
+            if (type == TarWriter.TYPE_FILE || type == TYPE_OLD_FILE || type == TYPE_CONTIGUOUS_FILE) {
+                target.getParentFile().mkdirs();
+                try (OutputStream out = new FileOutputStream(target)) {
+                    copy(size, out);
+                }
+                target.setLastModified(number(header, 136, 12) * 1000);
+                if ((number(header, 100, 8) & 0100) != 0) {
+                    target.setExecutable(true);
+                }
+                extracted.add(path);
+            } else {
+                if (type == TarWriter.TYPE_DIRECTORY) {
+                    target.mkdirs();
+                }
+                copy(size, null);
+            }
+        }
+        // Let the download finish normally instead of being cut off
+        while (in.read(buffer) != -1) {
+        }
+        return extracted;
+    }
+
+    private String path(byte[] header) {
+        String name = string(header, 0, 100);
+        // Old GNU archives keep other fields where ustar has the prefix
+        String prefix = "ustar".equals(string(header, 257, 6)) ? string(header, 345, 155) : "";
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    private String paxPath(String records) {
+        for (String record : records.split("\n")) {
+            int start = record.indexOf(' ');
+            if (start > 0 && record.startsWith("path=", start + 1)) {
+                return record.substring(start + 1 + "path=".length());
+            }
+        }
+        return null;
+    }
+
+    private void verifyChecksum(byte[] header) throws IOException {
+        long recorded = number(header, 148, 8);
+        byte[] copy = header.clone();
+        for (int i = 148; i < 156; i++) {
+            copy[i] = ' ';
+        }
+        if (TarWriter.checksum(copy) != recorded) {
+            throw new IOException("Archive is corrupt, header checksum does not match");
+        }
+    }
+
+    /**
+     * Copies the content of the current entry, along with the padding after it
+     */
+    private void copy(long size, OutputStream out) throws IOException {
+        long remaining = size + padding(size);
+        long content = size;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new EOFException("Archive ended in the middle of an entry");
+            }
+            if (out != null && content > 0) {
+                out.write(buffer, 0, (int) Math.min(read, content));
+            }
+            content -= Math.min(read, content);
+            remaining -= read;
+        }
+    }
+
+    private byte[] readFully(long size) throws IOException {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("Archive is corrupt, header entry is too large");
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream((int) size);
+        copy(size, content);
+        return content.toByteArray();
+    }
+
+    private boolean readBlock(byte[] block) throws IOException {
+        int offset = 0;
+        while (offset < block.length) {
+            int read = in.read(block, offset, block.length - offset);
+            if (read == -1) {
+                if (offset == 0) {
+                    return false;
+                }
+                throw new EOFException("Archive ended in the middle of a header");
+            }
+            offset += read;
+        }
+        return true;
+    }
+
+    private static boolean isEndOfArchive(byte[] header) {
+        for (byte b : header) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long padding(long size) {
+        long remainder = size % TarWriter.BLOCK_SIZE;
+        return remainder == 0 ? 0 : TarWriter.BLOCK_SIZE - remainder;
+    }
+
+    /**
+     * Reads an octal field, or a GNU base-256 one when its first byte has the high bit set
+     */
+    private static long number(byte[] header, int offset, int length) {
+        long value = 0;
+        if ((header[offset] & 0x80) != 0) {
+            for (int i = offset + 1; i < offset + length; i++) {
+                value = (value << 8) | (header[i] & 0xff);
+            }
+            return value;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if (b >= '0' && b <= '7') {
+                value = (value << 3) + (b - '0');
+            } else if (b == 0 || (b == ' ' && value > 0)) {
+                break;
+            }
+        }
+        return value;
+    }
+
+    private static String string(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static String trimNul(String value) {
+        int end = value.indexOf('\0');
+        return end == -1 ? value : value.substring(0, end);
+    }
+}
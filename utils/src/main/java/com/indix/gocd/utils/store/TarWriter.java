@@ -0,0 +1,158 @@
+package com.indix.gocd.utils.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes regular files into a POSIX ustar archive.
+ *
+ * Paths that do not fit the ustar name and prefix fields are written with a GNU long name
+ * entry, and sizes beyond the 8 GB octal limit in the GNU base-256 encoding, both of which
+ * GNU tar, bsdtar and {@link TarReader} understand.
+ */
+class TarWriter implements Closeable {
+    static final int BLOCK_SIZE = 512;
+    static final String LONG_NAME = "././@LongLink";
+    static final byte TYPE_FILE = '0';
+    static final byte TYPE_DIRECTORY = '5';
+    static final byte TYPE_LONG_NAME = 'L';
+    private static final int NAME_LENGTH = 100;
+    private static final int PREFIX_LENGTH = 155;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    private boolean finished;
+
+    TarWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Adds the content of the file under the given path, which uses / as separator
+     */
+    void add(File file, String path) throws IOException {
+        long size = file.length();
+        writeHeader(path, size, file.canExecute() ? 0755 : 0644, file.lastModified() / 1000);
+        try (InputStream content = new FileInputStream(file)) {
+            long remaining = size;
+            while (remaining > 0) {
+                int read = content.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new IOException(String.format("%s got shorter while it was being archived", file));
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        pad(size);
+    }
+
+    /**
+     * Writes the end of archive marker without closing the underlying stream
+     */
+    void finish() throws IOException {
+        if (!finished) {
+            out.write(new byte[BLOCK_SIZE * 2]);
+            out.flush();
+            finished = true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    private void writeHeader(String path, long size, int mode, long modified) throws IOException {
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        byte[] prefix = new byte[0];
+        if (name.length > NAME_LENGTH) {
+            int split = splitPoint(name);
+            if (split > 0) {
+                prefix = Arrays.copyOfRange(name, 0, split);
+                name = Arrays.copyOfRange(name, split + 1, name.length);
+            } else {
+                byte[] longName = Arrays.copyOf(name, name.length + 1);
+                out.write(header(LONG_NAME.getBytes(StandardCharsets.UTF_8), new byte[0], longName.length, 0644, 0, TYPE_LONG_NAME));
+                out.write(longName);
+                pad(longName.length);
+                name = Arrays.copyOf(name, NAME_LENGTH);
+            }
+        }
+        out.write(header(name, prefix, size, mode, modified, TYPE_FILE));
+    }
+
+    /**
+     * @return the position of the / that splits the path into a prefix and a name that both fit, or -1
+     */
+    private int splitPoint(byte[] path) {
+        for (int i = Math.min(path.length - 1, PREFIX_LENGTH); i > 0; i--) {
+            if (path[i] == '/' && path.length - i - 1 <= NAME_LENGTH && path.length - i - 1 > 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private byte[] header(byte[] name, byte[] prefix, long size, int mode, long modified, byte type) {
+        byte[] header = new byte[BLOCK_SIZE];
+        System.arraycopy(name, 0, header, 0, name.length);
+        octal(mode, header, 100, 8);
+        octal(0, header, 108, 8);
+        octal(0, header, 116, 8);
+        if (size > MAX_OCTAL_SIZE) {
+            header[124] = (byte) 0x80;
+            for (int i = 135; i > 124; i--) {
+                header[i] = (byte) size;
+                size >>>= 8;
+            }
+        } else {
+            octal(size, header, 124, 12);
+        }
+        octal(modified, header, 136, 12);
+        header[156] = type;
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        System.arraycopy(prefix, 0, header, 345, prefix.length);
+
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        octal(checksum(header), header, 148, 7);
+        return header;
+    }
+
+    private void pad(long size) throws IOException {
+        int remainder = (int) (size % BLOCK_SIZE);
+        if (remainder > 0) {
+            out.write(new byte[BLOCK_SIZE - remainder]);
+        }
+    }
+
+    static long checksum(byte[] header) {
+        long sum = 0;
+        for (byte b : header) {
+            sum += b & 0xff;
+        }
+        return sum;
+    }
+
+    /**
+     * Writes the value as zero padded octal digits followed by a NUL
+     */
+    private static void octal(long value, byte[] header, int offset, int length) {
+        String digits = Long.toOctalString(value);
+        int padding = length - 1 - digits.length();
+        for (int i = 0; i < padding; i++) {
+            header[offset + i] = '0';
+        }
+        System.arraycopy(digits.getBytes(StandardCharsets.US_ASCII), 0, header, offset + padding, digits.length());
+        header[offset + length - 1] = 0;
+    }
+}
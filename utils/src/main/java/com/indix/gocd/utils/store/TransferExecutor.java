@@ -0,0 +1,251 @@
+package com.indix.gocd.utils.store;
+
+import com.amazonaws.AbortedException;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs transfers on a bounded pool of worker threads.
+ *
+ * Submitting blocks once every worker is busy and the queue is full, so callers can feed
+ * it from arbitrarily large listings. The first failure stops further submissions and
+ * cancels the transfers still in flight. With a concurrency of 1 transfers run inline on
+ * the calling thread, and their failure fails the submission right away.
+ *
+ * With an {@link AdaptiveConcurrency} the pool is sized for its largest limit and only as
+ * many transfers run at once as it allows. Transfers throttled by S3 before moving any
+ * bytes are then retried after backing off instead of failing.
+ */
+public class TransferExecutor {
+    private static final AtomicInteger poolCounter = new AtomicInteger();
+    static final int MAX_THROTTLED_ATTEMPTS = 5;
+    private static final long THROTTLED_BACKOFF_MILLIS = 200;
+
+    private final int concurrency;
+    private final int capacity;
+    private final Semaphore slots;
+    private final ExecutorService executor;
+    private final AdaptiveConcurrency adaptive;
+    private static final ThreadLocal<AtomicLong> MOVED = new ThreadLocal<>();
+    private final Map<String, Exception> failures = new LinkedHashMap<>();
+    private volatile boolean failed = false;
+
+    public TransferExecutor(int concurrency) {
+        this(concurrency, null);
+    }
+
+    public TransferExecutor(AdaptiveConcurrency adaptive) {
+        this(adaptive.getMaxLimit(), adaptive);
+    }
+
+    private TransferExecutor(int concurrency, AdaptiveConcurrency adaptive) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency should be a positive number, was " + concurrency);
+        }
+        this.concurrency = concurrency;
+        this.adaptive = adaptive;
+        this.capacity = concurrency * 2;
+        this.slots = new Semaphore(capacity);
+        this.executor = concurrency > 1 ? Executors.newFixedThreadPool(concurrency, threadFactory()) : null;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public void submit(String name, Runnable transfer) {
+        submit(name, 0, transfer);
+    }
+
+    /**
+     * @param size bytes the transfer moves, which is what adaptive concurrency measures throughput with
+     */
+    public void submit(final String name, final long size, final Runnable transfer) {
+        throwIfFailed();
+        if (executor == null) {
+            try {
+                runTransfer(size, transfer);
+            } catch (Exception e) {
+                recordFailure(name, e);
+                throwIfFailed();
+            }
+            return;
+        }
+
+        final AtomicLong moved = MOVED.get();
+        acquire(1);
+        if (failed) {
+            slots.release();
+            throwIfFailed();
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    MOVED.set(moved);
+                    try {
+                        if (!failed) {
+                            runTransfer(size, transfer);
+                        }
+                    } catch (Exception e) {
+                        recordFailure(name, e);
+                    } finally {
+                        MOVED.remove();
+                        slots.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            slots.release();
+            throwIfFailed();
+            throw e;
+        }
+    }
+
+    private void runTransfer(long size, Runnable transfer) {
+        if (adaptive == null) {
+            transfer.run();
+            return;
+        }
+        for (int attempt = 1; ; attempt++) {
+            AtomicLong moved = new AtomicLong();
+            adaptive.acquire();
+            long start = System.nanoTime();
+            boolean released = false;
+            MOVED.set(moved);
+            try {
+                transfer.run();
+                adaptive.succeeded(size, System.nanoTime() - start);
+                released = true;
+                return;
+            } catch (RuntimeException e) {
+                if (!AdaptiveConcurrency.isThrottling(e) || failed) {
+                    throw e;
+                }
+                adaptive.throttled();
+                released = true;
+                // Running it again would send the bytes that made it through once more
+                if (attempt == MAX_THROTTLED_ATTEMPTS || moved.get() > 0) {
+                    throw e;
+                }
+            } finally {
+                MOVED.remove();
+                if (!released) {
+                    adaptive.failed();
+                }
+            }
+            backOff(attempt);
+        }
+    }
+
+    /**
+     * Counts bytes sent or received for the transfer running on the current thread, including
+     * the parts and ranges it runs on executors of its own
+     */
+    static void moved(long bytes) {
+        AtomicLong moved = MOVED.get();
+        if (moved != null) {
+            moved.addAndGet(bytes);
+        }
+    }
+
+    private void backOff(int attempt) {
+        try {
+            Thread.sleep(THROTTLED_BACKOFF_MILLIS << (attempt - 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException("Interrupted while backing off", e);
+        }
+    }
+
+    /**
+     * Waits for every submitted transfer to finish and releases the worker threads.
+     *
+     * @throws TransferFailedException if any of the transfers failed
+     */
+    public void awaitCompletion() {
+        if (executor == null) {
+            throwIfFailed();
+            return;
+        }
+
+        try {
+            acquire(capacity);
+            slots.release(capacity);
+        } finally {
+            executor.shutdownNow();
+        }
+        throwIfFailed();
+    }
+
+    public void shutdown() {
+        if (executor != null) {
+            cancelPending();
+        }
+    }
+
+    private void cancelPending() {
+        // Queued transfers that never get to run still hold a slot each
+        List<Runnable> neverRun = executor.shutdownNow();
+        slots.release(neverRun.size());
+    }
+
+    private void recordFailure(String name, Exception e) {
+        synchronized (failures) {
+            // Transfers interrupted because of an earlier failure are not failures of their own
+            if (!(failed && isCancellation(e))) {
+                failures.put(name, e);
+            }
+            if (!failed) {
+                failed = true;
+                if (executor != null) {
+                    cancelPending();
+                }
+            }
+        }
+    }
+
+    private boolean isCancellation(Exception e) {
+        return e instanceof AbortedException || Thread.currentThread().isInterrupted();
+    }
+
+    private void throwIfFailed() {
+        if (failed) {
+            synchronized (failures) {
+                throw new TransferFailedException(new LinkedHashMap<>(failures));
+            }
+        }
+    }
+
+    private void acquire(int permits) {
+        try {
+            slots.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelPending();
+            throw new RuntimeException("Interrupted while waiting for transfers to complete", e);
+        }
+    }
+
+    private ThreadFactory threadFactory() {
+        final int pool = poolCounter.incrementAndGet();
+        final AtomicInteger threadCounter = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, String.format("s3-transfer-%d-%d", pool, threadCounter.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
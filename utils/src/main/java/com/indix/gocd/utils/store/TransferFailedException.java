@@ -0,0 +1,37 @@
+package com.indix.gocd.utils.store;
+
+import java.util.Map;
+
+public class TransferFailedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    private static final int MAX_REPORTED_FAILURES = 10;
+
+    private final Map<String, Exception> failures;
+
+    public TransferFailedException(Map<String, Exception> failures) {
+        super(describe(failures));
+        this.failures = failures;
+    }
+
+    /**
+     * @return the reason for every failed transfer, keyed by what was being transferred
+     */
+    public Map<String, Exception> getFailures() {
+        return failures;
+    }
+
+    private static String describe(Map<String, Exception> failures) {
+        StringBuilder message = new StringBuilder(String.format("%d transfer(s) failed", failures.size()));
+        int reported = 0;
+        for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+            if (reported == MAX_REPORTED_FAILURES) {
+                message.append(String.format(" and %d more", failures.size() - reported));
+                break;
+            }
+            message.append(reported == 0 ? ": " : ", ")
+                    .append(String.format("%s (%s)", failure.getKey(), failure.getValue().getMessage()));
+            reported++;
+        }
+        return message.toString();
+    }
+}
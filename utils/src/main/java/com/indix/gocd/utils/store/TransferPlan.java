@@ -0,0 +1,116 @@
+package com.indix.gocd.utils.store;
+
+import com.indix.gocd.utils.Context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Orders a set of transfers so that they finish as early as possible on a fixed number of workers.
+ *
+ * Transfers are started longest first, the longest processing time rule: a large object
+ * started last would keep a single worker busy long after every other worker is done,
+ * while small files left for the end fill the gaps between workers finishing their large
+ * objects. How long a transfer takes is estimated from its bytes, spread over the ranges or
+ * parts it is split into, and from the requests it takes.
+ */
+public class TransferPlan {
+    // What a request costs compared to transferring bytes, in bytes
+    static final long REQUEST_COST = 256 * 1024;
+
+    private final List<Transfer> transfers = new ArrayList<>();
+    private long totalBytes;
+    private long requestCount;
+
+    /**
+     * @param requests    number of requests the transfer takes, counting every range or part
+     * @param parallelism number of those requests sent at the same time
+     */
+    public void add(String name, long size, int requests, int parallelism, Runnable transfer) {
+        transfers.add(new Transfer(name, size, requests, Math.max(1, parallelism), transfer));
+        totalBytes += size;
+        requestCount += requests;
+    }
+
+    /**
+     * @return the transfers in the order they should be started
+     */
+    public List<Transfer> getTransfers() {
+        List<Transfer> ordered = new ArrayList<>(transfers);
+        Collections.sort(ordered, new Comparator<Transfer>() {
+            @Override
+            public int compare(Transfer left, Transfer right) {
+                int byCost = Long.compare(right.cost(), left.cost());
+                return byCost != 0 ? byCost : left.name.compareTo(right.name);
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * Prints every transfer in the order it would be started, followed by the totals
+     */
+    public void print(Context context) {
+        for (Transfer transfer : getTransfers()) {
+            context.printMessage("  " + transfer);
+        }
+        context.printMessage(String.format("Planned %d transfers of %d bytes in about %d requests", size(), totalBytes, requestCount));
+    }
+
+    public void submitTo(TransferExecutor executor) {
+        for (Transfer transfer : getTransfers()) {
+            executor.submit(transfer.name, transfer.size, transfer.transfer);
+        }
+    }
+
+    public int size() {
+        return transfers.size();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getRequestCount() {
+        return requestCount;
+    }
+
+    public static class Transfer {
+        private final String name;
+        private final long size;
+        private final int requests;
+        private final int parallelism;
+        private final Runnable transfer;
+
+        Transfer(String name, long size, int requests, int parallelism, Runnable transfer) {
+            this.name = name;
+            this.size = size;
+            this.requests = requests;
+            this.parallelism = parallelism;
+            this.transfer = transfer;
+        }
+
+        long cost() {
+            return (size + requests * REQUEST_COST) / parallelism;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getRequests() {
+            return requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%d bytes, %d requests)", name, size, requests);
+        }
+    }
+}
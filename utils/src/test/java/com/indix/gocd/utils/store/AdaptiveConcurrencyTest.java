@@ -0,0 +1,188 @@
+package com.indix.gocd.utils.store;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class AdaptiveConcurrencyTest {
+    private static final long MEGABYTE = S3ArtifactStore.MEGABYTE;
+
+    @Test
+    public void shouldAllowOneMoreTransferWhileThroughputImproves() {
+        FakeClock clock = new FakeClock(2, 8);
+
+        // Every window moves as many megabytes as transfers in a second
+        for (int window = 0; window < 3; window++) {
+            clock.window(clock.getLimit(), clock.getLimit() * MEGABYTE, 100);
+        }
+
+        assertThat(clock.getLimit(), is(5));
+        assertThat(clock.getPeakLimit(), is(5));
+    }
+
+    @Test
+    public void shouldHoldWhenThroughputStopsImproving() {
+        FakeClock clock = new FakeClock(2, 8);
+
+        clock.window(2, 2 * MEGABYTE, 100);
+        clock.window(3, 2 * MEGABYTE, 100);
+        clock.window(3, 2 * MEGABYTE, 100);
+
+        assertThat(clock.getLimit(), is(3));
+    }
+
+    @Test
+    public void shouldHalveOnceForABurstOfThrottling() {
+        AdaptiveConcurrency adaptive = new AdaptiveConcurrency(8, 8);
+        for (int i = 0; i < 8; i++) {
+            adaptive.acquire();
+        }
+
+        for (int i = 0; i < 8; i++) {
+            adaptive.throttled();
+        }
+
+        assertThat(adaptive.getLimit(), is(4));
+        assertThat(adaptive.getThrottledCount(), is(8));
+    }
+
+    @Test
+    public void shouldBackOffWhenTimePerByteDoubles() {
+        FakeClock clock = new FakeClock(4, 8);
+
+        clock.window(4, 4 * MEGABYTE, 100);
+        clock.window(5, 4 * MEGABYTE, 400);
+
+        assertThat(clock.getLimit(), is(3));
+    }
+
+    @Test
+    public void shouldRecogniseThrottlingInsideFailedTransfers() {
+        AmazonS3Exception slowDown = new AmazonS3Exception("Please reduce your request rate.");
+        slowDown.setStatusCode(503);
+        slowDown.setErrorCode("SlowDown");
+        AmazonS3Exception denied = new AmazonS3Exception("Access Denied");
+        denied.setStatusCode(403);
+
+        assertThat(AdaptiveConcurrency.isThrottling(slowDown), is(true));
+        assertThat(AdaptiveConcurrency.isThrottling(new TransferFailedException(Collections.<String, Exception>singletonMap("part 1", slowDown))), is(true));
+        assertThat(AdaptiveConcurrency.isThrottling(denied), is(false));
+    }
+
+    @Test
+    public void shouldRetryThrottledTransfers() {
+        final AtomicInteger attempts = new AtomicInteger();
+        AdaptiveConcurrency adaptive = new AdaptiveConcurrency(2, 4);
+        TransferExecutor executor = new TransferExecutor(adaptive);
+        try {
+            executor.submit("object", 10, new Runnable() {
+                @Override
+                public void run() {
+                    if (attempts.incrementAndGet() == 1) {
+                        AmazonS3Exception slowDown = new AmazonS3Exception("Please reduce your request rate.");
+                        slowDown.setStatusCode(503);
+                        throw slowDown;
+                    }
+                }
+            });
+            executor.awaitCompletion();
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(attempts.get(), is(2));
+        assertThat(adaptive.getThrottledCount(), is(1));
+    }
+
+    @Test
+    public void shouldNotRetryThrottledTransfersThatMovedBytes() {
+        final AtomicInteger attempts = new AtomicInteger();
+        AdaptiveConcurrency adaptive = new AdaptiveConcurrency(2, 4);
+        TransferExecutor executor = new TransferExecutor(adaptive);
+        try {
+            executor.submit("object", 10, new Runnable() {
+                @Override
+                public void run() {
+                    attempts.incrementAndGet();
+                    BandwidthLimiter.uploads().progressChanged(new ProgressEvent(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT, 5));
+                    throw slowDown();
+                }
+            });
+            executor.awaitCompletion();
+            fail("Expected the throttled transfer to fail");
+        } catch (TransferFailedException e) {
+            assertThat(e.getFailures().keySet().toString(), is("[object]"));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(attempts.get(), is(1));
+        assertThat(adaptive.getThrottledCount(), is(1));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldGiveTheTransferBackWhenItFailsWithAnError() {
+        final AtomicInteger completed = new AtomicInteger();
+        AdaptiveConcurrency adaptive = new AdaptiveConcurrency(1, 2);
+        TransferExecutor executor = new TransferExecutor(adaptive);
+        try {
+            executor.submit("broken", 10, new Runnable() {
+                @Override
+                public void run() {
+                    throw new LinkageError("Broken class");
+                }
+            });
+            executor.submit("object", 10, new Runnable() {
+                @Override
+                public void run() {
+                    completed.incrementAndGet();
+                }
+            });
+            executor.awaitCompletion();
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(completed.get(), is(1));
+    }
+
+    private static AmazonS3Exception slowDown() {
+        AmazonS3Exception slowDown = new AmazonS3Exception("Please reduce your request rate.");
+        slowDown.setStatusCode(503);
+        return slowDown;
+    }
+
+    /**
+     * Runs whole windows of transfers one after another, a second of wall time per window
+     */
+    private static class FakeClock extends AdaptiveConcurrency {
+        private long now;
+
+        FakeClock(int initialLimit, int maxLimit) {
+            super(initialLimit, maxLimit);
+        }
+
+        void window(int transfers, long bytes, long millisPerTransfer) {
+            for (int i = 0; i < transfers; i++) {
+                acquire();
+            }
+            now += 1000000000L;
+            for (int i = 0; i < transfers; i++) {
+                succeeded(bytes / transfers, millisPerTransfer * 1000000L);
+            }
+        }
+
+        @Override
+        long now() {
+            return now;
+        }
+    }
+}
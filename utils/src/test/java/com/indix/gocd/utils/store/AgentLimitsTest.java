@@ -0,0 +1,53 @@
+package com.indix.gocd.utils.store;
+
+import com.indix.gocd.utils.GoEnvironment;
+import com.indix.gocd.utils.utils.Maps;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static com.indix.gocd.utils.Constants.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class AgentLimitsTest {
+    @After
+    public void tearDown() {
+        AgentLimits.apply(new GoEnvironment(new HashMap<String, String>()));
+    }
+
+    @Test
+    public void shouldSetTheLimitsFromTheEnvironment() {
+        AgentLimits.apply(new GoEnvironment(Maps.<String, String>builder()
+                .with(GO_ARTIFACTS_S3_UPLOAD_LIMIT, "10")
+                .with(GO_ARTIFACTS_S3_DOWNLOAD_LIMIT, " 20 ")
+                .with(GO_ARTIFACTS_S3_BUFFER_MEMORY, "512")
+                .build()));
+
+        assertThat(BandwidthLimiter.uploads().getRate(), is(10 * S3ArtifactStore.MEGABYTE));
+        assertThat(BandwidthLimiter.downloads().getRate(), is(20 * S3ArtifactStore.MEGABYTE));
+        assertThat(BufferPool.shared().getCapacity(), is(512 * S3ArtifactStore.MEGABYTE));
+    }
+
+    @Test
+    public void shouldDropTheLimitsAbsentFromTheEnvironment() {
+        AgentLimits.apply(new GoEnvironment(Maps.<String, String>builder()
+                .with(GO_ARTIFACTS_S3_UPLOAD_LIMIT, "10")
+                .with(GO_ARTIFACTS_S3_BUFFER_MEMORY, "512")
+                .build()));
+
+        AgentLimits.apply(new GoEnvironment(new HashMap<String, String>()));
+
+        assertThat(BandwidthLimiter.uploads().getRate(), is(0L));
+        assertThat(BandwidthLimiter.downloads().getRate(), is(0L));
+        assertThat(BufferPool.shared().getCapacity(), is(BufferPool.DEFAULT_CAPACITY));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldFailOnLimitsThatAreNotNumbers() {
+        AgentLimits.apply(new GoEnvironment(Maps.<String, String>builder()
+                .with(GO_ARTIFACTS_S3_DOWNLOAD_LIMIT, "fast")
+                .build()));
+    }
+}
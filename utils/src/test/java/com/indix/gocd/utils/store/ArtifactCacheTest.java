@@ -0,0 +1,101 @@
+package com.indix.gocd.utils.store;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ArtifactCacheTest {
+    private File cacheDirectory;
+    private File workingDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDirectory = Files.createTempDirectory("artifact-cache").toFile();
+        workingDirectory = Files.createTempDirectory("working-dir").toFile();
+    }
+
+    @Test
+    public void shouldMaterializeCachedObjectIntoDestination() throws IOException {
+        ArtifactCache cache = new ArtifactCache(cacheDirectory, 1024);
+        File destination = new File(workingDirectory, "a.jar");
+
+        assertThat(cache.get("bucket", "prefix/a.jar", "etag", destination), is(false));
+        cache.add("bucket", "prefix/a.jar", "etag", download(cache, "hello"), destination);
+        File secondDestination = new File(workingDirectory, "b.jar");
+
+        assertThat(cache.get("bucket", "prefix/a.jar", "etag", secondDestination), is(true));
+        assertThat(content(destination), is("hello"));
+        assertThat(content(secondDestination), is("hello"));
+        assertThat(cache.getHits(), is(1L));
+        assertThat(cache.getMisses(), is(1L));
+    }
+
+    @Test
+    public void shouldNotServeAnotherVersionOfTheObject() throws IOException {
+        ArtifactCache cache = new ArtifactCache(cacheDirectory, 1024);
+        cache.add("bucket", "prefix/a.jar", "etag", download(cache, "hello"), new File(workingDirectory, "a.jar"));
+
+        assertThat(cache.get("bucket", "prefix/a.jar", "other-etag", new File(workingDirectory, "b.jar")), is(false));
+        assertThat(cache.get("other-bucket", "prefix/a.jar", "etag", new File(workingDirectory, "b.jar")), is(false));
+    }
+
+    @Test
+    public void shouldNotChangeCachedObjectWhenFetchedFileIsModified() throws IOException {
+        ArtifactCache cache = new ArtifactCache(cacheDirectory, 1024);
+        File destination = new File(workingDirectory, "a.jar");
+        cache.add("bucket", "prefix/a.jar", "etag", download(cache, "hello"), destination);
+
+        Files.write(destination.toPath(), "world".getBytes(StandardCharsets.UTF_8));
+        File secondDestination = new File(workingDirectory, "b.jar");
+
+        assertThat(cache.get("bucket", "prefix/a.jar", "etag", secondDestination), is(true));
+        assertThat(content(secondDestination), is("hello"));
+    }
+
+    @Test
+    public void shouldDropCorruptEntries() throws IOException {
+        ArtifactCache cache = new ArtifactCache(cacheDirectory, 1024);
+        cache.add("bucket", "prefix/a.jar", "etag", download(cache, "hello"), new File(workingDirectory, "a.jar"));
+        Files.write(new File(cacheDirectory, "objects").listFiles()[0].toPath(), "jello".getBytes(StandardCharsets.UTF_8));
+        File destination = new File(workingDirectory, "b.jar");
+
+        assertThat(cache.get("bucket", "prefix/a.jar", "etag", destination), is(false));
+        assertThat(destination.exists(), is(false));
+        assertThat(new File(cacheDirectory, "objects").listFiles().length, is(0));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedObjectsOverBudget() throws IOException {
+        ArtifactCache cache = new ArtifactCache(cacheDirectory, 10);
+        cache.add("bucket", "a", "etag", download(cache, "aaaa"), new File(workingDirectory, "a"));
+        cache.add("bucket", "b", "etag", download(cache, "bbbb"), new File(workingDirectory, "b"));
+        new File(cacheDirectory, "objects").listFiles()[0].setLastModified(0);
+        new File(cacheDirectory, "objects").listFiles()[1].setLastModified(0);
+        // Using "a" makes "b" the least recently used one
+        assertThat(cache.get("bucket", "a", "etag", new File(workingDirectory, "a2")), is(true));
+
+        cache.add("bucket", "c", "etag", download(cache, "cccc"), new File(workingDirectory, "c"));
+
+        ArtifactCache sharedCache = new ArtifactCache(cacheDirectory, 10);
+        assertThat(sharedCache.get("bucket", "a", "etag", new File(workingDirectory, "a3")), is(true));
+        assertThat(sharedCache.get("bucket", "b", "etag", new File(workingDirectory, "b3")), is(false));
+        assertThat(sharedCache.get("bucket", "c", "etag", new File(workingDirectory, "c3")), is(true));
+    }
+
+    private File download(ArtifactCache cache, String content) throws IOException {
+        File download = cache.newDownload();
+        Files.write(download.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return download;
+    }
+
+    private String content(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,100 @@
+package com.indix.gocd.utils.store;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class BandwidthLimiterTest {
+
+    @Test
+    public void shouldLetABurstThroughAndThenHoldToTheRate() {
+        FakeClock limiter = new FakeClock(ProgressEventType.RESPONSE_BYTE_TRANSFER_EVENT);
+        limiter.setRate(1000);
+
+        limiter.acquire(1000);
+        limiter.acquire(500);
+        limiter.acquire(500);
+
+        // The first second worth of bytes is the burst, every 500 bytes after it take half a second
+        assertThat(limiter.waits.toString(), is("[500000000, 1000000000]"));
+    }
+
+    @Test
+    public void shouldRefillWhileIdleUpToASecondOfBytes() {
+        FakeClock limiter = new FakeClock(ProgressEventType.RESPONSE_BYTE_TRANSFER_EVENT);
+        limiter.setRate(1000);
+        limiter.acquire(1000);
+
+        limiter.now += 10 * 1000000000L;
+        limiter.acquire(1000);
+        limiter.acquire(250);
+
+        assertThat(limiter.waits.toString(), is("[250000000]"));
+    }
+
+    @Test
+    public void shouldKeepTheBucketWhenTheRateIsSetAgain() {
+        FakeClock limiter = new FakeClock(ProgressEventType.RESPONSE_BYTE_TRANSFER_EVENT);
+        limiter.setRate(1000);
+        limiter.acquire(1000);
+
+        limiter.setRate(1000);
+        limiter.acquire(500);
+        limiter.now += 500000000L;
+        limiter.setRate(2000);
+        limiter.acquire(500);
+        limiter.setRate(500);
+        limiter.acquire(250);
+
+        // Setting the rate again hands out no new burst, and a lower rate does not forgive the debt
+        assertThat(limiter.waits.toString(), is("[500000000, 250000000, 1500000000]"));
+    }
+
+    @Test
+    public void shouldCapTheBucketToTheLowerRate() {
+        FakeClock limiter = new FakeClock(ProgressEventType.RESPONSE_BYTE_TRANSFER_EVENT);
+        limiter.setRate(1000);
+
+        limiter.setRate(100);
+        limiter.acquire(200);
+
+        assertThat(limiter.waits.toString(), is("[1000000000]"));
+    }
+
+    @Test
+    public void shouldOnlyLimitItsDirectionAndOnlyWithARate() {
+        FakeClock limiter = new FakeClock(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT);
+        limiter.progressChanged(new ProgressEvent(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT, 1000000));
+        limiter.setRate(1000);
+
+        limiter.progressChanged(new ProgressEvent(ProgressEventType.RESPONSE_BYTE_TRANSFER_EVENT, 5000));
+        limiter.progressChanged(new ProgressEvent(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT, 2000));
+
+        assertThat(limiter.waits.toString(), is("[1000000000]"));
+    }
+
+    private static class FakeClock extends BandwidthLimiter {
+        private final List<Long> waits = new ArrayList<>();
+        private long now;
+
+        FakeClock(ProgressEventType eventType) {
+            super(eventType);
+        }
+
+        @Override
+        long now() {
+            return now;
+        }
+
+        @Override
+        void sleep(long nanos) {
+            waits.add(nanos);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.indix.gocd.utils.store;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class BufferPoolTest {
+
+    @Test
+    public void shouldReuseReleasedBuffers() {
+        BufferPool pool = new BufferPool(4096);
+
+        ByteBuffer first = pool.acquire(1024);
+        first.put(new byte[100]);
+        pool.release(first);
+        ByteBuffer second = pool.acquire(1024);
+
+        assertThat(second, is(sameInstance(first)));
+        assertThat(second.isDirect(), is(true));
+        assertThat(second.position(), is(0));
+        assertThat(second.remaining(), is(1024));
+        assertThat(pool.getInUse(), is(1024L));
+    }
+
+    @Test
+    public void shouldWaitForBuffersToBeReleasedOnceCapacityIsReached() throws InterruptedException {
+        final BufferPool pool = new BufferPool(2048);
+        ByteBuffer first = pool.acquire(1024);
+        pool.acquire(1024);
+        final AtomicReference<ByteBuffer> third = new AtomicReference<>();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                third.set(pool.acquire(1024));
+                acquired.countDown();
+            }
+        });
+        waiting.start();
+
+        assertThat(acquired.await(200, TimeUnit.MILLISECONDS), is(false));
+        pool.release(first);
+        assertThat(acquired.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(third.get(), is(sameInstance(first)));
+        assertThat(pool.getInUse(), is(2048L));
+    }
+
+    @Test
+    public void shouldDropKeptBuffersOfAnotherSizeToMakeRoom() {
+        BufferPool pool = new BufferPool(2048);
+        ByteBuffer small = pool.acquire(1024);
+        pool.release(small);
+
+        ByteBuffer large = pool.acquire(2048);
+
+        assertThat(large.capacity(), is(2048));
+        pool.release(large);
+        assertThat(pool.acquire(1024), is(not(sameInstance(small))));
+    }
+
+    @Test
+    public void shouldHandOutBufferLargerThanCapacityWhileNothingElseIsInUse() {
+        BufferPool pool = new BufferPool(1024);
+
+        ByteBuffer buffer = pool.acquire(4096);
+        pool.release(buffer);
+
+        assertThat(buffer.capacity(), is(4096));
+        assertThat(pool.getInUse(), is(0L));
+        // Not kept, as it does not fit in the capacity
+        assertThat(pool.acquire(4096), is(not(sameInstance(buffer))));
+    }
+
+    @Test(timeout = 5000)
+    public void shouldGrowBufferWithoutWaitingOnItself() {
+        BufferPool pool = new BufferPool(2048);
+        ByteBuffer buffer = pool.acquire(1024);
+        buffer.put(new byte[]{1, 2, 3});
+
+        ByteBuffer grown = pool.grow(buffer, 2048);
+
+        assertThat(grown.capacity(), is(2048));
+        assertThat(grown.position(), is(3));
+        assertThat(grown.get(2), is((byte) 3));
+        assertThat(pool.getInUse(), is(2048L));
+    }
+
+    @Test
+    public void shouldNotSetCapacityBelowTheLargestBufferATransferNeeds() {
+        BufferPool pool = new BufferPool(1024);
+        pool.fit(4096);
+
+        pool.setCapacity(1);
+
+        assertThat(pool.getCapacity(), is(4096L));
+    }
+
+    @Test
+    public void shouldKeepMemorySetAsideForALeaseFromOtherTransfers() {
+        BufferPool pool = new BufferPool(4096);
+        BufferPool.Lease lease = pool.lease(3072);
+
+        assertThat(pool.tryAcquire(2048), is(nullValue()));
+        ByteBuffer leased = lease.acquire(3072);
+        assertThat(lease.tryAcquire(1024), is(nullValue()));
+        ByteBuffer other = pool.acquire(1024);
+
+        lease.release(leased);
+        lease.close();
+        pool.release(other);
+        assertThat(pool.getInUse(), is(0L));
+        assertThat(pool.tryAcquire(4096), is(notNullValue()));
+    }
+}
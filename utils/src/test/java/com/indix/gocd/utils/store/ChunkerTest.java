@@ -0,0 +1,89 @@
+package com.indix.gocd.utils.store;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkerTest {
+
+    @Test
+    public void shouldCutChunksWithinTheSizeLimits() throws IOException {
+        byte[] content = random(1, 20 * 1024 * 1024);
+
+        List<byte[]> chunks = chunks(content);
+
+        long total = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            int size = chunks.get(i).length;
+            assertTrue("chunk " + i + " is " + size + " bytes", size <= Chunker.MAX_SIZE);
+            assertTrue("chunk " + i + " is " + size + " bytes", size >= Chunker.MIN_SIZE || i == chunks.size() - 1);
+            total += size;
+        }
+        assertThat(total, is((long) content.length));
+        assertTrue("expected several chunks but got " + chunks.size(), chunks.size() > 5);
+    }
+
+    @Test
+    public void shouldKeepChunksAwayFromAnInsertion() throws IOException {
+        byte[] content = random(2, 16 * 1024 * 1024);
+        byte[] edited = new byte[content.length + 100];
+        int at = 8 * 1024 * 1024;
+        System.arraycopy(content, 0, edited, 0, at);
+        System.arraycopy(random(3, 100), 0, edited, at, 100);
+        System.arraycopy(content, at, edited, at + 100, content.length - at);
+
+        Set<String> before = hashes(chunks(content));
+        List<byte[]> after = chunks(edited);
+
+        int changed = 0;
+        for (byte[] chunk : after) {
+            if (!before.contains(ChunkStore.sha256(ByteBuffer.wrap(chunk)))) {
+                changed++;
+            }
+        }
+        assertTrue("expected the insertion to change at most 2 of " + after.size() + " chunks but changed " + changed, changed <= 2);
+    }
+
+    @Test
+    public void shouldReturnNothingForEmptyContent() throws IOException {
+        assertThat(chunks(new byte[0]).size(), is(0));
+    }
+
+    private List<byte[]> chunks(byte[] content) throws IOException {
+        Chunker chunker = new Chunker(new ByteArrayInputStream(content));
+        List<byte[]> chunks = new ArrayList<>();
+        ByteBuffer chunk;
+        while ((chunk = chunker.next()) != null) {
+            byte[] bytes = new byte[chunk.remaining()];
+            chunk.get(bytes);
+            chunks.add(bytes);
+            BufferPool.shared().release(chunk);
+        }
+        return chunks;
+    }
+
+    private Set<String> hashes(List<byte[]> chunks) {
+        Set<String> hashes = new HashSet<>();
+        for (byte[] chunk : chunks) {
+            hashes.add(ChunkStore.sha256(ByteBuffer.wrap(chunk)));
+        }
+        return hashes;
+    }
+
+    private byte[] random(long seed, int size) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
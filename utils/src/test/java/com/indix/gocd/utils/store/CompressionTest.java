@@ -0,0 +1,84 @@
+package com.indix.gocd.utils.store;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CompressionTest {
+
+    @Test
+    public void shouldOnlyCompressLowEntropyFiles() throws IOException {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            log.append("INFO [main] Processed request ").append(i).append(" in 12ms\n");
+        }
+        byte[] random = new byte[256 * 1024];
+        new Random(42).nextBytes(random);
+
+        assertThat(Compression.isCompressible(file(log.toString().getBytes(StandardCharsets.UTF_8))), is(true));
+        assertThat(Compression.isCompressible(file(random)), is(false));
+        assertThat(Compression.isCompressible(file("tiny".getBytes(StandardCharsets.UTF_8))), is(false));
+    }
+
+    @Test
+    public void shouldWriteBlocksAsGzipMembersInOrder() throws IOException {
+        byte[] content = new byte[10 * 1000 + 7];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(compressed, 1000);
+        gzip.write(content, 0, 5000);
+        gzip.write(content, 5000, content.length - 5000);
+        gzip.close();
+
+        assertThat(IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))), is(content));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldWriteOutMembersInsteadOfWaitingInAPoolOfASingleBlock() throws IOException {
+        byte[] content = new byte[100 * 1000];
+        new Random(7).nextBytes(content);
+        long capacity = BufferPool.shared().getCapacity();
+        long inUse = BufferPool.shared().getInUse();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+        ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(compressed, 1000);
+        BufferPool.shared().setCapacity(1);
+        try {
+            gzip.write(content);
+            gzip.close();
+        } finally {
+            BufferPool.shared().setCapacity(capacity);
+        }
+
+        assertThat(IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))), is(content));
+        assertThat(BufferPool.shared().getInUse(), is(inUse));
+    }
+
+    @Test
+    public void shouldWriteValidGzipForEmptyContent() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(compressed, 1000).close();
+
+        assertThat(IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))).length, is(0));
+    }
+
+    private File file(byte[] content) throws IOException {
+        File file = File.createTempFile("compression", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+}
@@ -0,0 +1,51 @@
+package com.indix.gocd.utils.store;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ETagsTest {
+
+    @Test
+    public void shouldComputeETagOfSinglePartUpload() throws IOException {
+        assertThat(ETags.md5(file("abcdef")), is("e80b5017098950fc58aad83c8c14978e"));
+    }
+
+    @Test
+    public void shouldComputeETagOfMultipartUpload() throws IOException {
+        assertThat(ETags.multipart(file("abcdef"), 4), is("fa40dffba3d56c6098e0477379f300bd-2"));
+        assertThat(ETags.partCount("fa40dffba3d56c6098e0477379f300bd-2"), is(2));
+        assertThat(ETags.partCount("e80b5017098950fc58aad83c8c14978e"), is(1));
+    }
+
+    @Test
+    public void shouldComputeETagOfContentAsItStreamsBy() throws IOException {
+        ETags.Digest digest = ETags.Digest.of("\"fa40dffba3d56c6098e0477379f300bd-2\"", 6, 4);
+        try (InputStream in = digest.digesting(new ByteArrayInputStream("abcdef".getBytes(StandardCharsets.UTF_8)))) {
+            assertThat(in.read(new byte[3]), is(3));
+            assertThat(in.skip(3), is(3L));
+        }
+        assertThat(ETags.matches(digest.getETag(), "\"fa40dffba3d56c6098e0477379f300bd-2\""), is(true));
+    }
+
+    @Test
+    public void shouldNotDigestContentWhenItsETagCanNotBeComputed() {
+        assertThat(ETags.Digest.of("etag", 6, 4) == null, is(true));
+        // Two parts of a 6 byte object, neither of the preferred size nor of a whole number of megabytes
+        assertThat(ETags.Digest.of("fa40dffba3d56c6098e0477379f300bd-2", 6, 2) == null, is(true));
+    }
+
+    private File file(String content) throws IOException {
+        File file = File.createTempFile("etag", ".txt");
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
@@ -1,26 +1,44 @@
 package com.indix.gocd.utils.store;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
-import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.BinaryUtils;
+import com.indix.gocd.models.Manifest;
+import com.indix.gocd.models.ManifestEntry;
 import com.indix.gocd.utils.GoEnvironment;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.indix.gocd.utils.Constants.AWS_ACCESS_KEY_ID;
 import static com.indix.gocd.utils.Constants.AWS_REGION;
 import static com.indix.gocd.utils.Constants.AWS_SECRET_ACCESS_KEY;
+import static com.indix.gocd.utils.Constants.METADATA_MD5;
+import static org.hamcrest.core.StringContains.containsString;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 public class S3ArtifactStoreTest {
@@ -129,4 +147,1232 @@ public class S3ArtifactStoreTest {
         String prefix = store.getLatestPrefix("pipeline", "stage", "job", "1");
         assertEquals("pipeline/stage/job/1.7", prefix);
     }
+
+    @Test
+    public void shouldDownloadAllObjectsUnderPrefixInParallel() {
+        ObjectListing listing = listingOf("prefix/a", "prefix/b", "prefix/dir/c");
+        doReturn(listing).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        serve(new byte[10]);
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setConcurrency(4);
+
+        store.getPrefix("prefix", "/tmp/destination");
+
+        ArgumentCaptor<GetObjectRequest> getCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(mockClient, times(3)).getObject(getCaptor.capture());
+        Set<String> keys = new HashSet<>();
+        for (GetObjectRequest request : getCaptor.getAllValues()) {
+            keys.add(request.getKey());
+        }
+        assertThat(keys, is((Set<String>) new HashSet<>(Arrays.asList("prefix/a", "prefix/b", "prefix/dir/c"))));
+    }
+
+    @Test
+    public void shouldSkipOnlyTheManifestAndBundlesOfTheRevisionWhenListing() {
+        ObjectListing listing = listingOf("revision/source/a", "revision/.gocd-s3-manifest.json", "revision/.gocd-s3-bundles/1234",
+                "revision/source/.gocd-s3-manifest.json", "revision/source/.gocd-s3-bundles/notes");
+        doReturn(listing).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        serve(new byte[10]);
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+
+        TransferPlan plan = store.planPrefix("revision", "/tmp/destination", "revision");
+
+        Set<String> keys = new HashSet<>();
+        for (TransferPlan.Transfer transfer : plan.getTransfers()) {
+            keys.add(transfer.getName());
+        }
+        assertThat(keys, is((Set<String>) new HashSet<>(Arrays.asList("revision/source/a", "revision/source/.gocd-s3-manifest.json", "revision/source/.gocd-s3-bundles/notes"))));
+    }
+
+    @Test
+    public void shouldDownloadObjectsFromEveryListingPage() {
+        final ObjectListing firstPage = listingOf("prefix/a", "prefix/b");
+        firstPage.setTruncated(true);
+        firstPage.setNextMarker("prefix/b");
+        final ObjectListing lastPage = listingOf("prefix/c");
+        final List<String> markers = new ArrayList<>();
+        doAnswer(new Answer<ObjectListing>() {
+            @Override
+            public ObjectListing answer(InvocationOnMock invocation) {
+                String marker = ((ListObjectsRequest) invocation.getArguments()[0]).getMarker();
+                markers.add(marker);
+                return marker == null ? firstPage : lastPage;
+            }
+        }).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        serve(new byte[10]);
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setConcurrency(2);
+
+        store.getPrefix("prefix", "/tmp/destination");
+
+        assertThat(markers, is(Arrays.asList(null, "prefix/b")));
+        verify(mockClient, times(3)).getObject(any(GetObjectRequest.class));
+    }
+
+    @Test
+    public void shouldDownloadObjectsFromManifestWithoutListing() throws IOException {
+        File destination = Files.createTempDirectory("manifest-fetch").toFile();
+        serve(new byte[3]);
+        Manifest manifest = new Manifest()
+                .add(new ManifestEntry("source/a", 3, "etag-a"))
+                .add(new ManifestEntry("source/dir/b", 3, "etag-b"))
+                .add(new ManifestEntry("other/c", 3, "etag-c"));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setConcurrency(2);
+
+        store.getPrefix("revision/source", destination.getPath(), "revision", manifest);
+
+        verify(mockClient, never()).listObjects(any(ListObjectsRequest.class));
+        ArgumentCaptor<GetObjectRequest> getCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(mockClient, times(2)).getObject(getCaptor.capture());
+        Set<String> keys = new HashSet<>();
+        for (GetObjectRequest request : getCaptor.getAllValues()) {
+            keys.add(request.getKey());
+        }
+        assertThat(keys, is((Set<String>) new HashSet<>(Arrays.asList("revision/source/a", "revision/source/dir/b"))));
+        assertThat(new File(destination, "dir/b").length(), is(3L));
+    }
+
+    @Test
+    public void shouldServeRepeatedDownloadsFromTheArtifactCache() throws IOException {
+        File destination = Files.createTempDirectory("cached-fetch").toFile();
+        serve(new byte[3]);
+        Manifest manifest = new Manifest().add(new ManifestEntry("source/a", 3, "etag-a"));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setCache(new ArtifactCache(Files.createTempDirectory("artifact-cache").toFile(), 1024));
+
+        store.getPrefix("revision/source", destination.getPath() + "/first", "revision", manifest);
+        store.getPrefix("revision/source", destination.getPath() + "/second", "revision", manifest);
+
+        ArgumentCaptor<GetObjectRequest> getCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(mockClient, times(1)).getObject(getCaptor.capture());
+        assertThat(getCaptor.getValue().getMatchingETagConstraints(), is(Arrays.asList("etag-a")));
+        assertThat(new File(destination, "second/a").length(), is(3L));
+    }
+
+    @Test
+    public void shouldSyncOnlyChangedObjectsAndPruneDeletedOnes() throws IOException {
+        File destination = Files.createTempDirectory("synced-fetch").toFile();
+        Files.write(new File(destination, "a").toPath(), "abc".getBytes("UTF-8"));
+        serve("xyz".getBytes("UTF-8"));
+        S3ObjectSummary a = summary("prefix/a", 3, "900150983cd24fb0d6963f7d28e17f72");
+        S3ObjectSummary b = summary("prefix/b", 3, "etag-b");
+        ObjectListing firstListing = new ObjectListing();
+        firstListing.getObjectSummaries().addAll(Arrays.asList(a, b));
+        ObjectListing secondListing = new ObjectListing();
+        secondListing.getObjectSummaries().add(a);
+        when(mockClient.listObjects(any(ListObjectsRequest.class))).thenReturn(firstListing, secondListing);
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setSync(true, true);
+
+        store.getPrefix("prefix", destination.getPath());
+        store.getPrefix("prefix", destination.getPath());
+
+        ArgumentCaptor<GetObjectRequest> getCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(mockClient, times(1)).getObject(getCaptor.capture());
+        assertThat(getCaptor.getValue().getKey(), is("prefix/b"));
+        assertThat(store.getUnchangedCount(), is(2));
+        assertThat(store.getPrunedCount(), is(1));
+        assertThat(new File(destination, "a").exists(), is(true));
+        assertThat(new File(destination, "b").exists(), is(false));
+    }
+
+    @Test
+    public void shouldSyncCompressedObjectsFoundByListingByTheirDecodedContent() throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(compressed)) {
+            gzip.write("hello hello hello".getBytes("UTF-8"));
+        }
+        ObjectListing listing = new ObjectListing();
+        listing.getObjectSummaries().add(summary("prefix/app.log", compressed.size(), "etag-log"));
+        doReturn(listing).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        doAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) {
+                S3Object object = new S3Object();
+                object.setObjectContent(new ByteArrayInputStream(compressed.toByteArray()));
+                object.getObjectMetadata().setContentEncoding("gzip");
+                return object;
+            }
+        }).when(mockClient).getObject(any(GetObjectRequest.class));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setSync(true, true);
+        File destination = Files.createTempDirectory("synced-fetch").toFile();
+
+        store.getPrefix("prefix", destination.getPath());
+        store.getPrefix("prefix", destination.getPath());
+
+        verify(mockClient, times(1)).getObject(any(GetObjectRequest.class));
+        assertThat(store.getUnchangedCount(), is(1));
+    }
+
+    @Test
+    public void shouldPruneFilesNoLongerExtractedFromArchives() throws IOException {
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        TarWriter writer = new TarWriter(first);
+        writer.add(fileWith("a"), "a.txt");
+        writer.add(fileWith("b"), "nested/b.txt");
+        writer.close();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        writer = new TarWriter(second);
+        writer.add(fileWith("a"), "a.txt");
+        writer.close();
+        String key = "prefix/dir/" + ArchiveUpload.fileName("*", false);
+        doReturn(listingOf(key)).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        final List<byte[]> archives = new ArrayList<>(Arrays.asList(first.toByteArray(), second.toByteArray()));
+        doAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) {
+                S3Object object = new S3Object();
+                object.setObjectContent(new ByteArrayInputStream(archives.remove(0)));
+                return object;
+            }
+        }).when(mockClient).getObject(any(GetObjectRequest.class));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setSync(true, true);
+        File destination = Files.createTempDirectory("synced-fetch").toFile();
+
+        store.getPrefix("prefix", destination.getPath());
+        assertThat(new File(destination, "dir/nested/b.txt").exists(), is(true));
+        store.getPrefix("prefix", destination.getPath());
+
+        assertThat(store.getPrunedCount(), is(1));
+        assertThat(new File(destination, "dir/a.txt").exists(), is(true));
+        assertThat(new File(destination, "dir/nested/b.txt").exists(), is(false));
+    }
+
+    @Test
+    public void shouldFailWhenDownloadDoesNotMatchManifestSize() throws IOException {
+        File destination = Files.createTempDirectory("manifest-fetch").toFile();
+        Manifest manifest = new Manifest().add(new ManifestEntry("source/a", 3, "etag-a"));
+        serve(new byte[2]);
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+
+        try {
+            store.getPrefix("revision/source", destination.getPath(), "revision", manifest);
+            fail("Expected the fetch to fail");
+        } catch (TransferFailedException e) {
+            // The object ends before the size the manifest recorded
+            assertThat(e.getMessage(), containsString("Expected bytes 0-2 of revision/source/a but the download ended at 2"));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldFailInsteadOfWaitingWhenListingDiesWithAnError() {
+        doThrow(new NoClassDefFoundError("com/amazonaws/services/s3/model/ObjectListing")).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+
+        try {
+            store.getPrefix("prefix", "/tmp/destination");
+            fail("Expected the fetch to fail");
+        } catch (NoClassDefFoundError e) {
+            assertThat(e.getMessage(), containsString("ObjectListing"));
+        }
+    }
+
+    @Test
+    public void shouldReportFailedDownloadsWhenFetchingInParallel() {
+        ObjectListing listing = listingOf("prefix/a", "prefix/b");
+        doReturn(listing).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        doThrow(new AmazonClientException("Access Denied")).when(mockClient).getObject(any(GetObjectRequest.class));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setConcurrency(2);
+
+        try {
+            store.getPrefix("prefix", "/tmp/destination");
+            fail("Expected the fetch to fail");
+        } catch (TransferFailedException e) {
+            assertThat(e.getFailures().isEmpty(), is(false));
+            assertThat(e.getMessage(), containsString("Access Denied"));
+        }
+    }
+
+    @Test
+    public void shouldPutFilesWithTheMd5OfTheirContent() throws IOException {
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+
+        store.put(fileWith("abc").getPath(), "key");
+
+        verify(mockClient).putObject(putCaptor.capture());
+        PutObjectRequest putRequest = putCaptor.getValue();
+        assertThat(putRequest.getMetadata().getContentMD5(), is("kAFQmDzST7DWlj99KOF/cg=="));
+        assertThat(putRequest.getMetadata().getUserMetaDataOf(METADATA_MD5), is("900150983cd24fb0d6963f7d28e17f72"));
+        assertThat(putRequest.getMetadata().getContentLength(), is(3L));
+        assertThat(IOUtils.toString(putRequest.getInputStream(), "UTF-8"), is("abc"));
+    }
+
+    @Test
+    public void shouldPutFilesLargerThanAPartStraightFromTheFileWithTheMd5OfTheirContent() throws IOException {
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setMultipartPartSize(5 * S3ArtifactStore.MEGABYTE);
+        File file = sparseFile(6 * S3ArtifactStore.MEGABYTE);
+        long inUse = BufferPool.shared().getInUse();
+
+        store.put(file.getPath(), "key");
+
+        verify(mockClient).putObject(putCaptor.capture());
+        PutObjectRequest putRequest = putCaptor.getValue();
+        assertThat(putRequest.getFile(), is(file));
+        assertThat(putRequest.getMetadata().getUserMetaDataOf(METADATA_MD5), is(ETags.md5(file)));
+        assertThat(putRequest.getMetadata().getContentMD5(), is(BinaryUtils.toBase64(BinaryUtils.fromHex(ETags.md5(file)))));
+        assertThat(BufferPool.shared().getInUse(), is(inUse));
+    }
+
+    @Test
+    public void shouldUploadLargeFilesInParts() throws IOException {
+        File largeFile = sparseFile(11 * S3ArtifactStore.MEGABYTE);
+        InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId("upload-id");
+        doReturn(initiateResult).when(mockClient).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        doAnswer(new Answer<UploadPartResult>() {
+            @Override
+            public UploadPartResult answer(InvocationOnMock invocation) {
+                UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+                UploadPartResult result = new UploadPartResult();
+                result.setPartNumber(request.getPartNumber());
+                result.setETag("etag-" + request.getPartNumber());
+                return result;
+            }
+        }).when(mockClient).uploadPart(any(UploadPartRequest.class));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setMultipartThreshold(5 * S3ArtifactStore.MEGABYTE);
+        store.setMultipartPartSize(5 * S3ArtifactStore.MEGABYTE);
+
+        store.put(new PutObjectRequest("foo-bar", "key", largeFile));
+
+        ArgumentCaptor<UploadPartRequest> partCaptor = ArgumentCaptor.forClass(UploadPartRequest.class);
+        verify(mockClient, times(3)).uploadPart(partCaptor.capture());
+        long uploadedBytes = 0;
+        for (UploadPartRequest part : partCaptor.getAllValues()) {
+            uploadedBytes += part.getPartSize();
+            assertThat(part.getMd5Digest(), is(BinaryUtils.toBase64(ETags.md5(ByteBuffer.allocate((int) part.getPartSize())))));
+        }
+        assertThat(uploadedBytes, is(largeFile.length()));
+
+        ArgumentCaptor<CompleteMultipartUploadRequest> completeCaptor = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(mockClient).completeMultipartUpload(completeCaptor.capture());
+        List<PartETag> partETags = completeCaptor.getValue().getPartETags();
+        assertThat(partETags.size(), is(3));
+        assertThat(partETags.get(2).getETag(), is("etag-3"));
+        verify(mockClient, never()).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test
+    public void shouldAbortMultipartUploadWhenAPartFails() throws IOException {
+        File largeFile = sparseFile(11 * S3ArtifactStore.MEGABYTE);
+        InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId("upload-id");
+        doReturn(initiateResult).when(mockClient).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        doThrow(new AmazonClientException("Connection reset")).when(mockClient).uploadPart(any(UploadPartRequest.class));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setMultipartThreshold(5 * S3ArtifactStore.MEGABYTE);
+        store.setMultipartPartSize(5 * S3ArtifactStore.MEGABYTE);
+
+        try {
+            store.put(new PutObjectRequest("foo-bar", "key", largeFile));
+            fail("Expected the upload to fail");
+        } catch (TransferFailedException e) {
+            assertThat(e.getMessage(), containsString("Connection reset"));
+        }
+
+        ArgumentCaptor<AbortMultipartUploadRequest> abortCaptor = ArgumentCaptor.forClass(AbortMultipartUploadRequest.class);
+        verify(mockClient).abortMultipartUpload(abortCaptor.capture());
+        assertThat(abortCaptor.getValue().getUploadId(), is("upload-id"));
+        verify(mockClient, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void shouldResumeMultipartUploadFromTheJournalOfAnEarlierRun() throws IOException {
+        File largeFile = sparseFile(11 * S3ArtifactStore.MEGABYTE);
+        File workingDir = Files.createTempDirectory("s3-artifact-store").toFile();
+        InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId("upload-id");
+        doReturn(initiateResult).when(mockClient).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        doAnswer(new Answer<UploadPartResult>() {
+            @Override
+            public UploadPartResult answer(InvocationOnMock invocation) {
+                UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+                if (request.getPartNumber() == 3) {
+                    throw new AmazonClientException("Connection reset");
+                }
+                UploadPartResult result = new UploadPartResult();
+                result.setPartNumber(request.getPartNumber());
+                result.setETag("etag-" + request.getPartNumber());
+                return result;
+            }
+        }).when(mockClient).uploadPart(any(UploadPartRequest.class));
+
+        PublishJournal journal = PublishJournal.open(workingDir, "pipeline/stage/job/1.1");
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setMultipartThreshold(5 * S3ArtifactStore.MEGABYTE);
+        store.setMultipartPartSize(5 * S3ArtifactStore.MEGABYTE);
+        // One part at a time, so the first two are done when the third fails
+        store.setMultipartConcurrency(1);
+        store.setJournal(journal);
+        try {
+            store.put(new PutObjectRequest("foo-bar", "key", largeFile));
+            fail("Expected the upload to fail");
+        } catch (TransferFailedException e) {
+            assertThat(e.getMessage(), containsString("Connection reset"));
+        }
+        journal.close();
+        verify(mockClient, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+
+        PartListing listing = new PartListing();
+        for (int partNumber = 1; partNumber <= 2; partNumber++) {
+            PartSummary part = new PartSummary();
+            part.setPartNumber(partNumber);
+            part.setETag("etag-" + partNumber);
+            listing.getParts().add(part);
+        }
+        reset(mockClient);
+        doReturn(listing).when(mockClient).listParts(any(ListPartsRequest.class));
+        doAnswer(new Answer<UploadPartResult>() {
+            @Override
+            public UploadPartResult answer(InvocationOnMock invocation) {
+                UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+                UploadPartResult result = new UploadPartResult();
+                result.setPartNumber(request.getPartNumber());
+                result.setETag("etag-" + request.getPartNumber());
+                return result;
+            }
+        }).when(mockClient).uploadPart(any(UploadPartRequest.class));
+
+        journal = PublishJournal.open(workingDir, "pipeline/stage/job/1.1");
+        assertThat(journal.getUnfinishedUploadCount(), is(1));
+        store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setMultipartThreshold(5 * S3ArtifactStore.MEGABYTE);
+        store.setMultipartPartSize(5 * S3ArtifactStore.MEGABYTE);
+        store.setJournal(journal);
+        store.put(new PutObjectRequest("foo-bar", "key", largeFile));
+        journal.close();
+
+        verify(mockClient, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        ArgumentCaptor<UploadPartRequest> partCaptor = ArgumentCaptor.forClass(UploadPartRequest.class);
+        verify(mockClient).uploadPart(partCaptor.capture());
+        assertThat(partCaptor.getValue().getPartNumber(), is(3));
+        ArgumentCaptor<CompleteMultipartUploadRequest> completeCaptor = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(mockClient).completeMultipartUpload(completeCaptor.capture());
+        assertThat(completeCaptor.getValue().getUploadId(), is("upload-id"));
+        assertThat(completeCaptor.getValue().getPartETags().size(), is(3));
+        assertThat(PublishJournal.open(workingDir, "pipeline/stage/job/1.1").getUnfinishedUploadCount(), is(0));
+    }
+
+    @Test
+    public void shouldAbortMultipartUploadThatRunningAgainCannotFinish() throws IOException {
+        File workingDir = Files.createTempDirectory("s3-artifact-store").toFile();
+        AmazonS3Exception accessDenied = new AmazonS3Exception("Access Denied");
+        accessDenied.setStatusCode(403);
+
+        putFailingAtThirdPart(workingDir, "pipeline/stage/job/1.1", accessDenied);
+
+        ArgumentCaptor<AbortMultipartUploadRequest> abortCaptor = ArgumentCaptor.forClass(AbortMultipartUploadRequest.class);
+        verify(mockClient).abortMultipartUpload(abortCaptor.capture());
+        assertThat(abortCaptor.getValue().getUploadId(), is("upload-id"));
+        assertThat(PublishJournal.open(workingDir, "pipeline/stage/job/1.1").getUnfinishedUploadCount(), is(0));
+    }
+
+    @Test
+    public void shouldAbortUploadsARunOfAnotherRevisionLeftUnfinished() throws IOException {
+        File workingDir = Files.createTempDirectory("s3-artifact-store").toFile();
+        putFailingAtThirdPart(workingDir, "pipeline/stage/job/1.1", new AmazonClientException("Connection reset"));
+        verify(mockClient, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+
+        PublishJournal journal = PublishJournal.open(workingDir, "pipeline/stage/job/2.1");
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setJournal(journal);
+
+        assertThat(store.abortAbandonedUploads(), is(1));
+        assertThat(store.abortAbandonedUploads(), is(0));
+        journal.close();
+        ArgumentCaptor<AbortMultipartUploadRequest> abortCaptor = ArgumentCaptor.forClass(AbortMultipartUploadRequest.class);
+        verify(mockClient).abortMultipartUpload(abortCaptor.capture());
+        assertThat(abortCaptor.getValue().getKey(), is("key"));
+        assertThat(abortCaptor.getValue().getUploadId(), is("upload-id"));
+    }
+
+    @Test
+    public void shouldDownloadLargeObjectsAsParallelRanges() throws IOException {
+        final byte[] content = "0123456789".getBytes("UTF-8");
+        ObjectListing listing = listingOf("prefix/large.bin");
+        listing.getObjectSummaries().get(0).setETag("etag");
+        doReturn(listing).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        doAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) {
+                GetObjectRequest request = (GetObjectRequest) invocation.getArguments()[0];
+                long[] range = request.getRange();
+                S3Object object = new S3Object();
+                object.setObjectContent(new ByteArrayInputStream(Arrays.copyOfRange(content, (int) range[0], (int) range[1] + 1)));
+                return object;
+            }
+        }).when(mockClient).getObject(any(GetObjectRequest.class));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setRangedGetThreshold(4);
+        store.setRangedGetSize(4);
+        File destination = Files.createTempDirectory("s3-artifact-store").toFile();
+
+        store.getPrefix("prefix", destination.getPath());
+
+        ArgumentCaptor<GetObjectRequest> getCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(mockClient, times(3)).getObject(getCaptor.capture());
+        for (GetObjectRequest request : getCaptor.getAllValues()) {
+            assertThat(request.getMatchingETagConstraints(), is(Arrays.asList("etag")));
+        }
+        assertThat(Files.readAllBytes(new File(destination, "large.bin").toPath()), is(content));
+    }
+
+    @Test
+    public void shouldResumeInterruptedRangedDownloadsFromWhereTheyStopped() throws IOException {
+        final byte[] content = "0123456789ab".getBytes("UTF-8");
+        ObjectListing listing = new ObjectListing();
+        listing.getObjectSummaries().add(summary("prefix/large.bin", content.length, "etag"));
+        doReturn(listing).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        final List<String> requested = new ArrayList<>();
+        final boolean[] dropping = {true};
+        doAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) {
+                long[] range = ((GetObjectRequest) invocation.getArguments()[0]).getRange();
+                synchronized (requested) {
+                    requested.add(range[0] + "-" + range[1]);
+                }
+                if (range[0] == 4 && dropping[0]) {
+                    throw new AmazonClientException("Connection reset");
+                }
+                S3Object object = new S3Object();
+                // The first response for the second range ends early, as if its connection dropped
+                int end = range[0] == 4 && !requested.contains("6-7") ? 6 : (int) range[1] + 1;
+                object.setObjectContent(new ByteArrayInputStream(Arrays.copyOfRange(content, (int) range[0], end)));
+                return object;
+            }
+        }).when(mockClient).getObject(any(GetObjectRequest.class));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setRangedGetThreshold(4);
+        store.setRangedGetSize(4);
+        // One range at a time, so the first range is done and the last one not started when the second fails
+        store.setRangedGetConcurrency(1);
+        File destination = Files.createTempDirectory("s3-artifact-store").toFile();
+
+        try {
+            store.getPrefix("prefix", destination.getPath());
+            fail("Expected the download to fail");
+        } catch (TransferFailedException e) {
+            assertThat(e.getMessage(), containsString("Connection reset"));
+        }
+        assertThat(new File(destination, "large.bin").exists(), is(false));
+        assertThat(new File(destination, "large.bin" + PartialDownload.SIDECAR_SUFFIX).exists(), is(true));
+
+        requested.clear();
+        dropping[0] = false;
+        store.getPrefix("prefix", destination.getPath());
+
+        assertThat(requested, is(Arrays.asList("4-7", "6-7", "8-11")));
+        assertThat(Files.readAllBytes(new File(destination, "large.bin").toPath()), is(content));
+        assertThat(new File(destination, "large.bin" + PartialDownload.SUFFIX).exists(), is(false));
+        assertThat(new File(destination, "large.bin" + PartialDownload.SIDECAR_SUFFIX).exists(), is(false));
+    }
+
+    @Test
+    public void shouldDownloadObjectAgainWhenItsContentDoesNotMatchItsETag() throws IOException {
+        ObjectListing listing = new ObjectListing();
+        listing.getObjectSummaries().add(summary("prefix/a", 3, ETags.md5(fileWith("abc"))));
+        doReturn(listing).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        final AtomicInteger responses = new AtomicInteger();
+        doAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) throws IOException {
+                S3Object object = new S3Object();
+                // The first response is corrupted on the way
+                object.setObjectContent(new ByteArrayInputStream((responses.incrementAndGet() == 1 ? "abd" : "abc").getBytes("UTF-8")));
+                return object;
+            }
+        }).when(mockClient).getObject(any(GetObjectRequest.class));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        File destination = Files.createTempDirectory("s3-artifact-store").toFile();
+
+        store.getPrefix("prefix", destination.getPath());
+
+        assertThat(responses.get(), is(2));
+        assertThat(new String(Files.readAllBytes(new File(destination, "a").toPath()), "UTF-8"), is("abc"));
+    }
+
+    @Test
+    public void shouldVerifyEncryptedObjectsAgainstTheMd5TheyWerePutWith() {
+        ObjectListing listing = new ObjectListing();
+        // The ETag of an object encrypted with KMS is not the MD5 of its content
+        listing.getObjectSummaries().add(summary("prefix/a", 3, "0123456789abcdef0123456789abcdef"));
+        doReturn(listing).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        final AtomicInteger responses = new AtomicInteger();
+        doAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) throws IOException {
+                S3Object object = new S3Object();
+                object.setObjectContent(new ByteArrayInputStream((responses.incrementAndGet() == 1 ? "abd" : "abc").getBytes("UTF-8")));
+                object.getObjectMetadata().setSSEAlgorithm(SSEAlgorithm.KMS.getAlgorithm());
+                object.getObjectMetadata().addUserMetadata(METADATA_MD5, "900150983cd24fb0d6963f7d28e17f72");
+                return object;
+            }
+        }).when(mockClient).getObject(any(GetObjectRequest.class));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+
+        store.getPrefix("prefix", "/tmp/destination");
+
+        assertThat(responses.get(), is(2));
+    }
+
+    @Test
+    public void shouldVerifyRangedDownloadsOfMultipartObjectsAgainstTheirETag() throws IOException {
+        final byte[] content = "0123456789ab".getBytes("UTF-8");
+        ObjectListing listing = new ObjectListing();
+        listing.getObjectSummaries().add(summary("prefix/large.bin", content.length, ETags.multipart(fileWith("0123456789ab"), 4)));
+        doReturn(listing).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        doAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) {
+                long[] range = ((GetObjectRequest) invocation.getArguments()[0]).getRange();
+                S3Object object = new S3Object();
+                object.setObjectContent(new ByteArrayInputStream(Arrays.copyOfRange(content, (int) range[0], (int) range[1] + 1)));
+                return object;
+            }
+        }).when(mockClient).getObject(any(GetObjectRequest.class));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setRangedGetThreshold(4);
+        store.setRangedGetSize(4);
+        File destination = Files.createTempDirectory("s3-artifact-store").toFile();
+
+        store.getPrefix("prefix", destination.getPath());
+        assertThat(Files.readAllBytes(new File(destination, "large.bin").toPath()), is(content));
+
+        // The object now comes back different from what its ETag says, every time
+        content[5] = 'x';
+        try {
+            store.getPrefix("prefix", destination.getPath() + "/corrupt");
+            fail("Expected the download to fail");
+        } catch (TransferFailedException e) {
+            assertThat(e.getMessage(), containsString("Content of prefix/large.bin has ETag"));
+        }
+        verify(mockClient, times(9)).getObject(any(GetObjectRequest.class));
+        assertThat(new File(destination, "corrupt/large.bin").exists(), is(false));
+        assertThat(new File(destination, "corrupt/large.bin" + PartialDownload.SIDECAR_SUFFIX).exists(), is(false));
+    }
+
+    @Test
+    public void shouldVerifyRangedDownloadsOfSinglePartObjectsAgainstTheirETag() throws IOException {
+        final byte[] content = "0123456789".getBytes("UTF-8");
+        ObjectListing listing = new ObjectListing();
+        listing.getObjectSummaries().add(summary("prefix/large.bin", content.length, "781e5e245d69b566979b86e28d23f2c7"));
+        doReturn(listing).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        doAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) {
+                long[] range = ((GetObjectRequest) invocation.getArguments()[0]).getRange();
+                S3Object object = new S3Object();
+                object.setObjectContent(new ByteArrayInputStream(Arrays.copyOfRange(content, (int) range[0], (int) range[1] + 1)));
+                return object;
+            }
+        }).when(mockClient).getObject(any(GetObjectRequest.class));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setRangedGetThreshold(4);
+        store.setRangedGetSize(4);
+        File destination = Files.createTempDirectory("s3-artifact-store").toFile();
+
+        store.getPrefix("prefix", destination.getPath());
+        assertThat(Files.readAllBytes(new File(destination, "large.bin").toPath()), is(content));
+
+        content[5] = 'x';
+        try {
+            store.getPrefix("prefix", destination.getPath() + "/corrupt");
+            fail("Expected the download to fail");
+        } catch (TransferFailedException e) {
+            assertThat(e.getMessage(), containsString("Content of prefix/large.bin has ETag"));
+        }
+        assertThat(new File(destination, "corrupt/large.bin").exists(), is(false));
+    }
+
+    @Test
+    public void shouldVerifyRangedDownloadsOfEncryptedObjectsAgainstTheMd5TheyWerePutWith() throws IOException {
+        final byte[] content = "0123456789".getBytes("UTF-8");
+        ObjectListing listing = new ObjectListing();
+        listing.getObjectSummaries().add(summary("prefix/large.bin", content.length, "0123456789abcdef0123456789abcdef"));
+        doReturn(listing).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        final AtomicInteger responses = new AtomicInteger();
+        doAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) {
+                long[] range = ((GetObjectRequest) invocation.getArguments()[0]).getRange();
+                byte[] bytes = Arrays.copyOfRange(content, (int) range[0], (int) range[1] + 1);
+                if (responses.incrementAndGet() == 1) {
+                    bytes[0] = 'x';
+                }
+                S3Object object = new S3Object();
+                object.setObjectContent(new ByteArrayInputStream(bytes));
+                object.getObjectMetadata().setSSEAlgorithm(SSEAlgorithm.KMS.getAlgorithm());
+                object.getObjectMetadata().addUserMetadata(METADATA_MD5, "781e5e245d69b566979b86e28d23f2c7");
+                return object;
+            }
+        }).when(mockClient).getObject(any(GetObjectRequest.class));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setRangedGetThreshold(4);
+        store.setRangedGetSize(4);
+        store.setRangedGetConcurrency(1);
+        File destination = Files.createTempDirectory("s3-artifact-store").toFile();
+
+        store.getPrefix("prefix", destination.getPath());
+
+        // The first download has a corrupt range, the whole object is downloaded again
+        assertThat(responses.get(), is(6));
+        assertThat(Files.readAllBytes(new File(destination, "large.bin").toPath()), is(content));
+    }
+
+    @Test
+    public void shouldStreamArchiveInPartsAndExtractItWhenFetching() throws IOException {
+        File largeFile = sparseFile(11 * S3ArtifactStore.MEGABYTE);
+        File smallFile = File.createTempFile("s3-artifact-store", ".txt");
+        Files.write(smallFile.toPath(), "hello".getBytes("UTF-8"));
+        final Map<Integer, byte[]> parts = recordParts();
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setMultipartPartSize(5 * S3ArtifactStore.MEGABYTE);
+        String key = "prefix/dir/" + ArchiveUpload.fileName("target/*", false);
+
+        ArchiveUpload archive = store.putArchive(key, false);
+        archive.add(largeFile, "large.bin");
+        archive.add(smallFile, "nested/small.txt");
+        archive.close();
+
+        verify(mockClient, times(3)).uploadPart(any(UploadPartRequest.class));
+        verify(mockClient, never()).putObject(any(PutObjectRequest.class));
+        ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+        for (int partNumber = 1; partNumber <= parts.size(); partNumber++) {
+            uploaded.write(parts.get(partNumber));
+        }
+        assertThat((long) uploaded.size(), is(archive.getSize()));
+
+        doReturn(listingOf(key)).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        S3Object object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream(uploaded.toByteArray()));
+        doReturn(object).when(mockClient).getObject(any(GetObjectRequest.class));
+        File destination = Files.createTempDirectory("s3-artifact-store").toFile();
+
+        store.getPrefix("prefix", destination.getPath());
+
+        assertThat(new File(destination, "dir/large.bin").length(), is(largeFile.length()));
+        assertThat(new String(Files.readAllBytes(new File(destination, "dir/nested/small.txt").toPath()), "UTF-8"), is("hello"));
+        assertThat(new File(destination, "dir/" + ArchiveUpload.fileName("target/*", false)).exists(), is(false));
+        assertThat(store.getExtractedCount(), is(1));
+    }
+
+    @Test
+    public void shouldUploadSmallArchiveInOneRequestAndExtractItFromManifest() throws IOException {
+        File file = File.createTempFile("s3-artifact-store", ".txt");
+        Files.write(file.toPath(), "hello".getBytes("UTF-8"));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        String key = "prefix/" + ArchiveUpload.fileName("*.txt", true);
+
+        ArchiveUpload archive = store.putArchive(key, true);
+        archive.add(file, "a.txt");
+        archive.close();
+
+        verify(mockClient).putObject(putCaptor.capture());
+        verify(mockClient, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        assertThat(putCaptor.getValue().getMetadata().getContentType(), is("application/gzip"));
+        byte[] uploaded = IOUtils.toByteArray(putCaptor.getValue().getInputStream());
+
+        S3Object object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream(uploaded));
+        doReturn(object).when(mockClient).getObject(any(GetObjectRequest.class));
+        Manifest manifest = new Manifest();
+        manifest.add(new ManifestEntry(ArchiveUpload.fileName("*.txt", true), uploaded.length, "etag"));
+        File destination = Files.createTempDirectory("s3-artifact-store").toFile();
+
+        store.getPrefix("prefix", destination.getPath(), "prefix", manifest);
+
+        assertThat(new String(Files.readAllBytes(new File(destination, "a.txt").toPath()), "UTF-8"), is("hello"));
+        verify(mockClient, never()).getObject(any(GetObjectRequest.class), any(File.class));
+    }
+
+    @Test
+    public void shouldExtractFilesUnderTheFetchedPathFromArchivesPublishedAboveIt() throws IOException {
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        final String key = "prefix/dist/" + ArchiveUpload.fileName("dist/**", false);
+        ArchiveUpload archive = store.putArchive(key, false);
+        archive.add(fileWith("a"), "lib/a.txt");
+        archive.add(fileWith("b"), "b.txt");
+        archive.close();
+        verify(mockClient).putObject(putCaptor.capture());
+        final byte[] uploaded = IOUtils.toByteArray(putCaptor.getValue().getInputStream());
+        doAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) {
+                S3Object object = new S3Object();
+                object.setObjectContent(new ByteArrayInputStream(uploaded));
+                return object;
+            }
+        }).when(mockClient).getObject(any(GetObjectRequest.class));
+        doAnswer(new Answer<ObjectListing>() {
+            @Override
+            public ObjectListing answer(InvocationOnMock invocation) {
+                String prefix = ((ListObjectsRequest) invocation.getArguments()[0]).getPrefix();
+                return prefix.equals("prefix/dist/" + ArchiveUpload.FILE_NAME_PREFIX) ? listingOf(key) : new ObjectListing();
+            }
+        }).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        Manifest manifest = new Manifest();
+        manifest.add(new ManifestEntry("dist/" + ArchiveUpload.fileName("dist/**", false), uploaded.length, "etag"));
+        File fromManifest = Files.createTempDirectory("s3-artifact-store").toFile();
+        File fromListing = Files.createTempDirectory("s3-artifact-store").toFile();
+
+        store.getPrefix("prefix/dist/lib", fromManifest.getPath(), "prefix", manifest);
+        store.getPrefix("prefix/dist/lib", fromListing.getPath(), "prefix");
+
+        for (File destination : Arrays.asList(fromManifest, fromListing)) {
+            assertThat(new String(Files.readAllBytes(new File(destination, "a.txt").toPath()), "UTF-8"), is("a"));
+            assertThat(new File(destination, "b.txt").exists(), is(false));
+            assertThat(new File(destination, "lib").exists(), is(false));
+        }
+        assertThat(store.getExtractedCount(), is(2));
+    }
+
+    @Test
+    public void shouldGiveBuffersBackToThePoolWhenArchiveIsAborted() throws IOException {
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setMultipartPartSize(5 * S3ArtifactStore.MEGABYTE);
+        long inUse = BufferPool.shared().getInUse();
+
+        ArchiveUpload archive = store.putArchive("prefix/" + ArchiveUpload.fileName("*", true), true);
+        archive.add(sparseFile(6 * S3ArtifactStore.MEGABYTE), "large.bin");
+        archive.abort();
+
+        assertThat(BufferPool.shared().getInUse(), is(inUse));
+    }
+
+    @Test(timeout = 30000)
+    public void shouldGrowStreamedUploadInAPoolOfASinglePart() throws IOException {
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setMultipartPartSize(5 * S3ArtifactStore.MEGABYTE);
+        long capacity = BufferPool.shared().getCapacity();
+        long inUse = BufferPool.shared().getInUse();
+
+        ArchiveUpload archive = store.putArchive("prefix/" + ArchiveUpload.fileName("*", false), false);
+        BufferPool.shared().setCapacity(1);
+        try {
+            assertThat(BufferPool.shared().getCapacity() >= 5 * S3ArtifactStore.MEGABYTE, is(true));
+            archive.add(sparseFile(4 * S3ArtifactStore.MEGABYTE), "large.bin");
+            archive.close();
+        } finally {
+            BufferPool.shared().setCapacity(capacity);
+        }
+
+        verify(mockClient).putObject(any(PutObjectRequest.class));
+        assertThat(BufferPool.shared().getInUse(), is(inUse));
+    }
+
+    @Test(timeout = 60000)
+    public void shouldNotHangCompressingSeveralUploadsInASmallPool() throws Exception {
+        InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId("upload-id");
+        doReturn(initiateResult).when(mockClient).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        final AtomicInteger uploadedParts = new AtomicInteger();
+        doAnswer(new Answer<UploadPartResult>() {
+            @Override
+            public UploadPartResult answer(InvocationOnMock invocation) throws Exception {
+                UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+                IOUtils.toByteArray(request.getInputStream());
+                Thread.sleep(50);
+                uploadedParts.incrementAndGet();
+                UploadPartResult result = new UploadPartResult();
+                result.setPartNumber(request.getPartNumber());
+                result.setETag("etag-" + request.getPartNumber());
+                return result;
+            }
+        }).when(mockClient).uploadPart(any(UploadPartRequest.class));
+        byte[] content = new byte[12 * (int) S3ArtifactStore.MEGABYTE];
+        new java.util.Random(11).nextBytes(content);
+        final File file = File.createTempFile("s3-artifact-store", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content);
+        final S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setMultipartPartSize(5 * S3ArtifactStore.MEGABYTE);
+        long capacity = BufferPool.shared().getCapacity();
+        long inUse = BufferPool.shared().getInUse();
+
+        BufferPool.shared().setCapacity(1);
+        final List<Throwable> failures = new ArrayList<>();
+        List<Thread> uploads = new ArrayList<>();
+        try {
+            for (int i = 0; i < 4; i++) {
+                final String key = "prefix/compressed-" + i + ".bin";
+                Thread upload = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            store.putCompressed(file.getPath(), key, key);
+                        } catch (Throwable e) {
+                            synchronized (failures) {
+                                failures.add(e);
+                            }
+                        }
+                    }
+                });
+                upload.start();
+                uploads.add(upload);
+            }
+            for (Thread upload : uploads) {
+                upload.join();
+            }
+        } finally {
+            BufferPool.shared().setCapacity(capacity);
+        }
+
+        assertThat(failures.isEmpty(), is(true));
+        verify(mockClient, times(4)).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+        assertThat(uploadedParts.get() >= 12, is(true));
+        assertThat(BufferPool.shared().getInUse(), is(inUse));
+    }
+
+    @Test
+    public void shouldUploadCompressedAndDecodeWhileFetching() throws IOException {
+        File file = File.createTempFile("s3-artifact-store", ".log");
+        Files.write(file.toPath(), "hello hello hello".getBytes("UTF-8"));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+
+        ManifestEntry entry = store.putCompressed(file.getPath(), "prefix/app.log", "app.log");
+
+        verify(mockClient).putObject(putCaptor.capture());
+        assertThat(putCaptor.getValue().getMetadata().getContentEncoding(), is("gzip"));
+        assertThat(entry.getEncoding(), is("gzip"));
+        assertThat(entry.getSize(), is(file.length()));
+        assertThat(entry.getMd5(), is(ETags.md5(file)));
+        byte[] uploaded = IOUtils.toByteArray(putCaptor.getValue().getInputStream());
+
+        S3Object object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream(uploaded));
+        doReturn(object).when(mockClient).getObject(any(GetObjectRequest.class));
+        File destination = Files.createTempDirectory("s3-artifact-store").toFile();
+
+        store.getPrefix("prefix", destination.getPath(), "prefix", new Manifest().add(entry));
+
+        assertThat(new String(Files.readAllBytes(new File(destination, "app.log").toPath()), "UTF-8"), is("hello hello hello"));
+    }
+
+    @Test
+    public void shouldDecodeCompressedObjectsFoundByListing() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(compressed)) {
+            gzip.write("hello".getBytes("UTF-8"));
+        }
+        ObjectListing listing = new ObjectListing();
+        listing.getObjectSummaries().add(summary("prefix/app.log", compressed.size(), null));
+        doReturn(listing).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        doAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) {
+                S3Object object = new S3Object();
+                object.setObjectContent(new ByteArrayInputStream(compressed.toByteArray()));
+                object.getObjectMetadata().setContentEncoding("gzip");
+                return object;
+            }
+        }).when(mockClient).getObject(any(GetObjectRequest.class));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        File destination = Files.createTempDirectory("s3-artifact-store").toFile();
+
+        store.getPrefix("prefix", destination.getPath());
+
+        assertThat(new String(Files.readAllBytes(new File(destination, "app.log").toPath()), "UTF-8"), is("hello"));
+    }
+
+    @Test
+    public void shouldServeCompressedObjectsFoundByListingFromTheArtifactCache() throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(compressed)) {
+            gzip.write("hello hello hello".getBytes("UTF-8"));
+        }
+        ObjectListing listing = new ObjectListing();
+        listing.getObjectSummaries().add(summary("prefix/app.log", compressed.size(), "etag-log"));
+        doReturn(listing).when(mockClient).listObjects(any(ListObjectsRequest.class));
+        doAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) {
+                S3Object object = new S3Object();
+                object.setObjectContent(new ByteArrayInputStream(compressed.toByteArray()));
+                object.getObjectMetadata().setContentEncoding("gzip");
+                return object;
+            }
+        }).when(mockClient).getObject(any(GetObjectRequest.class));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setCache(new ArtifactCache(Files.createTempDirectory("artifact-cache").toFile(), 1024));
+        File destination = Files.createTempDirectory("s3-artifact-store").toFile();
+
+        store.getPrefix("prefix", destination.getPath() + "/first");
+        store.getPrefix("prefix", destination.getPath() + "/second");
+
+        verify(mockClient, times(1)).getObject(any(GetObjectRequest.class));
+        assertThat(new String(Files.readAllBytes(new File(destination, "second/app.log").toPath()), "UTF-8"), is("hello hello hello"));
+    }
+
+    @Test
+    public void shouldFetchWholeBundleInOneRequestOrSingleFilesAsRanges() throws IOException {
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        Manifest manifest = new Manifest();
+        BundleUpload bundle = store.putBundle("revision");
+        manifest.add(bundle.add(fileWith("a"), "docs/a.txt"));
+        manifest.add(bundle.add(fileWith("bb"), "docs/b.txt"));
+        manifest.add(bundle.add(sparseFile(S3ArtifactStore.MEGABYTE), "lib/large.bin"));
+        manifest.add(bundle.close());
+        verify(mockClient).putObject(putCaptor.capture());
+        assertThat(putCaptor.getValue().getKey(), is(bundle.getKey()));
+        final byte[] uploaded = IOUtils.toByteArray(putCaptor.getValue().getInputStream());
+        doAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) {
+                long[] range = ((GetObjectRequest) invocation.getArguments()[0]).getRange();
+                S3Object object = new S3Object();
+                object.setObjectContent(new ByteArrayInputStream(range == null ? uploaded : Arrays.copyOfRange(uploaded, (int) range[0], (int) range[1] + 1)));
+                return object;
+            }
+        }).when(mockClient).getObject(any(GetObjectRequest.class));
+
+        File everything = Files.createTempDirectory("s3-artifact-store").toFile();
+        store.getPrefix("revision", everything.getPath(), "revision", manifest);
+
+        ArgumentCaptor<GetObjectRequest> getCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(mockClient, times(1)).getObject(getCaptor.capture());
+        assertNull(getCaptor.getValue().getRange());
+        assertThat(new String(Files.readAllBytes(new File(everything, "docs/b.txt").toPath()), "UTF-8"), is("bb"));
+        assertThat(new File(everything, "lib/large.bin").length(), is(S3ArtifactStore.MEGABYTE));
+
+        File docs = Files.createTempDirectory("s3-artifact-store").toFile();
+        store.getPrefix("revision/docs", docs.getPath(), "revision", manifest);
+
+        verify(mockClient, times(3)).getObject(getCaptor.capture());
+        assertThat(getCaptor.getAllValues().get(2).getRange().length, is(2));
+        assertThat(new String(Files.readAllBytes(new File(docs, "a.txt").toPath()), "UTF-8"), is("a"));
+        assertThat(new String(Files.readAllBytes(new File(docs, "b.txt").toPath()), "UTF-8"), is("bb"));
+        assertThat(new File(docs, "large.bin").exists(), is(false));
+    }
+
+    @Test
+    public void shouldFetchCorruptFileOfABundleAgain() throws IOException {
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        Manifest manifest = new Manifest();
+        BundleUpload bundle = store.putBundle("revision");
+        manifest.add(bundle.add(fileWith("a"), "docs/a.txt"));
+        ManifestEntry b = bundle.add(fileWith("bb"), "docs/b.txt");
+        manifest.add(b);
+        manifest.add(bundle.close());
+        verify(mockClient).putObject(putCaptor.capture());
+        final byte[] uploaded = IOUtils.toByteArray(putCaptor.getValue().getInputStream());
+        final byte[] corrupt = uploaded.clone();
+        corrupt[(int) b.getOffset()] = 'x';
+        doAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) {
+                long[] range = ((GetObjectRequest) invocation.getArguments()[0]).getRange();
+                S3Object object = new S3Object();
+                object.setObjectContent(new ByteArrayInputStream(range == null ? corrupt : Arrays.copyOfRange(uploaded, (int) range[0], (int) range[1] + 1)));
+                return object;
+            }
+        }).when(mockClient).getObject(any(GetObjectRequest.class));
+        File destination = Files.createTempDirectory("s3-artifact-store").toFile();
+
+        store.getPrefix("revision", destination.getPath(), "revision", manifest);
+
+        ArgumentCaptor<GetObjectRequest> getCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(mockClient, times(2)).getObject(getCaptor.capture());
+        assertThat(getCaptor.getAllValues().get(1).getRange()[0], is(b.getOffset()));
+        assertThat(new String(Files.readAllBytes(new File(destination, "docs/a.txt").toPath()), "UTF-8"), is("a"));
+        assertThat(new String(Files.readAllBytes(new File(destination, "docs/b.txt").toPath()), "UTF-8"), is("bb"));
+        assertThat(new File(destination, "docs/b.txt.part").exists(), is(false));
+    }
+
+    @Test
+    public void shouldUploadOnlyNewChunksAndPutFilesBackTogetherFromThem() throws IOException {
+        byte[] content = new byte[6 * 1024 * 1024];
+        new java.util.Random(7).nextBytes(content);
+        File file = File.createTempFile("s3-artifact-store", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content);
+        final Map<String, byte[]> chunks = new HashMap<>();
+        doAnswer(new Answer<PutObjectResult>() {
+            @Override
+            public PutObjectResult answer(InvocationOnMock invocation) throws IOException {
+                PutObjectRequest request = (PutObjectRequest) invocation.getArguments()[0];
+                synchronized (chunks) {
+                    chunks.put(request.getKey(), IOUtils.toByteArray(request.getInputStream()));
+                }
+                return new PutObjectResult();
+            }
+        }).when(mockClient).putObject(any(PutObjectRequest.class));
+        doAnswer(new Answer<ObjectMetadata>() {
+            @Override
+            public ObjectMetadata answer(InvocationOnMock invocation) {
+                synchronized (chunks) {
+                    if (chunks.containsKey(invocation.getArguments()[1])) {
+                        return new ObjectMetadata();
+                    }
+                }
+                AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+                notFound.setStatusCode(404);
+                throw notFound;
+            }
+        }).when(mockClient).getObjectMetadata(anyString(), anyString());
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+
+        ManifestEntry entry = store.putChunked(file.getPath(), "lib/app.bin");
+
+        assertThat(entry.getSize(), is((long) content.length));
+        assertThat(entry.getMd5(), is(ETags.md5(file)));
+        assertThat(chunks.size(), is(entry.getChunks().size()));
+        assertThat(store.getChunkUploadedBytes(), is((long) content.length));
+        for (String key : chunks.keySet()) {
+            assertThat(key, containsString(".gocd-s3-chunks/"));
+        }
+
+        new S3ArtifactStore(mockClient, "foo-bar").putChunked(file.getPath(), "lib/app.bin");
+        verify(mockClient, times(entry.getChunks().size())).putObject(any(PutObjectRequest.class));
+
+        doAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) {
+                S3Object object = new S3Object();
+                object.setObjectContent(new ByteArrayInputStream(chunks.get(((GetObjectRequest) invocation.getArguments()[0]).getKey())));
+                return object;
+            }
+        }).when(mockClient).getObject(any(GetObjectRequest.class));
+        File destination = Files.createTempDirectory("s3-artifact-store").toFile();
+        store.setRangedGetConcurrency(3);
+
+        store.getPrefix("revision", destination.getPath(), "revision", new Manifest().add(entry));
+
+        assertThat(Arrays.equals(Files.readAllBytes(new File(destination, "lib/app.bin").toPath()), content), is(true));
+    }
+
+    @Test
+    public void shouldPlanManifestDownloadsWithoutDownloading() {
+        Manifest manifest = new Manifest()
+                .add(new ManifestEntry("docs/README.md", 100, "etag-1"))
+                .add(new ManifestEntry("lib/large.bin", 100 * S3ArtifactStore.MEGABYTE, "0123456789abcdef0123456789abcdef"))
+                .add(new ManifestEntry("lib/app.log", 100 * S3ArtifactStore.MEGABYTE, "etag-3", "gzip", "md5"));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+
+        TransferPlan plan = store.planPrefix("revision", "/tmp/nowhere", "revision", manifest);
+
+        assertThat(plan.size(), is(3));
+        assertThat(plan.getTransfers().get(0).getName(), is("revision/lib/app.log"));
+        assertThat(plan.getTransfers().get(1).getRequests(), is(7));
+        assertThat(plan.getTransfers().get(2).getName(), is("revision/docs/README.md"));
+        assertThat(plan.getRequestCount(), is(9L));
+        verify(mockClient, never()).getObject(any(GetObjectRequest.class));
+    }
+
+    @Test
+    public void shouldPlanRangesOfMultipartObjectsByTheirPartSize() {
+        Manifest manifest = new Manifest()
+                .add(new ManifestEntry("lib/large.bin", 100 * S3ArtifactStore.MEGABYTE, "0123456789abcdef0123456789abcdef-4"));
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+
+        TransferPlan plan = store.planPrefix("revision", "/tmp/nowhere", "revision", manifest);
+
+        assertThat(plan.getTransfers().get(0).getRequests(), is(4));
+    }
+
+    private void putFailingAtThirdPart(File workingDir, String revision, final RuntimeException failure) throws IOException {
+        InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId("upload-id");
+        doReturn(initiateResult).when(mockClient).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        doAnswer(new Answer<UploadPartResult>() {
+            @Override
+            public UploadPartResult answer(InvocationOnMock invocation) {
+                UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+                if (request.getPartNumber() == 3) {
+                    throw failure;
+                }
+                UploadPartResult result = new UploadPartResult();
+                result.setPartNumber(request.getPartNumber());
+                result.setETag("etag-" + request.getPartNumber());
+                return result;
+            }
+        }).when(mockClient).uploadPart(any(UploadPartRequest.class));
+        PublishJournal journal = PublishJournal.open(workingDir, revision);
+        S3ArtifactStore store = new S3ArtifactStore(mockClient, "foo-bar");
+        store.setMultipartThreshold(5 * S3ArtifactStore.MEGABYTE);
+        store.setMultipartPartSize(5 * S3ArtifactStore.MEGABYTE);
+        store.setMultipartConcurrency(1);
+        store.setJournal(journal);
+        try {
+            store.put(new PutObjectRequest("foo-bar", "key", sparseFile(11 * S3ArtifactStore.MEGABYTE)));
+            fail("Expected the upload to fail");
+        } catch (TransferFailedException e) {
+            assertThat(e.getMessage(), containsString(failure.getMessage()));
+        } finally {
+            journal.close();
+        }
+    }
+
+    private File fileWith(String content) throws IOException {
+        File file = File.createTempFile("s3-artifact-store", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content.getBytes("UTF-8"));
+        return file;
+    }
+
+    private Map<Integer, byte[]> recordParts() {
+        InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId("upload-id");
+        doReturn(initiateResult).when(mockClient).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        final Map<Integer, byte[]> parts = new HashMap<>();
+        doAnswer(new Answer<UploadPartResult>() {
+            @Override
+            public UploadPartResult answer(InvocationOnMock invocation) throws IOException {
+                UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+                synchronized (parts) {
+                    parts.put(request.getPartNumber(), IOUtils.toByteArray(request.getInputStream()));
+                }
+                UploadPartResult result = new UploadPartResult();
+                result.setPartNumber(request.getPartNumber());
+                result.setETag("etag-" + request.getPartNumber());
+                return result;
+            }
+        }).when(mockClient).uploadPart(any(UploadPartRequest.class));
+        return parts;
+    }
+
+    private void serve(final byte[] content) {
+        doAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) {
+                long[] range = ((GetObjectRequest) invocation.getArguments()[0]).getRange();
+                S3Object object = new S3Object();
+                object.setObjectContent(new ByteArrayInputStream(range == null ? content : Arrays.copyOfRange(content, (int) range[0], (int) Math.min(range[1] + 1, content.length))));
+                return object;
+            }
+        }).when(mockClient).getObject(any(GetObjectRequest.class));
+    }
+
+    private File sparseFile(long size) throws IOException {
+        File file = File.createTempFile("s3-artifact-store", ".bin");
+        file.deleteOnExit();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(size);
+        randomAccessFile.close();
+        return file;
+    }
+
+    private S3ObjectSummary summary(String key, long size, String eTag) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(key);
+        summary.setSize(size);
+        summary.setETag(eTag);
+        return summary;
+    }
+
+    private ObjectListing listingOf(String... keys) {
+        ObjectListing listing = new ObjectListing();
+        for (String key : keys) {
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setKey(key);
+            summary.setSize(10);
+            listing.getObjectSummaries().add(summary);
+        }
+        return listing;
+    }
 }
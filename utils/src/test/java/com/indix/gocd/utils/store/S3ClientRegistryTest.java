@@ -0,0 +1,73 @@
+package com.indix.gocd.utils.store;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.indix.gocd.utils.GoEnvironment;
+import com.indix.gocd.utils.utils.Maps;
+import org.junit.Test;
+
+import static com.indix.gocd.utils.Constants.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class S3ClientRegistryTest {
+
+    @Test
+    public void shouldReuseClientForTheSameRegionAndCredentials() {
+        S3ClientRegistry registry = new S3ClientRegistry(60000);
+
+        AmazonS3 first = registry.clientFor(environment("us-east-1", "accessId", "secretKey"));
+        AmazonS3 second = registry.clientFor(environment("us-east-1", "accessId", "secretKey"));
+
+        assertThat(second, is(sameInstance(first)));
+        assertThat(registry.size(), is(1));
+    }
+
+    @Test
+    public void shouldNotShareClientsAcrossRegionsOrCredentials() {
+        S3ClientRegistry registry = new S3ClientRegistry(60000);
+
+        AmazonS3 client = registry.clientFor(environment("us-east-1", "accessId", "secretKey"));
+
+        assertThat(registry.clientFor(environment("eu-west-1", "accessId", "secretKey")), is(not(sameInstance(client))));
+        assertThat(registry.clientFor(environment("us-east-1", "accessId", "otherSecretKey")), is(not(sameInstance(client))));
+        assertThat(registry.size(), is(3));
+    }
+
+    @Test
+    public void shouldNotShareClientsAcrossEndpoints() {
+        S3ClientRegistry registry = new S3ClientRegistry(60000);
+
+        AmazonS3 client = registry.clientFor(environment("us-east-1", "accessId", "secretKey"));
+        AmazonS3 atEndpoint = registry.clientFor(new GoEnvironment(Maps.<String, String>builder()
+                .with(AWS_S3_ENDPOINT, "http://localhost:9000")
+                .with(AWS_REGION, "us-east-1")
+                .with(AWS_ACCESS_KEY_ID, "accessId")
+                .with(AWS_SECRET_ACCESS_KEY, "secretKey")
+                .build()));
+
+        assertThat(atEndpoint, is(not(sameInstance(client))));
+        assertThat(registry.size(), is(2));
+    }
+
+    @Test
+    public void shouldEvictIdleClients() throws InterruptedException {
+        S3ClientRegistry registry = new S3ClientRegistry(1);
+
+        AmazonS3 client = registry.clientFor(environment("us-east-1", "accessId", "secretKey"));
+        Thread.sleep(10);
+        registry.clientFor(environment("eu-west-1", "accessId", "secretKey"));
+
+        assertThat(registry.size(), is(1));
+        assertThat(registry.clientFor(environment("us-east-1", "accessId", "secretKey")), is(not(sameInstance(client))));
+    }
+
+    private GoEnvironment environment(String region, String accessKey, String secretKey) {
+        return new GoEnvironment(Maps.<String, String>builder()
+                .with(AWS_REGION, region)
+                .with(AWS_ACCESS_KEY_ID, accessKey)
+                .with(AWS_SECRET_ACCESS_KEY, secretKey)
+                .build());
+    }
+}
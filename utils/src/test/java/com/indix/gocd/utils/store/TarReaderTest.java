@@ -0,0 +1,109 @@
+package com.indix.gocd.utils.store;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.core.StringContains.containsString;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class TarReaderTest {
+    private File source;
+    private File destination;
+
+    @Before
+    public void setUp() throws IOException {
+        source = Files.createTempDirectory("tar-source").toFile();
+        destination = Files.createTempDirectory("tar-destination").toFile();
+    }
+
+    @Test
+    public void shouldExtractWhatWasWritten() throws IOException {
+        String deepPath = repeat("nested/", 20) + "file.txt";
+        String longName = repeat("x", 150) + ".txt";
+        File script = file("run.sh", "#!/bin/sh");
+        script.setExecutable(true);
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        TarWriter writer = new TarWriter(archive);
+        writer.add(file("a.txt", "a"), "a.txt");
+        writer.add(file("deep.txt", "deep"), deepPath);
+        writer.add(file("long.txt", "long"), "dir/" + longName);
+        writer.add(file("empty.txt", ""), "empty.txt");
+        writer.add(script, "bin/run.sh");
+        writer.close();
+
+        List<String> extracted = new TarReader(new ByteArrayInputStream(archive.toByteArray())).extractTo(destination);
+
+        assertThat(extracted, is(Arrays.asList("a.txt", deepPath, "dir/" + longName, "empty.txt", "bin/run.sh")));
+        assertThat(archive.size() % TarWriter.BLOCK_SIZE, is(0));
+        assertThat(content("a.txt"), is("a"));
+        assertThat(content(deepPath), is("deep"));
+        assertThat(content("dir/" + longName), is("long"));
+        assertThat(content("empty.txt"), is(""));
+        assertThat(new File(destination, "bin/run.sh").canExecute(), is(true));
+    }
+
+    @Test
+    public void shouldExtractOnlyEntriesUnderThePrefix() throws IOException {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        TarWriter writer = new TarWriter(archive);
+        writer.add(file("a.txt", "a"), "lib/a.txt");
+        writer.add(file("b.txt", "b"), "b.txt");
+        writer.add(file("c.txt", "c"), "library/c.txt");
+        writer.add(file("d.txt", "d"), "lib/nested/d.txt");
+        writer.close();
+
+        List<String> extracted = new TarReader(new ByteArrayInputStream(archive.toByteArray())).extractTo(destination, "lib/");
+
+        assertThat(extracted, is(Arrays.asList("a.txt", "nested/d.txt")));
+        assertThat(content("a.txt"), is("a"));
+        assertThat(content("nested/d.txt"), is("d"));
+        assertThat(new File(destination, "b.txt").exists(), is(false));
+        assertThat(new File(destination, "c.txt").exists(), is(false));
+    }
+
+    @Test
+    public void shouldRejectEntriesOutsideOfTheDestination() throws IOException {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        TarWriter writer = new TarWriter(archive);
+        writer.add(file("evil.txt", "evil"), "../evil.txt");
+        writer.close();
+
+        try {
+            new TarReader(new ByteArrayInputStream(archive.toByteArray())).extractTo(destination);
+            fail("Expected the extraction to fail");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("points outside of"));
+        }
+        assertThat(new File(destination.getParentFile(), "evil.txt").exists(), is(false));
+    }
+
+    private File file(String name, String content) throws IOException {
+        File file = new File(source, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private String content(String path) throws IOException {
+        return new String(Files.readAllBytes(new File(destination, path).toPath()), StandardCharsets.UTF_8);
+    }
+
+    private String repeat(String value, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,52 @@
+package com.indix.gocd.utils.store;
+
+import com.amazonaws.AmazonClientException;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class TransferExecutorTest {
+
+    @Test
+    public void shouldReportFailuresOfTransfersRunInlineLikeThoseRunInParallel() {
+        final AtomicInteger attempted = new AtomicInteger();
+        TransferExecutor executor = new TransferExecutor(1);
+        try {
+            executor.submit("a", new Runnable() {
+                @Override
+                public void run() {
+                    attempted.incrementAndGet();
+                    throw new AmazonClientException("Connection reset");
+                }
+            });
+            fail("Expected the transfer to fail");
+        } catch (TransferFailedException e) {
+            assertThat(e.getMessage(), is("1 transfer(s) failed: a (Connection reset)"));
+            assertThat(e.getFailures().get("a"), instanceOf(AmazonClientException.class));
+        }
+
+        try {
+            executor.submit("b", new Runnable() {
+                @Override
+                public void run() {
+                    attempted.incrementAndGet();
+                }
+            });
+            fail("Expected no more transfers after a failure");
+        } catch (TransferFailedException e) {
+            assertThat(e.getFailures().keySet().toString(), is("[a]"));
+        }
+        try {
+            executor.awaitCompletion();
+            fail("Expected the failure to be reported when waiting for the transfers");
+        } catch (TransferFailedException e) {
+            assertThat(e.getFailures().size(), is(1));
+        }
+        assertThat(attempted.get(), is(1));
+    }
+}
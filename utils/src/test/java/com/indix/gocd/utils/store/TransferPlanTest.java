@@ -0,0 +1,53 @@
+package com.indix.gocd.utils.store;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TransferPlanTest {
+    private static final long MEGABYTE = S3ArtifactStore.MEGABYTE;
+
+    @Test
+    public void shouldStartLongestTransfersFirst() {
+        TransferPlan plan = new TransferPlan();
+        plan.add("small", 10, 1, 1, noop());
+        plan.add("huge", 1024 * MEGABYTE, 64, 2, noop());
+        plan.add("medium", 100 * MEGABYTE, 1, 1, noop());
+        plan.add("large", 300 * MEGABYTE, 1, 1, noop());
+
+        assertThat(names(plan), is("[huge, large, medium, small]"));
+    }
+
+    @Test
+    public void shouldWeighTransfersSplitIntoParallelRequestsByTheirDuration() {
+        TransferPlan plan = new TransferPlan();
+        plan.add("ranged", 400 * MEGABYTE, 25, 8, noop());
+        plan.add("whole", 100 * MEGABYTE, 1, 1, noop());
+        plan.add("b", 1024, 1, 1, noop());
+        plan.add("a", 1024, 1, 1, noop());
+
+        assertThat(names(plan), is("[whole, ranged, a, b]"));
+        assertThat(plan.getTotalBytes(), is(500 * MEGABYTE + 2048));
+        assertThat(plan.getRequestCount(), is(28L));
+    }
+
+    private String names(TransferPlan plan) {
+        List<String> names = new ArrayList<>();
+        for (TransferPlan.Transfer transfer : plan.getTransfers()) {
+            names.add(transfer.getName());
+        }
+        return names.toString();
+    }
+
+    private Runnable noop() {
+        return new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+    }
+}